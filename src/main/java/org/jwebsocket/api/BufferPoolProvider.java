@@ -0,0 +1,37 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Engine which provides a buffer pool
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.api;
+
+import org.jwebsocket.buffer.BufferPool;
+
+/**
+ * Optional extension of a {@link WebSocketEngine} which provides a pool of
+ * direct buffers to its connectors. The method is not part of the engine
+ * interface, so that existing implementations of it remain source
+ * compatible.
+ *
+ * @author aschulze
+ */
+public interface BufferPoolProvider {
+
+    /**
+     * Returns the buffer pool of the engine.
+     *
+     * @return the buffer pool or <tt>null</tt> if the engine does not pool
+     * its buffers
+     */
+    BufferPool getBufferPool();
+}
@@ -0,0 +1,57 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Connector with conflating outbound queue
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.api;
+
+import org.jwebsocket.async.IOFuture;
+
+/**
+ * Optional extension of a {@link WebSocketConnector} whose outbound queue
+ * replaces pending packets by newer ones with the same conflation key, e.g.
+ * for price updates where only the latest value is of interest. The methods
+ * are not part of the connector interface, so that existing implementations
+ * of it remain source compatible.
+ *
+ * @author aschulze
+ */
+public interface ConflatingConnector {
+
+    /**
+     * Queues the packet for sending like
+     * {@link WebSocketConnector#sendPacketAsync(WebSocketPacket)}. If the
+     * connector is in conflating mode and a packet with the same conflation
+     * key is still pending, the pending packet is replaced by the given one,
+     * keeping its position in the queue. The future of the replaced packet
+     * completes together with the one of the newer packet.
+     *
+     * @param aDataPacket
+     * @param aConflationKey may be <tt>null</tt>
+     * @return the future of the send operation
+     */
+    IOFuture sendPacketAsync(WebSocketPacket aDataPacket, String aConflationKey);
+
+    /**
+     * Switches the conflating mode of the outbound queue on or off.
+     *
+     * @param aConflating
+     */
+    void setConflating(boolean aConflating);
+
+    /**
+     *
+     * @return <tt>true</tt> if the outbound queue is in conflating mode
+     */
+    boolean isConflating();
+}
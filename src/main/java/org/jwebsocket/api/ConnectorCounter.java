@@ -0,0 +1,36 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Optional connector count of engines and servers
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.api;
+
+/**
+ * Optional extension of a {@link WebSocketEngine} or {@link WebSocketServer}
+ * which knows the number of its connectors. The methods are not part of
+ * the engine and server interfaces, so that existing implementations of
+ * these interfaces remain source compatible.
+ *
+ * @author aschulze
+ */
+public interface ConnectorCounter {
+
+    /**
+     * Returns the number of connectors. Other than
+     * <tt>getConnectors().size()</tt> this method is guaranteed not to
+     * iterate or copy the connectors.
+     *
+     * @return the number of connectors
+     */
+    int getConnectorCount();
+}
@@ -0,0 +1,35 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Connector Filter API
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.api;
+
+/**
+ * Specifies a predicate to select connectors, e.g. the targets of a
+ * broadcast. Other than a {@code WebSocketFilter}, which processes data
+ * packets, a connector filter only decides whether a certain connector is
+ * part of a selection or not.
+ *
+ * @author aschulze
+ */
+public interface ConnectorFilter {
+
+    /**
+     * Returns <tt>true</tt> if the passed connector is part of the selection.
+     *
+     * @param aConnector
+     * @return
+     */
+    boolean accept(WebSocketConnector aConnector);
+}
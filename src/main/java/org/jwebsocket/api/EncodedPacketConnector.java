@@ -0,0 +1,53 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Optional encode-once send methods of a connector
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.api;
+
+import org.jwebsocket.async.IOFuture;
+import org.jwebsocket.broadcast.EncodedPacket;
+
+/**
+ * Optional extension of a {@link WebSocketConnector} which is able to send
+ * the shared frame of an {@link EncodedPacket}, such that a broadcast is
+ * serialized and framed only once per protocol variant instead of once per
+ * connector. The methods are not part of the connector interface, so that
+ * existing implementations of it remain source compatible.
+ *
+ * @author aschulze
+ */
+public interface EncodedPacketConnector {
+
+    /**
+     * Sends a data packet which has been serialized and framed once for all
+     * recipients of a broadcast. Connector implementations which are able to
+     * write raw frames should write the shared frame returned by
+     * {@link EncodedPacket#getFrame(WebSocketConnector)}, otherwise the
+     * packet for the sub protocol of the connector is sent.
+     *
+     * @param aPacket the encoded packet
+     */
+    void sendEncodedPacket(EncodedPacket aPacket);
+
+    /**
+     * Queues an encoded packet for sending like
+     * {@link WebSocketConnector#sendPacketAsync(WebSocketPacket)}. The queued
+     * packet carries the shared frame, which is written instead of framing
+     * the packet again.
+     *
+     * @param aPacket the encoded packet
+     * @return the future of the send operation
+     */
+    IOFuture sendEncodedPacketAsync(EncodedPacket aPacket);
+}
@@ -0,0 +1,43 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Handler for incoming message fragments
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.api;
+
+/**
+ * Receives the fragments of incoming fragmented messages incrementally,
+ * instead of the completely assembled message. This allows plug-ins to
+ * process large uploads without buffering them on the heap.
+ *
+ * @author aschulze
+ */
+public interface FragmentHandler {
+
+    /**
+     * Is called for each fragment of an incoming message in the order of
+     * their arrival. The fragment is valid during this call only, handlers
+     * which keep it have to retain it (see
+     * {@link org.jwebsocket.buffer.ReferenceCounted}).
+     *
+     * @param aConnector
+     * @param aFragment the fragment, the first fragment of a message carries
+     * the frame type of the message
+     * @param aLast <tt>true</tt> for the last fragment of the message
+     * @return <tt>true</tt> to continue reading, <tt>false</tt> to pause
+     * reading from the connector until the handler calls
+     * {@link org.jwebsocket.connectors.BaseConnector#resumeReading()}
+     */
+    boolean processFragment(WebSocketConnector aConnector, WebSocketPacket aFragment,
+            boolean aLast);
+}
@@ -18,6 +18,9 @@ import org.jwebsocket.exception.MissingTokenSender;
 import org.jwebsocket.rrpc.RRPC;
 
 /**
+ * Implementations are supposed to send the RRPC calls in the
+ * {@link OutboundPriority#HIGH} lane of the target
+ * connector, so that their round trip time does not suffer from bulk data.
  *
  * @author kyberneees
  */
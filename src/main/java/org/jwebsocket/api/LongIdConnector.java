@@ -0,0 +1,36 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Connector with a numeric id
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.api;
+
+/**
+ * Optional extension of a {@link WebSocketConnector} which provides a
+ * numeric id in addition to its string id. The method is not part of the
+ * connector interface, so that existing implementations of it remain source
+ * compatible.
+ *
+ * @author aschulze
+ */
+public interface LongIdConnector {
+
+    /**
+     * Returns the numeric id of this connector. The numeric id is unique
+     * within this node and cheaper to hash and compare than the string id,
+     * hence it is supposed to be used as key for internal maps.
+     *
+     * @return the numeric id, never negative
+     */
+    long getLongId();
+}
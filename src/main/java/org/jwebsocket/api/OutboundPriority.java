@@ -0,0 +1,60 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Priority lanes of the outbound queues
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.api;
+
+import org.jwebsocket.kit.WebSocketFrameType;
+
+/**
+ * Priority lanes of the outbound queue of a connector. Packets of a higher
+ * priority overtake queued packets of a lower priority at frame boundaries,
+ * within a lane the packets keep their order.
+ *
+ * @author aschulze
+ */
+public enum OutboundPriority {
+
+    /**
+     * Ping and pong frames. Control packets are not subject to the
+     * watermarks of the outbound queue. Close frames are never sent with
+     * this priority, they must not overtake queued data frames.
+     */
+    CONTROL,
+    /**
+     * Latency sensitive packets like RRPC calls.
+     */
+    HIGH,
+    /**
+     * Bulk data, the default.
+     */
+    NORMAL;
+
+    /**
+     * Returns the default priority of a packet, i.e. {@link #CONTROL} for
+     * ping and pong frames and {@link #NORMAL} for all others including
+     * close frames.
+     *
+     * @param aPacket
+     * @return
+     */
+    public static OutboundPriority of(WebSocketPacket aPacket) {
+        WebSocketFrameType lType = aPacket.getFrameType();
+        if (WebSocketFrameType.PING == lType
+                || WebSocketFrameType.PONG == lType) {
+            return CONTROL;
+        }
+        return NORMAL;
+    }
+}
@@ -0,0 +1,42 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Connector with outbound priority lanes
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.api;
+
+import org.jwebsocket.async.IOFuture;
+
+/**
+ * Optional extension of a {@link WebSocketConnector} whose outbound queue
+ * has one lane per {@link OutboundPriority}. The method is not part of the
+ * connector interface, so that existing implementations of it remain source
+ * compatible.
+ *
+ * @author aschulze
+ */
+public interface PrioritizedConnector {
+
+    /**
+     * Queues the packet for sending in the lane of the given priority. The
+     * packet overtakes all queued packets of lower priorities, e.g. RRPC
+     * calls (see {@link OutboundPriority#HIGH}) do not wait behind bulk data.
+     * Close frames are always queued with {@link OutboundPriority#NORMAL}
+     * priority behind the pending data.
+     *
+     * @param aDataPacket
+     * @param aPriority
+     * @return the future of the send operation
+     */
+    IOFuture sendPacketAsync(WebSocketPacket aDataPacket, OutboundPriority aPriority);
+}
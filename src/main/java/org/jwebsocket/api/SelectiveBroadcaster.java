@@ -0,0 +1,46 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Optional broadcast to a selection of connectors
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.api;
+
+import org.jwebsocket.kit.BroadcastOptions;
+
+/**
+ * Optional extension of a {@link WebSocketServer} which broadcasts packets
+ * to a selection of its connectors. The method is not part of the server
+ * interface, so that existing implementations of it remain source
+ * compatible.
+ *
+ * @author aschulze
+ */
+public interface SelectiveBroadcaster {
+
+    /**
+     * Broadcasts a datapacket to those connectors which are accepted by the
+     * passed filter. Matching connectors are streamed into the send pipeline,
+     * no intermediate map of the selected connectors is created. To select
+     * connectors by their shared variables (same semantics as
+     * {@link WebSocketServer#selectConnectors(java.util.Map)}) pass a
+     * {@code org.jwebsocket.connectors.VarConnectorFilter}.
+     *
+     * @param aSource
+     * @param aDataPacket
+     * @param aBroadcastOptions
+     * @param aFilter the selection of target connectors, <tt>null</tt> for
+     * all connectors.
+     */
+    void broadcastPacket(WebSocketConnector aSource, WebSocketPacket aDataPacket,
+            BroadcastOptions aBroadcastOptions, ConnectorFilter aFilter);
+}
@@ -0,0 +1,70 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Connector which streams fragmented messages
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.api;
+
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import org.jwebsocket.async.IOFuture;
+import org.jwebsocket.kit.WebSocketFrameType;
+
+/**
+ * Optional extension of a {@link WebSocketConnector} which sends and
+ * receives large messages as sequences of fragments without buffering them
+ * completely. The methods are not part of the connector interface, so that
+ * existing implementations of it remain source compatible.
+ *
+ * @author aschulze
+ */
+public interface StreamingConnector {
+
+    /**
+     * Sends a message read from the channel as a sequence of fragments. Other
+     * data packets sent meanwhile are written after the last fragment. The
+     * future fails if the protocol version of the connector does not
+     * support fragmentation, i.e. for Hixie connectors, or if the connector
+     * is already streaming a message.
+     *
+     * @param aSource
+     * @param aFrameType frame type of the message, i.e. text or binary
+     * @return the future of the complete message
+     */
+    IOFuture sendStream(ReadableByteChannel aSource, WebSocketFrameType aFrameType);
+
+    /**
+     * Sends a message read from the input stream as a sequence of fragments,
+     * see {@link #sendStream(ReadableByteChannel, WebSocketFrameType)}.
+     *
+     * @param aSource
+     * @param aFrameType
+     * @return the future of the complete message
+     */
+    IOFuture sendStream(InputStream aSource, WebSocketFrameType aFrameType);
+
+    /**
+     * Sets the handler which receives the fragments of incoming fragmented
+     * messages incrementally. If no handler is set fragmented messages are
+     * assembled and processed as a whole.
+     *
+     * @param aHandler the handler or <tt>null</tt>
+     */
+    void setFragmentHandler(FragmentHandler aHandler);
+
+    /**
+     *
+     * @return the handler of incoming fragments or <tt>null</tt>
+     */
+    FragmentHandler getFragmentHandler();
+}
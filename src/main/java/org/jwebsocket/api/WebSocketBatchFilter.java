@@ -0,0 +1,45 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Batch filter for outgoing packets
+//    Copyright (c) 2010 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.api;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Optional extension of a {@link WebSocketFilter} which filters an outgoing
+ * packet for multiple targets at once, e.g. for a broadcast. Filters which
+ * do not implement this interface are called once per target.
+ *
+ * @author aschulze
+ */
+public interface WebSocketBatchFilter {
+
+    /**
+     * Filters an outgoing packet for multiple targets at once. The filter
+     * sets the bit of each rejected target in the passed bit set. Targets
+     * whose bit is already set have been rejected by a previous filter and
+     * do not need to be processed again. Filters whose decision does not
+     * depend on the target can process the packet only once for all
+     * targets.
+     *
+     * @param aRejected the indexes of the rejected targets
+     * @param aSource
+     * @param aTargets
+     * @param aPacket
+     */
+    void processPacketOut(BitSet aRejected, WebSocketConnector aSource,
+            List<WebSocketConnector> aTargets, WebSocketPacket aPacket);
+}
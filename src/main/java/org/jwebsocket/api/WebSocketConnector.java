@@ -161,7 +161,7 @@ public interface WebSocketConnector {
     /**
      * Set the given custom variable to the passed value. Custom variables in a
      * connector are public and can be shared over all modules of an
-     * application.
+     * application. Setting a variable to <tt>null</tt> removes it.
      * @param aKey Name of the shared custom variable
      * @param aValue Object
      */
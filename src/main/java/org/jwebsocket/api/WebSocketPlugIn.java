@@ -44,7 +44,9 @@ public interface WebSocketPlugIn {
     void setVersion(String aVersion);
 
     /**
-     * return the enabled status of the plug-in.
+     * return the enabled status of the plug-in. The chain checks the status
+     * whenever it passes an event to the plug-in, hence it may change at
+     * any time.
      * @return
      */
     boolean getEnabled();
@@ -225,6 +225,12 @@ public interface WebSocketServer {
 
     Map<String, WebSocketConnector> selectConnectors(Map<String, Object> aFilter);
 
+    /**
+     * Returns a live, read-only map of the connectors of all engines bound
+     * to the server. The map is not a copy, hence changes of the engines are
+     * reflected immediately.
+     * @return the connectors of all engines
+     */
     Map<String, WebSocketConnector> getAllConnectors();
 
     void setServerConfiguration(ServerConfiguration configuration);
@@ -0,0 +1,179 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Executor with a limited number of concurrently running tasks
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.async;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.jwebsocket.logging.Logging;
+
+/**
+ * Limits the number of tasks which run concurrently on an unbounded
+ * executor, e.g. one which starts a virtual thread per task. Tasks beyond
+ * the limit wait in a bounded queue, if the queue is full the task is
+ * rejected by a {@link RejectedExecutionException}. If the underlying
+ * executor rejects a task which has already been accepted, the task is run
+ * on the dispatching thread, or kept queued if the executor has been shut
+ * down.
+ *
+ * @author aschulze
+ */
+public class ConcurrencyLimitedExecutor extends AbstractExecutorService {
+
+    private static Logger mLog = Logging.getLogger();
+    private final ExecutorService mExecutor;
+    private final int mMaxConcurrency;
+    private final BlockingDeque<Runnable> mQueue;
+    private final AtomicInteger mActive = new AtomicInteger(0);
+
+    /**
+     *
+     * @param aExecutor the executor which runs the tasks
+     * @param aMaxConcurrency maximum number of concurrently running tasks
+     * @param aQueueSize maximum number of waiting tasks
+     */
+    public ConcurrencyLimitedExecutor(ExecutorService aExecutor,
+            int aMaxConcurrency, int aQueueSize) {
+        mExecutor = aExecutor;
+        mMaxConcurrency = aMaxConcurrency;
+        mQueue = new LinkedBlockingDeque<Runnable>(aQueueSize);
+    }
+
+    @Override
+    public void execute(Runnable aTask) {
+        if (mExecutor.isShutdown()) {
+            throw new RejectedExecutionException("Executor has been shut down.");
+        }
+        if (!mQueue.offer(aTask)) {
+            throw new RejectedExecutionException("Maximum number of "
+                    + mMaxConcurrency + " running and "
+                    + (mQueue.size() + mQueue.remainingCapacity())
+                    + " waiting tasks exceeded.");
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (true) {
+            int lActive = mActive.get();
+            if (lActive >= mMaxConcurrency) {
+                // a running task dispatches the queue when it completes
+                return;
+            }
+            if (!mActive.compareAndSet(lActive, lActive + 1)) {
+                continue;
+            }
+            final Runnable lTask = mQueue.poll();
+            if (null == lTask) {
+                mActive.decrementAndGet();
+                if (mQueue.isEmpty()) {
+                    return;
+                }
+                // a task has been queued concurrently, try again
+                continue;
+            }
+            try {
+                mExecutor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            lTask.run();
+                        } finally {
+                            mActive.decrementAndGet();
+                            dispatch();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException lEx) {
+                // never lose an accepted task and never throw on the
+                // completion path of another task
+                if (mExecutor.isShutdown() && mQueue.offerFirst(lTask)) {
+                    mActive.decrementAndGet();
+                    return;
+                }
+                try {
+                    lTask.run();
+                } catch (RuntimeException lTaskEx) {
+                    mLog.error(lTaskEx.getClass().getSimpleName()
+                            + " running rejected task: " + lTaskEx.getMessage());
+                } finally {
+                    mActive.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of currently running tasks.
+     *
+     * @return
+     */
+    public int getActiveCount() {
+        return mActive.get();
+    }
+
+    /**
+     * Returns the number of tasks waiting for execution.
+     *
+     * @return
+     */
+    public int getQueueSize() {
+        return mQueue.size();
+    }
+
+    /**
+     * Returns the maximum number of concurrently running tasks.
+     *
+     * @return
+     */
+    public int getMaxConcurrency() {
+        return mMaxConcurrency;
+    }
+
+    @Override
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> lPending = mExecutor.shutdownNow();
+        mQueue.drainTo(lPending);
+        return lPending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return mExecutor.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return mExecutor.isTerminated() && mQueue.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long aTimeout, TimeUnit aUnit) throws InterruptedException {
+        return mExecutor.awaitTermination(aTimeout, aUnit);
+    }
+}
@@ -0,0 +1,246 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Default implementation of the IOFuture
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.async;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+import org.jwebsocket.api.WebSocketConnector;
+import org.jwebsocket.logging.Logging;
+
+/**
+ * Reusable implementation of the {@link IOFuture}. The state transitions
+ * from <em>uncompleted</em> to one of the completed states are lock-free
+ * and take place only once, subsequent completions are ignored. The
+ * listeners are notified exactly once, either on completion or immediately
+ * when added to a completed future. Only threads waiting for the completion
+ * by {@link #await()} use the monitor of the future.
+ *
+ * @author aschulze
+ */
+public class DefaultIOFuture implements IOFuture {
+
+    private static Logger mLog = Logging.getLogger();
+    private static final int PENDING = 0;
+    private static final int SUCCESS = 1;
+    private static final int FAILURE = 2;
+    private static final int CANCELLED = 3;
+    private static final int COMPLETING = 4;
+    /**
+     * Marks the listeners as notified, i.e. the future as completed.
+     */
+    private static final IOFutureListener[] NOTIFIED = new IOFutureListener[0];
+    private static final IOFutureListener[] NONE = new IOFutureListener[0];
+    private final WebSocketConnector mConnector;
+    private final boolean mCancellable;
+    private final AtomicInteger mState = new AtomicInteger(PENDING);
+    private final AtomicReference<IOFutureListener[]> mListeners =
+            new AtomicReference<IOFutureListener[]>(NONE);
+    private volatile Throwable mCause = null;
+    private volatile int mWaiters = 0;
+
+    /**
+     * Creates a cancellable future.
+     *
+     * @param aConnector the connector of the I/O operation
+     */
+    public DefaultIOFuture(WebSocketConnector aConnector) {
+        this(aConnector, true);
+    }
+
+    /**
+     *
+     * @param aConnector the connector of the I/O operation
+     * @param aCancellable if the operation can be cancelled
+     */
+    public DefaultIOFuture(WebSocketConnector aConnector, boolean aCancellable) {
+        mConnector = aConnector;
+        mCancellable = aCancellable;
+    }
+
+    @Override
+    public WebSocketConnector getConnector() {
+        return mConnector;
+    }
+
+    @Override
+    public boolean isDone() {
+        int lState = mState.get();
+        return lState != PENDING && lState != COMPLETING;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mState.get() == CANCELLED;
+    }
+
+    @Override
+    public boolean isSuccess() {
+        return mState.get() == SUCCESS;
+    }
+
+    @Override
+    public Throwable getCause() {
+        return (mState.get() == FAILURE ? mCause : null);
+    }
+
+    @Override
+    public boolean cancel() {
+        return mCancellable && complete(CANCELLED, null);
+    }
+
+    @Override
+    public boolean setSuccess() {
+        return complete(SUCCESS, null);
+    }
+
+    @Override
+    public boolean setFailure(Throwable aCause) {
+        return complete(FAILURE, aCause);
+    }
+
+    private boolean complete(int aState, Throwable aCause) {
+        // the intermediate state ensures that the cause is visible
+        // before the future appears to be completed
+        if (!mState.compareAndSet(PENDING, COMPLETING)) {
+            return false;
+        }
+        mCause = aCause;
+        mState.set(aState);
+        if (mWaiters > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        for (IOFutureListener lListener : mListeners.getAndSet(NOTIFIED)) {
+            notifyListener(lListener);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean setProgress(long aAmount, long aCurrent, long aTotal) {
+        IOFutureListener[] lListeners = mListeners.get();
+        if (lListeners == NOTIFIED) {
+            return false;
+        }
+        for (IOFutureListener lListener : lListeners) {
+            if (lListener instanceof IOFutureProgressListener) {
+                try {
+                    ((IOFutureProgressListener) lListener).operationProgressed(
+                            this, aAmount, aCurrent, aTotal);
+                } catch (Exception lEx) {
+                    mLog.error(lEx.getClass().getSimpleName()
+                            + " notifying progress listener: " + lEx.getMessage());
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void addListener(IOFutureListener aListener) {
+        while (true) {
+            IOFutureListener[] lListeners = mListeners.get();
+            if (lListeners == NOTIFIED) {
+                notifyListener(aListener);
+                return;
+            }
+            IOFutureListener[] lNew = new IOFutureListener[lListeners.length + 1];
+            System.arraycopy(lListeners, 0, lNew, 0, lListeners.length);
+            lNew[lListeners.length] = aListener;
+            if (mListeners.compareAndSet(lListeners, lNew)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void removeListener(IOFutureListener aListener) {
+        while (true) {
+            IOFutureListener[] lListeners = mListeners.get();
+            int lIdx = 0;
+            while (lIdx < lListeners.length && lListeners[lIdx] != aListener) {
+                lIdx++;
+            }
+            if (lListeners == NOTIFIED || lIdx == lListeners.length) {
+                return;
+            }
+            IOFutureListener[] lNew = (lListeners.length == 1 ? NONE
+                    : new IOFutureListener[lListeners.length - 1]);
+            System.arraycopy(lListeners, 0, lNew, 0, lIdx);
+            System.arraycopy(lListeners, lIdx + 1, lNew, lIdx, lListeners.length - lIdx - 1);
+            if (mListeners.compareAndSet(lListeners, lNew)) {
+                return;
+            }
+        }
+    }
+
+    private void notifyListener(IOFutureListener aListener) {
+        try {
+            aListener.operationComplete(this);
+        } catch (Exception lEx) {
+            mLog.error(lEx.getClass().getSimpleName()
+                    + " notifying I/O future listener: " + lEx.getMessage());
+        }
+    }
+
+    /**
+     * Waits until the future has completed.
+     *
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        synchronized (this) {
+            mWaiters++;
+            try {
+                while (!isDone()) {
+                    wait();
+                }
+            } finally {
+                mWaiters--;
+            }
+        }
+    }
+
+    /**
+     * Waits at most the given time until the future has completed.
+     *
+     * @param aTimeout
+     * @param aUnit
+     * @return <tt>true</tt> if the future completed in time
+     * @throws InterruptedException
+     */
+    public boolean await(long aTimeout, TimeUnit aUnit) throws InterruptedException {
+        long lDeadline = System.nanoTime() + aUnit.toNanos(aTimeout);
+        synchronized (this) {
+            mWaiters++;
+            try {
+                while (!isDone()) {
+                    long lRemaining = lDeadline - System.nanoTime();
+                    if (lRemaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, lRemaining);
+                }
+                return true;
+            } finally {
+                mWaiters--;
+            }
+        }
+    }
+}
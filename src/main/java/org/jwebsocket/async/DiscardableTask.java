@@ -0,0 +1,31 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Task which is notified when it is discarded
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.async;
+
+/**
+ * A task which holds resources, e.g. a retained data packet, that have to be
+ * released if the task is discarded by the {@link OrderedExecutor} due to
+ * its overflow policy instead of being run.
+ *
+ * @author aschulze
+ */
+public interface DiscardableTask extends Runnable {
+
+    /**
+     * Is called instead of {@link #run()} if the task has been discarded.
+     */
+    void discarded();
+}
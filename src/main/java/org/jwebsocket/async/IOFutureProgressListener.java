@@ -0,0 +1,38 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Listener for the progress of asynchronous I/O operations
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.async;
+
+/**
+ * Listens to the progress of an {@link IOFuture} in addition to its
+ * completion. The progress is reported by
+ * {@link IOFuture#setProgress(long, long, long)}, e.g. while a large packet
+ * is written in fragments.
+ *
+ * @author aschulze
+ */
+public interface IOFutureProgressListener extends IOFutureListener {
+
+    /**
+     * Invoked when the I/O operation associated with the {@link IOFuture}
+     * has made progress.
+     *
+     * @param aFuture the source {@link IOFuture} which called this callback
+     * @param aAmount the amount of progress since the last notification
+     * @param aCurrent the progress so far
+     * @param aTotal the expected total amount
+     */
+    void operationProgressed(IOFuture aFuture, long aAmount, long aCurrent, long aTotal) throws Exception;
+}
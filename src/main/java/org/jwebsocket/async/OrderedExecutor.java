@@ -0,0 +1,581 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Executor with FIFO ordering per key
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.async;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.jwebsocket.api.WebSocketConnector;
+import org.jwebsocket.connectors.BaseConnector;
+import org.jwebsocket.kit.CloseReason;
+import org.jwebsocket.logging.Logging;
+
+/**
+ * Runs tasks on a shared worker pool, such that the tasks for the same key
+ * (e.g. the same connector) are executed one after another in the order of
+ * their submission, while tasks for different keys are executed in
+ * parallel. A queue is only kept for keys with pending tasks.
+ *
+ * To be fair to other keys a worker processes at most
+ * {@link #DEFAULT_BATCH_SIZE} tasks of a key before the remaining tasks of
+ * the key are re-submitted to the pool. If the pool rejects a queue, the
+ * queue is processed on the submitting thread.
+ *
+ * Optionally the total number of pending tasks is limited. If the limit is
+ * reached the {@link OverflowPolicy} decides about new tasks. The policies
+ * which affect the originating connector require the key to be the
+ * connector.
+ *
+ * @author aschulze
+ */
+public class OrderedExecutor {
+
+    private static Logger mLog = Logging.getLogger();
+    /**
+     * Default maximum number of tasks a worker processes for one key in a row.
+     */
+    public final static int DEFAULT_BATCH_SIZE = 16;
+    private final Executor mExecutor;
+    private final int mBatchSize;
+    private final int mMaxPending;
+    private final int mLowWatermark;
+    private final OverflowPolicy mOverflowPolicy;
+    private final ConcurrentMap<Object, SerialQueue> mQueues =
+            new ConcurrentHashMap<Object, SerialQueue>();
+    private final ConcurrentMap<BaseConnector, Boolean> mPausedConnectors =
+            new ConcurrentHashMap<BaseConnector, Boolean>();
+    private final AtomicInteger mPending = new AtomicInteger(0);
+    private final AtomicInteger mMaxPendingReached = new AtomicInteger(0);
+    private final AtomicLong mCallerRunsCount = new AtomicLong(0);
+    private final AtomicLong mDroppedCount = new AtomicLong(0);
+    private final AtomicLong mRejectedCount = new AtomicLong(0);
+    private final AtomicLong mPauseCount = new AtomicLong(0);
+    /**
+     * Set while the current thread processes a queue of this executor.
+     */
+    private final ThreadLocal<Boolean> mWorker = new ThreadLocal<Boolean>();
+
+    /**
+     * Creates an executor with an unlimited number of pending tasks.
+     *
+     * @param aExecutor the worker pool
+     */
+    public OrderedExecutor(Executor aExecutor) {
+        this(aExecutor, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates an executor with an unlimited number of pending tasks.
+     *
+     * @param aExecutor the worker pool
+     * @param aBatchSize maximum number of tasks a worker processes for one
+     * key in a row
+     */
+    public OrderedExecutor(Executor aExecutor, int aBatchSize) {
+        this(aExecutor, aBatchSize, 0, OverflowPolicy.CALLER_RUNS);
+    }
+
+    /**
+     *
+     * @param aExecutor the worker pool
+     * @param aBatchSize maximum number of tasks a worker processes for one
+     * key in a row
+     * @param aMaxPending maximum number of pending tasks of all keys, 0 for
+     * no limit
+     * @param aOverflowPolicy what to do with new tasks if the limit is
+     * reached
+     */
+    public OrderedExecutor(Executor aExecutor, int aBatchSize, int aMaxPending,
+            OverflowPolicy aOverflowPolicy) {
+        mExecutor = aExecutor;
+        mBatchSize = (aBatchSize > 0 ? aBatchSize : DEFAULT_BATCH_SIZE);
+        mMaxPending = Math.max(aMaxPending, 0);
+        // paused connectors are resumed at 3/4 of the limit
+        mLowWatermark = mMaxPending - mMaxPending / 4;
+        mOverflowPolicy = (null != aOverflowPolicy ? aOverflowPolicy : OverflowPolicy.CALLER_RUNS);
+    }
+
+    /**
+     * Executes the task after all previously submitted tasks of the same
+     * key have completed.
+     *
+     * @param aKey
+     * @param aTask
+     */
+    public void execute(Object aKey, Runnable aTask) {
+        execute(aKey, aTask, false);
+    }
+
+    /**
+     * Executes the task after all previously submitted tasks of the same
+     * key have completed. Mandatory tasks, e.g. the notification that a
+     * connector stopped, are exempt from the overflow policy, they are
+     * neither dropped nor rejected.
+     *
+     * @param aKey
+     * @param aTask
+     * @param aMandatory
+     */
+    public void execute(Object aKey, Runnable aTask, boolean aMandatory) {
+        if (aMandatory) {
+            enqueue(aKey, new MandatoryTask(aTask));
+            return;
+        }
+        if (mMaxPending > 0 && mPending.get() >= mMaxPending) {
+            if (overflow(aKey, aTask)) {
+                return;
+            }
+        }
+        enqueue(aKey, aTask);
+    }
+
+    private void enqueue(Object aKey, Runnable aTask) {
+        while (true) {
+            SerialQueue lQueue = mQueues.get(aKey);
+            if (null == lQueue) {
+                SerialQueue lNew = new SerialQueue(aKey);
+                lQueue = mQueues.putIfAbsent(aKey, lNew);
+                if (null == lQueue) {
+                    lQueue = lNew;
+                }
+            }
+            if (lQueue.offer(aTask)) {
+                return;
+            }
+            // the queue has just been drained and released, retry with a new one
+        }
+    }
+
+    private static void discard(Runnable aTask) {
+        if (aTask instanceof DiscardableTask) {
+            try {
+                ((DiscardableTask) aTask).discarded();
+            } catch (RuntimeException lEx) {
+                mLog.error(lEx.getClass().getSimpleName() + " on discarding task: "
+                        + lEx.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Applies the overflow policy to the new task.
+     *
+     * @return <tt>true</tt> if the task has been handled, <tt>false</tt> if
+     * it still needs to be queued.
+     */
+    private boolean overflow(Object aKey, Runnable aTask) {
+        switch (mOverflowPolicy) {
+            case DROP_OLDEST: {
+                SerialQueue lQueue = mQueues.get(aKey);
+                Runnable lOldest = (null != lQueue ? lQueue.replaceOldest(aTask) : null);
+                if (null != lOldest) {
+                    discard(lOldest);
+                    mDroppedCount.incrementAndGet();
+                    return true;
+                }
+                // the key has no pending task, make room at the expense of
+                // the key with the most pending tasks
+                SerialQueue lBusiest = getBusiestQueue();
+                Runnable lEvicted = (null != lBusiest ? lBusiest.removeOldest() : null);
+                mDroppedCount.incrementAndGet();
+                if (null != lEvicted) {
+                    discard(lEvicted);
+                    return false;
+                }
+                discard(aTask);
+                return true;
+            }
+            case REJECT:
+                return reject(aKey, aTask);
+            case PAUSE_READING: {
+                if (aKey instanceof BaseConnector) {
+                    BaseConnector lConnector = (BaseConnector) aKey;
+                    if (null == mPausedConnectors.putIfAbsent(lConnector, Boolean.TRUE)) {
+                        mPauseCount.incrementAndGet();
+                        lConnector.pauseReading();
+                        // the queue may have drained in the meantime
+                        resumeConnectors();
+                    }
+                    return false;
+                }
+                // cannot pause the producer, slow it down instead
+                return callerRuns(aKey, aTask);
+            }
+            default:
+                return callerRuns(aKey, aTask);
+        }
+    }
+
+    private boolean reject(Object aKey, Runnable aTask) {
+        discard(aTask);
+        mRejectedCount.incrementAndGet();
+        if (aKey instanceof WebSocketConnector) {
+            WebSocketConnector lConnector = (WebSocketConnector) aKey;
+            mLog.warn("Work queue overflow, closing connector '"
+                    + lConnector.getId() + "'.");
+            lConnector.stopConnector(CloseReason.SERVER);
+        }
+        return true;
+    }
+
+    private boolean callerRuns(Object aKey, Runnable aTask) {
+        if (Boolean.TRUE.equals(mWorker.get())) {
+            // a worker must not wait for other queues, that could starve or
+            // dead lock the pool
+            return reject(aKey, aTask);
+        }
+        mCallerRunsCount.incrementAndGet();
+        // wait until the pending tasks of the key are done to keep the order
+        SerialQueue lQueue = mQueues.get(aKey);
+        if (null != lQueue) {
+            try {
+                lQueue.awaitReleased();
+            } catch (InterruptedException lEx) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        runTask(aTask);
+        return true;
+    }
+
+    /**
+     * Returns the queue with the most pending tasks or <tt>null</tt>.
+     */
+    private SerialQueue getBusiestQueue() {
+        SerialQueue lBusiest = null;
+        int lMax = 0;
+        for (SerialQueue lQueue : mQueues.values()) {
+            int lSize = lQueue.size();
+            if (lSize > lMax) {
+                lMax = lSize;
+                lBusiest = lQueue;
+            }
+        }
+        return lBusiest;
+    }
+
+    private void taskEnqueued() {
+        int lPending = mPending.incrementAndGet();
+        int lMax = mMaxPendingReached.get();
+        while (lPending > lMax && !mMaxPendingReached.compareAndSet(lMax, lPending)) {
+            lMax = mMaxPendingReached.get();
+        }
+    }
+
+    private void taskDequeued() {
+        int lPending = mPending.decrementAndGet();
+        if (lPending < mLowWatermark && !mPausedConnectors.isEmpty()) {
+            resumeConnectors();
+        }
+    }
+
+    private void resumeConnectors() {
+        if (mPending.get() >= mLowWatermark) {
+            return;
+        }
+        for (BaseConnector lConnector : mPausedConnectors.keySet()) {
+            if (null != mPausedConnectors.remove(lConnector)) {
+                lConnector.resumeReading();
+            }
+        }
+    }
+
+    private static void runTask(Runnable aTask) {
+        try {
+            aTask.run();
+        } catch (RuntimeException lEx) {
+            mLog.error(lEx.getClass().getSimpleName()
+                    + " running ordered task: " + lEx.getMessage());
+        }
+    }
+
+    /**
+     * Returns the number of keys with pending tasks.
+     *
+     * @return
+     */
+    public int getActiveKeyCount() {
+        return mQueues.size();
+    }
+
+    /**
+     * Returns the number of pending tasks of the passed key.
+     *
+     * @param aKey
+     * @return
+     */
+    public int getPendingCount(Object aKey) {
+        SerialQueue lQueue = mQueues.get(aKey);
+        return (null != lQueue ? lQueue.size() : 0);
+    }
+
+    /**
+     * Returns the number of pending tasks of all keys, i.e. the current
+     * depth of the queue.
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        return mPending.get();
+    }
+
+    /**
+     * Returns the highest number of pending tasks so far.
+     *
+     * @return
+     */
+    public int getMaxPendingReached() {
+        return mMaxPendingReached.get();
+    }
+
+    /**
+     * Returns the maximum number of pending tasks or 0 if not limited.
+     *
+     * @return
+     */
+    public int getMaxPending() {
+        return mMaxPending;
+    }
+
+    /**
+     *
+     * @return the overflow policy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * Returns the number of tasks which have been run by the submitting
+     * thread due to an overflow.
+     *
+     * @return
+     */
+    public long getCallerRunsCount() {
+        return mCallerRunsCount.get();
+    }
+
+    /**
+     * Returns the number of tasks which have been dropped due to an
+     * overflow.
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Returns the number of tasks which have been rejected due to an
+     * overflow.
+     *
+     * @return
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * Returns how often reading from a connector has been paused due to an
+     * overflow.
+     *
+     * @return
+     */
+    public long getPauseCount() {
+        return mPauseCount.get();
+    }
+
+    /**
+     * Returns the number of connectors which are currently paused.
+     *
+     * @return
+     */
+    public int getPausedConnectorCount() {
+        return mPausedConnectors.size();
+    }
+
+    /**
+     * Returns the worker pool.
+     *
+     * @return
+     */
+    public Executor getExecutor() {
+        return mExecutor;
+    }
+
+    private class SerialQueue implements Runnable {
+
+        private final Object mKey;
+        private final LinkedList<Runnable> mTasks = new LinkedList<Runnable>();
+        private boolean mScheduled = false;
+        private boolean mReleased = false;
+
+        SerialQueue(Object aKey) {
+            mKey = aKey;
+        }
+
+        boolean offer(Runnable aTask) {
+            synchronized (this) {
+                if (mReleased) {
+                    return false;
+                }
+                mTasks.add(aTask);
+                taskEnqueued();
+                if (mScheduled) {
+                    return true;
+                }
+                mScheduled = true;
+            }
+            schedule();
+            return true;
+        }
+
+        /**
+         * Replaces the oldest pending task which is not mandatory by the
+         * passed one, the new task is appended to keep the order of
+         * submission.
+         *
+         * @return the replaced task or <tt>null</tt> if no task has been
+         * replaced
+         */
+        synchronized Runnable replaceOldest(Runnable aTask) {
+            if (mReleased) {
+                return null;
+            }
+            for (Iterator<Runnable> lIterator = mTasks.iterator(); lIterator.hasNext();) {
+                Runnable lTask = lIterator.next();
+                if (!(lTask instanceof MandatoryTask)) {
+                    lIterator.remove();
+                    mTasks.add(aTask);
+                    return lTask;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Removes the oldest pending task which is not mandatory.
+         *
+         * @return the removed task or <tt>null</tt> if no task has been
+         * removed
+         */
+        Runnable removeOldest() {
+            Runnable lRemoved = null;
+            synchronized (this) {
+                if (mReleased) {
+                    return null;
+                }
+                for (Iterator<Runnable> lIterator = mTasks.iterator(); lIterator.hasNext();) {
+                    Runnable lTask = lIterator.next();
+                    if (!(lTask instanceof MandatoryTask)) {
+                        lIterator.remove();
+                        lRemoved = lTask;
+                        break;
+                    }
+                }
+            }
+            if (null != lRemoved) {
+                taskDequeued();
+            }
+            return lRemoved;
+        }
+
+        synchronized int size() {
+            return mTasks.size();
+        }
+
+        synchronized void awaitReleased() throws InterruptedException {
+            while (!mReleased) {
+                wait();
+            }
+        }
+
+        private void schedule() {
+            while (true) {
+                try {
+                    mExecutor.execute(this);
+                    return;
+                } catch (RejectedExecutionException lEx) {
+                    // process the queue on this thread, in a loop rather
+                    // than recursively to bound the stack
+                    if (!runBatch()) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            if (runBatch()) {
+                schedule();
+            }
+        }
+
+        /**
+         * Runs up to one batch of tasks.
+         *
+         * @return <tt>true</tt> if tasks are left and the queue needs to be
+         * scheduled again
+         */
+        private boolean runBatch() {
+            Boolean lWasWorker = mWorker.get();
+            mWorker.set(Boolean.TRUE);
+            try {
+                for (int lCount = 0; lCount < mBatchSize; lCount++) {
+                    Runnable lTask;
+                    synchronized (this) {
+                        lTask = mTasks.poll();
+                        if (null == lTask) {
+                            mScheduled = false;
+                            mReleased = true;
+                            mQueues.remove(mKey, this);
+                            notifyAll();
+                            return false;
+                        }
+                    }
+                    taskDequeued();
+                    runTask(lTask);
+                }
+            } finally {
+                mWorker.set(lWasWorker);
+            }
+            // give the other keys a chance, continue later
+            return true;
+        }
+    }
+
+    private static class MandatoryTask implements Runnable {
+
+        private final Runnable mTask;
+
+        MandatoryTask(Runnable aTask) {
+            mTask = aTask;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+    }
+}
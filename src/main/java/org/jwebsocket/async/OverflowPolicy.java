@@ -0,0 +1,83 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Overflow policies of the server work queue
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.async;
+
+/**
+ * Specifies what the {@link OrderedExecutor} does with a new task if the
+ * maximum number of queued tasks is reached.
+ *
+ * @author aschulze
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The submitting thread runs the task itself, after the pending tasks of
+     * the same key. This slows down the producer, e.g. the reader of the
+     * engine. Tasks submitted by a worker of the executor are rejected
+     * instead, since the worker must not wait for other keys.
+     */
+    CALLER_RUNS("caller-runs"),
+    /**
+     * The oldest pending task of the same key is dropped in favour of the
+     * new one. If the key has no pending tasks the oldest task of the key
+     * with the most pending tasks is dropped instead.
+     */
+    DROP_OLDEST("drop-oldest"),
+    /**
+     * The new task is dropped and the originating connector is closed.
+     */
+    REJECT("reject"),
+    /**
+     * The new task is queued anyway, but reading from the originating
+     * connector is paused until the queue has drained below its low
+     * watermark.
+     */
+    PAUSE_READING("pause-reading");
+    private final String mName;
+
+    OverflowPolicy(String aName) {
+        mName = aName;
+    }
+
+    /**
+     * Returns the name of the policy as used in the configuration.
+     *
+     * @return
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the policy with the passed configuration name or
+     * <tt>null</tt> if there is no such policy.
+     *
+     * @param aName
+     * @return
+     */
+    public static OverflowPolicy fromName(String aName) {
+        if (aName != null) {
+            String lName = aName.trim();
+            for (OverflowPolicy lPolicy : values()) {
+                if (lPolicy.mName.equalsIgnoreCase(lName)
+                        || lPolicy.name().equalsIgnoreCase(lName)) {
+                    return lPolicy;
+                }
+            }
+        }
+        return null;
+    }
+}
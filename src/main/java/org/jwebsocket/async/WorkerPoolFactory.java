@@ -0,0 +1,131 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Factory for the worker pools of the servers
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.async;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.jwebsocket.config.xml.ThreadPoolConfig;
+import org.jwebsocket.logging.Logging;
+
+/**
+ * Creates worker pools according to the <tt>threadPool</tt> configuration.
+ * In <tt>platform</tt> mode a classic bounded thread pool is created, in
+ * <tt>virtual</tt> mode each task runs on its own virtual thread, limited to
+ * <tt>maxConcurrency</tt> concurrently running tasks. Virtual threads are
+ * looked up by reflection, on JVMs without virtual threads the platform pool
+ * is used instead.
+ *
+ * @author aschulze
+ */
+public class WorkerPoolFactory {
+
+    private static Logger mLog = Logging.getLogger();
+
+    private WorkerPoolFactory() {
+    }
+
+    /**
+     * Creates the worker pool for the passed configuration.
+     *
+     * @param aConfig
+     * @param aName prefix of the names of the worker threads
+     * @return
+     */
+    public static ExecutorService createWorkerPool(ThreadPoolConfig aConfig, String aName) {
+        if (ThreadPoolConfig.MODE_VIRTUAL.equals(aConfig.getMode())) {
+            ExecutorService lExecutor = createVirtualThreadExecutor(aName);
+            if (null != lExecutor) {
+                return new ConcurrencyLimitedExecutor(lExecutor,
+                        aConfig.getMaxConcurrency(), aConfig.getBlockingQueueSize());
+            }
+            mLog.warn("Virtual threads are not supported by this JVM, "
+                    + "using a pool of platform threads for '" + aName + "'.");
+        }
+        return createPlatformPool(aConfig, aName);
+    }
+
+    /**
+     * Creates a classic pool of platform threads.
+     *
+     * @param aConfig
+     * @param aName prefix of the names of the worker threads
+     * @return
+     */
+    public static ExecutorService createPlatformPool(ThreadPoolConfig aConfig, final String aName) {
+        return new ThreadPoolExecutor(
+                aConfig.getCorePoolSize(), aConfig.getMaximumPoolSize(),
+                aConfig.getKeepAliveTime(), TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(aConfig.getBlockingQueueSize()),
+                new ThreadFactory() {
+
+                    private final AtomicInteger mCount = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable aRunnable) {
+                        Thread lThread = new Thread(aRunnable, aName + "-" + mCount.incrementAndGet());
+                        lThread.setDaemon(true);
+                        return lThread;
+                    }
+                });
+    }
+
+    /**
+     * Returns <tt>true</tt> if the JVM supports virtual threads.
+     *
+     * @return
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException lEx) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates an executor which starts a new virtual thread per task or
+     * returns <tt>null</tt> if virtual threads are not supported.
+     *
+     * @param aName prefix of the names of the virtual threads
+     * @return
+     */
+    public static ExecutorService createVirtualThreadExecutor(String aName) {
+        try {
+            Object lBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> lBuilderClass = Class.forName("java.lang.Thread$Builder");
+            Method lNameMethod = lBuilderClass.getMethod("name", String.class, long.class);
+            lBuilder = lNameMethod.invoke(lBuilder, aName + "-", 1L);
+            ThreadFactory lFactory = (ThreadFactory) lBuilderClass.getMethod("factory").invoke(lBuilder);
+            Method lNewExecutor = Executors.class.getMethod("newThreadPerTaskExecutor",
+                    ThreadFactory.class);
+            return (ExecutorService) lNewExecutor.invoke(null, lFactory);
+        } catch (Exception lEx) {
+            if (mLog.isDebugEnabled()) {
+                mLog.debug("Virtual threads not available: "
+                        + lEx.getClass().getSimpleName() + ": " + lEx.getMessage());
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Parallel, partitioned broadcast executor
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.broadcast;
+
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.jwebsocket.api.EncodedPacketConnector;
+import org.jwebsocket.api.WebSocketConnector;
+import org.jwebsocket.async.IOFuture;
+import org.jwebsocket.async.IOFutureListener;
+import org.jwebsocket.buffer.ReferenceCountUtils;
+
+/**
+ * Sends a packet to a (potentially large) set of connectors in parallel. The
+ * targets are split into partitions of a configurable size and each
+ * partition is processed by a worker of the given executor. The caller
+ * immediately gets a {@link BroadcastFuture} which completes when the send
+ * operations to all targets have finished and which reports the failures
+ * per connector.
+ *
+ * If the executor rejects a partition (e.g. because its queue is full) the
+ * partition is processed on the calling thread, so that a broadcast is
+ * never silently dropped.
+ *
+ * Asynchronous broadcasts are not partitioned: the packet is queued for all
+ * targets on the calling thread before the broadcast returns, such that it
+ * keeps its order relative to previous and subsequent packets sent to the
+ * same connectors. Only the completion is awaited by the future.
+ *
+ * @author aschulze
+ */
+public class BroadcastExecutor {
+
+    /**
+     * Default number of connectors per partition.
+     */
+    public final static int DEFAULT_PARTITION_SIZE = 1000;
+    /**
+     * Name of the server setting for the number of connectors per partition.
+     */
+    public final static String SETTING_PARTITION_SIZE = "broadcast_partition_size";
+    private final Executor mExecutor;
+    private final int mPartitionSize;
+
+    /**
+     * Sends the packet of a broadcast to a single target connector, e.g. to
+     * apply the outbound hooks of the server.
+     */
+    public interface Sender {
+
+        /**
+         * Sends the packet synchronously.
+         *
+         * @param aConnector
+         * @param aPacket
+         */
+        void sendPacket(WebSocketConnector aConnector, EncodedPacket aPacket);
+
+        /**
+         * Queues the packet for sending.
+         *
+         * @param aConnector
+         * @param aPacket
+         * @return the future of the send operation or <tt>null</tt> if the
+         * connector does not support async I/O completion
+         */
+        IOFuture sendPacketAsync(WebSocketConnector aConnector, EncodedPacket aPacket);
+    }
+    /**
+     * Sends the packets directly to the connectors. Connectors implementing
+     * {@link EncodedPacketConnector} write the shared frame of the packet,
+     * other connectors get the packet for their sub protocol.
+     */
+    public final static Sender DIRECT_SENDER = new Sender() {
+
+        @Override
+        public void sendPacket(WebSocketConnector aConnector, EncodedPacket aPacket) {
+            if (aConnector instanceof EncodedPacketConnector) {
+                ((EncodedPacketConnector) aConnector).sendEncodedPacket(aPacket);
+            } else {
+                aConnector.sendPacket(aPacket.getPacket(aConnector));
+            }
+        }
+
+        @Override
+        public IOFuture sendPacketAsync(WebSocketConnector aConnector, EncodedPacket aPacket) {
+            if (aConnector instanceof EncodedPacketConnector) {
+                return ((EncodedPacketConnector) aConnector).sendEncodedPacketAsync(aPacket);
+            }
+            return aConnector.sendPacketAsync(aPacket.getPacket(aConnector));
+        }
+    };
+
+    /**
+     *
+     * @param aExecutor the worker pool to process the partitions
+     * @param aPartitionSize maximum number of connectors per partition
+     */
+    public BroadcastExecutor(Executor aExecutor, int aPartitionSize) {
+        mExecutor = aExecutor;
+        mPartitionSize = (aPartitionSize > 0 ? aPartitionSize : DEFAULT_PARTITION_SIZE);
+    }
+
+    /**
+     * Sends the encoded packet to all passed target connectors. The targets
+     * are copied before this method returns, hence the passed collection may
+     * be a live view.
+     *
+     * @param aTargets the target connectors
+     * @param aPacket the packet to be sent, framed once for all targets
+     * @param aAsync if <tt>true</tt> the packet is queued by
+     * <tt>sendPacketAsync</tt> on the calling thread and the future completes
+     * on the I/O completion of all targets, otherwise the packet is sent by
+     * <tt>sendEncodedPacket</tt> in parallel partitions.
+     * @return the aggregated future of the broadcast
+     */
+    public BroadcastFuture broadcast(Collection<WebSocketConnector> aTargets,
+            EncodedPacket aPacket, boolean aAsync) {
+        WebSocketConnector[] lTargets = aTargets.toArray(new WebSocketConnector[0]);
+        return broadcast(lTargets, lTargets.length, aPacket, aAsync);
+    }
+
+    /**
+     * Sends the encoded packet to the first <tt>aCount</tt> connectors of
+     * the passed array. The array must not be modified by the caller
+     * afterwards.
+     *
+     * @param aTargets the target connectors
+     * @param aCount the number of valid targets in the array
+     * @param aPacket the packet to be sent, framed once for all targets
+     * @param aAsync see {@link #broadcast(Collection, EncodedPacket, boolean)}
+     * @return the aggregated future of the broadcast
+     */
+    public BroadcastFuture broadcast(WebSocketConnector[] aTargets, int aCount,
+            EncodedPacket aPacket, boolean aAsync) {
+        return broadcast(aTargets, aCount, aPacket, aAsync, DIRECT_SENDER);
+    }
+
+    /**
+     * Sends the encoded packet to the first <tt>aCount</tt> connectors of
+     * the passed array by the passed sender.
+     *
+     * @param aTargets the target connectors
+     * @param aCount the number of valid targets in the array
+     * @param aPacket the packet to be sent, framed once for all targets
+     * @param aAsync see {@link #broadcast(Collection, EncodedPacket, boolean)}
+     * @param aSender sends the packet to the single targets
+     * @return the aggregated future of the broadcast
+     */
+    public BroadcastFuture broadcast(WebSocketConnector[] aTargets, int aCount,
+            EncodedPacket aPacket, boolean aAsync, Sender aSender) {
+        BroadcastFuture lFuture = new BroadcastFuture(aCount);
+        if (aAsync) {
+            // queue in order on the calling thread, the I/O is asynchronous anyway
+            ReferenceCountUtils.retain(aPacket.getSourcePacket());
+            new Partition(aTargets, 0, aCount, aPacket, true, aSender, lFuture).run();
+            return lFuture;
+        }
+        for (int lFrom = 0; lFrom < aCount; lFrom += mPartitionSize) {
+            Partition lPartition = new Partition(aTargets, lFrom,
+                    Math.min(lFrom + mPartitionSize, aCount), aPacket, aAsync, aSender, lFuture);
+            // each partition holds a reference until it has been processed
+            ReferenceCountUtils.retain(aPacket.getSourcePacket());
+            try {
+                mExecutor.execute(lPartition);
+            } catch (RejectedExecutionException lEx) {
+                lPartition.run();
+            }
+        }
+        return lFuture;
+    }
+
+    /**
+     * Returns the maximum number of connectors per partition.
+     *
+     * @return
+     */
+    public int getPartitionSize() {
+        return mPartitionSize;
+    }
+
+    /**
+     * Returns the executor which processes the partitions.
+     *
+     * @return
+     */
+    public Executor getExecutor() {
+        return mExecutor;
+    }
+
+    private static class Partition implements Runnable {
+
+        private final WebSocketConnector[] mTargets;
+        private final int mFrom;
+        private final int mTo;
+        private final EncodedPacket mPacket;
+        private final boolean mAsync;
+        private final Sender mSender;
+        private final BroadcastFuture mFuture;
+
+        Partition(WebSocketConnector[] aTargets, int aFrom, int aTo,
+                EncodedPacket aPacket, boolean aAsync, Sender aSender,
+                BroadcastFuture aFuture) {
+            mTargets = aTargets;
+            mFrom = aFrom;
+            mTo = aTo;
+            mPacket = aPacket;
+            mAsync = aAsync;
+            mSender = aSender;
+            mFuture = aFuture;
+        }
+
+        @Override
+        public void run() {
+            try {
+                sendAll();
+            } finally {
+                ReferenceCountUtils.release(mPacket.getSourcePacket());
+            }
+        }
+
+        private void sendAll() {
+            for (int lIdx = mFrom; lIdx < mTo; lIdx++) {
+                final WebSocketConnector lConnector = mTargets[lIdx];
+                try {
+                    if (mAsync) {
+                        IOFuture lIOFuture = mSender.sendPacketAsync(lConnector, mPacket);
+                        if (lIOFuture == null) {
+                            // connector does not support async I/O completion
+                            mFuture.setSuccess();
+                        } else {
+                            lIOFuture.addListener(new IOFutureListener() {
+
+                                @Override
+                                public void operationComplete(IOFuture aIOFuture) {
+                                    if (aIOFuture.isSuccess()) {
+                                        mFuture.setSuccess();
+                                    } else if (aIOFuture.getCause() != null) {
+                                        mFuture.setFailure(lConnector, aIOFuture.getCause());
+                                    } else {
+                                        mFuture.setFailure(lConnector, new CancellationException());
+                                    }
+                                }
+                            });
+                        }
+                    } else {
+                        mSender.sendPacket(lConnector, mPacket);
+                        mFuture.setSuccess();
+                    }
+                } catch (RuntimeException lEx) {
+                    mFuture.setFailure(lConnector, lEx);
+                }
+            }
+        }
+    }
+}
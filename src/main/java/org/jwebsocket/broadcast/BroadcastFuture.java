@@ -0,0 +1,200 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Broadcast Future
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.broadcast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.jwebsocket.api.WebSocketConnector;
+import org.jwebsocket.logging.Logging;
+
+/**
+ * The aggregated result of a broadcast to multiple connectors. The future
+ * completes when the send operations to all target connectors have
+ * completed, either successfully or with a failure. Failures are reported per
+ * connector.
+ *
+ * @author aschulze
+ */
+public class BroadcastFuture {
+
+    private static Logger mLog = Logging.getLogger();
+    private final int mTargetCount;
+    private final AtomicInteger mPending;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final Map<WebSocketConnector, Throwable> mFailures =
+            new ConcurrentHashMap<WebSocketConnector, Throwable>();
+    private final List<BroadcastFutureListener> mListeners =
+            new ArrayList<BroadcastFutureListener>(1);
+    private boolean mNotified = false;
+
+    /**
+     *
+     * @param aTargetCount number of target connectors of the broadcast
+     */
+    public BroadcastFuture(int aTargetCount) {
+        mTargetCount = aTargetCount;
+        mPending = new AtomicInteger(aTargetCount);
+        if (aTargetCount == 0) {
+            mDone.countDown();
+        }
+    }
+
+    /**
+     * Marks the send operation to one connector as successfully completed.
+     */
+    public void setSuccess() {
+        complete();
+    }
+
+    /**
+     * Marks the send operation to the given connector as failed.
+     *
+     * @param aConnector
+     * @param aCause
+     */
+    public void setFailure(WebSocketConnector aConnector, Throwable aCause) {
+        mFailures.put(aConnector, aCause);
+        complete();
+    }
+
+    private void complete() {
+        if (mPending.decrementAndGet() == 0) {
+            mDone.countDown();
+            BroadcastFutureListener[] lListeners;
+            synchronized (mListeners) {
+                mNotified = true;
+                lListeners = mListeners.toArray(new BroadcastFutureListener[mListeners.size()]);
+                mListeners.clear();
+            }
+            for (BroadcastFutureListener lListener : lListeners) {
+                notifyListener(lListener);
+            }
+        }
+    }
+
+    private void notifyListener(BroadcastFutureListener aListener) {
+        try {
+            aListener.broadcastComplete(this);
+        } catch (RuntimeException lEx) {
+            mLog.error(lEx.getClass().getSimpleName()
+                    + " notifying broadcast listener: " + lEx.getMessage());
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if the send operations to all target connectors
+     * have completed.
+     *
+     * @return
+     */
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the broadcast is done and no send operation
+     * failed.
+     *
+     * @return
+     */
+    public boolean isSuccess() {
+        return isDone() && mFailures.isEmpty();
+    }
+
+    /**
+     * Waits until the broadcast has completed.
+     *
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        mDone.await();
+    }
+
+    /**
+     * Waits at most the given time until the broadcast has completed.
+     *
+     * @param aTimeout
+     * @param aUnit
+     * @return <tt>true</tt> if the broadcast completed in time.
+     * @throws InterruptedException
+     */
+    public boolean await(long aTimeout, TimeUnit aUnit) throws InterruptedException {
+        return mDone.await(aTimeout, aUnit);
+    }
+
+    /**
+     * Returns the number of target connectors of the broadcast.
+     *
+     * @return
+     */
+    public int getTargetCount() {
+        return mTargetCount;
+    }
+
+    /**
+     * Returns the number of send operations which have not yet completed.
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        return Math.max(mPending.get(), 0);
+    }
+
+    /**
+     * Returns the connectors whose send operation failed, with the cause of
+     * the failure.
+     *
+     * @return
+     */
+    public Map<WebSocketConnector, Throwable> getFailures() {
+        return Collections.unmodifiableMap(mFailures);
+    }
+
+    /**
+     * Adds a listener which is notified when the broadcast has completed. If
+     * the broadcast is already completed the listener is notified
+     * immediately.
+     *
+     * @param aListener
+     */
+    public void addListener(BroadcastFutureListener aListener) {
+        synchronized (mListeners) {
+            if (!mNotified && !isDone()) {
+                mListeners.add(aListener);
+                return;
+            }
+        }
+        notifyListener(aListener);
+    }
+
+    /**
+     * Removes a previously added listener.
+     *
+     * @param aListener
+     */
+    public void removeListener(BroadcastFutureListener aListener) {
+        synchronized (mListeners) {
+            mListeners.remove(aListener);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Broadcast Future Listener
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.broadcast;
+
+import java.util.EventListener;
+
+/**
+ * Listens to the completion of a {@link BroadcastFuture}. Like the
+ * {@code IOFutureListener} the listener is called by the thread which
+ * completed the last send operation of the broadcast, hence it is supposed
+ * to return the control quickly.
+ *
+ * @author aschulze
+ */
+public interface BroadcastFutureListener extends EventListener {
+
+    /**
+     * Invoked when all send operations of the broadcast have completed.
+     *
+     * @param aFuture the completed broadcast
+     */
+    void broadcastComplete(BroadcastFuture aFuture);
+}
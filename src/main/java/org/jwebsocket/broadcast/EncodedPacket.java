@@ -0,0 +1,165 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Encode-once packet for broadcasts
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.broadcast;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.jwebsocket.api.WebSocketConnector;
+import org.jwebsocket.api.WebSocketPacket;
+import org.jwebsocket.kit.WebSocketProtocolAbstraction;
+
+/**
+ * A data packet which is serialized and framed only once per protocol
+ * variant when it is sent to many connectors, e.g. on broadcasts. The
+ * variants are distinguished by the sub protocol of the target connector
+ * (e.g. JSON, XML or CSV) and by its WebSocket protocol version (Hixie or
+ * Hybi framing). The first connector of a certain variant triggers the
+ * serialization and framing, all subsequent connectors of the same variant
+ * share the resulting frame.
+ *
+ * Instances are thread safe and immutable from the view of the caller.
+ *
+ * @author aschulze
+ */
+public class EncodedPacket {
+
+    /**
+     * Serializes the payload of a broadcast for a certain sub protocol.
+     */
+    public interface Serializer {
+
+        /**
+         * Returns the data packet for the given sub protocol.
+         *
+         * @param aSubprot sub protocol of the target connector, may be
+         * <tt>null</tt>.
+         * @return the serialized data packet
+         */
+        WebSocketPacket serialize(String aSubprot);
+    }
+    private static final String NO_SUBPROT = "";
+    private final WebSocketPacket mPacket;
+    private final Serializer mSerializer;
+    private final ConcurrentMap<String, Variant> mVariants =
+            new ConcurrentHashMap<String, Variant>(4);
+
+    /**
+     * Creates an encoded packet for a payload which is the same for all sub
+     * protocols.
+     *
+     * @param aPacket
+     */
+    public EncodedPacket(WebSocketPacket aPacket) {
+        mPacket = aPacket;
+        mSerializer = null;
+    }
+
+    /**
+     * Creates an encoded packet which is serialized by the given serializer
+     * once per sub protocol of the target connectors.
+     *
+     * @param aSerializer
+     */
+    public EncodedPacket(Serializer aSerializer) {
+        mPacket = null;
+        mSerializer = aSerializer;
+    }
+
+    /**
+     * Returns the (not framed) data packet for the sub protocol of the given
+     * connector.
+     *
+     * @param aConnector
+     * @return
+     */
+    public WebSocketPacket getPacket(WebSocketConnector aConnector) {
+        return getVariant(aConnector.getSubprot()).mPacket;
+    }
+
+    /**
+     * Returns the WebSocket frame of this packet for the given connector as a
+     * read-only buffer. The underlying bytes are shared by all connectors
+     * using the same sub protocol and protocol version. Each call returns an
+     * independent buffer so that the position can be used by the caller.
+     *
+     * @param aConnector
+     * @return
+     */
+    public ByteBuffer getFrame(WebSocketConnector aConnector) {
+        return ByteBuffer.wrap(getFrameBytes(aConnector)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the WebSocket frame of this packet for the given connector. The
+     * returned array is shared and must not be modified.
+     *
+     * @param aConnector
+     * @return
+     */
+    public byte[] getFrameBytes(WebSocketConnector aConnector) {
+        Variant lVariant = getVariant(aConnector.getSubprot());
+        int lVersion = aConnector.getVersion();
+        byte[] lFrame = lVariant.mFrames.get(lVersion);
+        if (lFrame == null) {
+            lFrame = WebSocketProtocolAbstraction.rawToProtocolPacket(lVersion, lVariant.mPacket);
+            // concurrent framing of the same variant is harmless
+            lVariant.mFrames.put(lVersion, lFrame);
+        }
+        return lFrame;
+    }
+
+    /**
+     * Returns the packet this encoded packet has been created for or
+     * <tt>null</tt> if it is created by a serializer.
+     *
+     * @return
+     */
+    WebSocketPacket getSourcePacket() {
+        return mPacket;
+    }
+
+    private Variant getVariant(String aSubprot) {
+        // without serializer the payload is the same for all sub protocols
+        String lKey = (aSubprot != null && mSerializer != null ? aSubprot : NO_SUBPROT);
+        Variant lVariant = mVariants.get(lKey);
+        if (lVariant == null) {
+            WebSocketPacket lPacket = (mSerializer != null
+                    ? mSerializer.serialize(aSubprot) : mPacket);
+            lVariant = new Variant(lPacket);
+            Variant lPrevious = mVariants.putIfAbsent(lKey, lVariant);
+            if (lPrevious != null) {
+                lVariant = lPrevious;
+            }
+        }
+        return lVariant;
+    }
+
+    /**
+     * The serialized packet of one sub protocol and its frames per protocol
+     * version.
+     */
+    private static class Variant {
+
+        private final WebSocketPacket mPacket;
+        private final ConcurrentMap<Integer, byte[]> mFrames =
+                new ConcurrentHashMap<Integer, byte[]>(2);
+
+        Variant(WebSocketPacket aPacket) {
+            mPacket = aPacket;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Allocator for I/O buffers
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocates the buffers for the payload of data packets and takes them
+ * back when they are not used anymore.
+ *
+ * @author aschulze
+ */
+public interface BufferAllocator {
+
+    /**
+     * Returns a cleared buffer with a capacity of at least the requested
+     * number of bytes. The limit of the buffer is set to the requested
+     * capacity.
+     *
+     * @param aCapacity
+     * @return
+     */
+    ByteBuffer allocate(int aCapacity);
+
+    /**
+     * Returns a buffer obtained by {@link #allocate(int)} to the allocator.
+     * The buffer must not be used by the caller afterwards.
+     *
+     * @param aBuffer
+     */
+    void free(ByteBuffer aBuffer);
+}
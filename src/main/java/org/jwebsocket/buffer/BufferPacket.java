@@ -0,0 +1,223 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Data packet backed by a pooled buffer
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.buffer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jwebsocket.kit.RawPacket;
+import org.jwebsocket.kit.WebSocketFrameType;
+
+/**
+ * A data packet whose payload is kept in a buffer of a
+ * {@link BufferAllocator}, usually a direct buffer of a pool. Engines on NIO
+ * read the payload into the buffer and write it from there without copying
+ * it onto the heap (see {@link #getBuffer()}). The buffer is returned to the
+ * allocator when the last reference to the packet has been released.
+ *
+ * The methods inherited from {@link RawPacket} which return the payload as
+ * byte array or string copy the payload onto the heap, they are provided for
+ * compatibility with plug-ins which are not aware of buffers.
+ *
+ * @author aschulze
+ */
+public class BufferPacket extends RawPacket implements ReferenceCounted {
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static byte[] EMPTY = new byte[0];
+    private final BufferAllocator mAllocator;
+    /**
+     * The buffer of the allocator, the payload is kept between its position
+     * and limit.
+     */
+    private volatile ByteBuffer mBuffer;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    /**
+     * Buffers replaced while the packet was shared, they are returned to
+     * the allocator on the last release. Guarded by this packet.
+     */
+    private List<ByteBuffer> mRetired = null;
+
+    /**
+     * Creates a packet for the payload between position and limit of the
+     * buffer. The packet takes over the ownership of the buffer, which must
+     * not be used by the caller afterwards.
+     *
+     * @param aFrameType
+     * @param aBuffer a buffer obtained from the allocator
+     * @param aAllocator the allocator the buffer is returned to
+     */
+    public BufferPacket(WebSocketFrameType aFrameType, ByteBuffer aBuffer,
+            BufferAllocator aAllocator) {
+        super(EMPTY);
+        setFrameType(aFrameType);
+        mAllocator = aAllocator;
+        mBuffer = aBuffer;
+    }
+
+    /**
+     * Allocates a packet with a payload of the given size from the
+     * allocator. The payload is supposed to be filled via
+     * {@link #getBuffer()}.
+     *
+     * @param aAllocator
+     * @param aFrameType
+     * @param aSize
+     * @return
+     */
+    public static BufferPacket allocate(BufferAllocator aAllocator,
+            WebSocketFrameType aFrameType, int aSize) {
+        ByteBuffer lBuffer = aAllocator.allocate(aSize);
+        lBuffer.limit(lBuffer.position() + aSize);
+        return new BufferPacket(aFrameType, lBuffer, aAllocator);
+    }
+
+    /**
+     * Returns a view of the payload. The view has its own position and
+     * limit, it is valid as long as the caller holds a reference to this
+     * packet.
+     *
+     * @return
+     */
+    public ByteBuffer getBuffer() {
+        return checkBuffer().duplicate();
+    }
+
+    private ByteBuffer checkBuffer() {
+        ByteBuffer lBuffer = mBuffer;
+        if (null == lBuffer) {
+            throw new IllegalStateException("Packet has already been released.");
+        }
+        return lBuffer;
+    }
+
+    @Override
+    public int size() {
+        return checkBuffer().remaining();
+    }
+
+    /**
+     * Returns a copy of the payload on the heap.
+     *
+     * @return
+     */
+    @Override
+    public byte[] getByteArray() {
+        ByteBuffer lBuffer = getBuffer();
+        byte[] lBytes = new byte[lBuffer.remaining()];
+        lBuffer.get(lBytes);
+        return lBytes;
+    }
+
+    /**
+     * Replaces the payload. If the packet is shared (see
+     * {@link #getRefCount()}) other holders may still use views of the
+     * current buffer, e.g. for a pending write, hence the payload is copied
+     * into a new buffer and the current one is returned to the allocator when
+     * the last reference has been released. Otherwise the current buffer is
+     * reused unless the new payload exceeds its capacity.
+     *
+     * @param aByteArray
+     */
+    @Override
+    public synchronized void setByteArray(byte[] aByteArray) {
+        ByteBuffer lBuffer = checkBuffer();
+        boolean lShared = mRefCount.get() > 1;
+        if (lShared || aByteArray.length > lBuffer.capacity()) {
+            ByteBuffer lNew = mAllocator.allocate(aByteArray.length);
+            if (lShared) {
+                if (null == mRetired) {
+                    mRetired = new ArrayList<ByteBuffer>(1);
+                }
+                mRetired.add(lBuffer);
+            } else {
+                mAllocator.free(lBuffer);
+            }
+            lBuffer = lNew;
+        }
+        lBuffer.clear();
+        lBuffer.put(aByteArray);
+        lBuffer.flip();
+        mBuffer = lBuffer;
+    }
+
+    @Override
+    public String getString() {
+        return getUTF8();
+    }
+
+    @Override
+    public void setString(String aString) {
+        setUTF8(aString);
+    }
+
+    @Override
+    public String getUTF8() {
+        return UTF8.decode(getBuffer()).toString();
+    }
+
+    @Override
+    public void setUTF8(String aString) {
+        setByteArray(aString.getBytes(UTF8));
+    }
+
+    @Override
+    public int getRefCount() {
+        return mRefCount.get();
+    }
+
+    @Override
+    public BufferPacket retain() {
+        while (true) {
+            int lCount = mRefCount.get();
+            if (lCount <= 0) {
+                throw new IllegalStateException("Packet has already been released.");
+            }
+            if (mRefCount.compareAndSet(lCount, lCount + 1)) {
+                return this;
+            }
+        }
+    }
+
+    @Override
+    public boolean release() {
+        int lCount = mRefCount.decrementAndGet();
+        if (lCount > 0) {
+            return false;
+        }
+        if (lCount < 0) {
+            mRefCount.incrementAndGet();
+            throw new IllegalStateException("Packet has already been released.");
+        }
+        ByteBuffer lBuffer;
+        List<ByteBuffer> lRetired;
+        synchronized (this) {
+            lBuffer = mBuffer;
+            mBuffer = null;
+            lRetired = mRetired;
+            mRetired = null;
+        }
+        mAllocator.free(lBuffer);
+        if (null != lRetired) {
+            for (ByteBuffer lOld : lRetired) {
+                mAllocator.free(lOld);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,32 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Buffer pool with usage statistics
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.buffer;
+
+/**
+ * A {@link BufferAllocator} which keeps freed buffers for reuse and reports
+ * its usage.
+ *
+ * @author aschulze
+ */
+public interface BufferPool extends BufferAllocator {
+
+    /**
+     * Returns a snapshot of the usage statistics of the pool.
+     *
+     * @return
+     */
+    BufferPoolStats getStats();
+}
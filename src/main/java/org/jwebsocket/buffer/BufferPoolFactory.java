@@ -0,0 +1,113 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Factory for the buffer pools of the engines
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.buffer;
+
+import java.util.Map;
+import org.apache.log4j.Logger;
+import org.jwebsocket.logging.Logging;
+
+/**
+ * Creates the buffer pool of an engine according to the settings of the
+ * engine configuration. The setting <tt>buffer_pool</tt> selects the
+ * implementation: <tt>slab</tt> (default) for the {@link SlabBufferPool},
+ * <tt>direct</tt> for the {@link DirectBufferPool} or the fully qualified
+ * name of a class which implements {@link BufferPool} and provides a public
+ * default constructor.
+ *
+ * @author aschulze
+ */
+public class BufferPoolFactory {
+
+    /**
+     * Name of the engine setting for the buffer pool implementation.
+     */
+    public final static String SETTING_BUFFER_POOL = "buffer_pool";
+    /**
+     * Name of the engine setting for the size of the pool in bytes.
+     */
+    public final static String SETTING_POOL_SIZE = "buffer_pool_size";
+    /**
+     * Name of the engine setting for the capacity of the largest pooled
+     * buffers.
+     */
+    public final static String SETTING_MAX_CAPACITY = "buffer_pool_max_capacity";
+    /**
+     * Name of the engine setting for the maximum number of buffers per size
+     * class cached by a thread.
+     */
+    public final static String SETTING_MAX_CACHED_PER_THREAD = "buffer_pool_max_cached_per_thread";
+    /**
+     * Value of the setting <tt>buffer_pool</tt> for the slab pool.
+     */
+    public final static String POOL_SLAB = "slab";
+    /**
+     * Value of the setting <tt>buffer_pool</tt> for the simple pool of
+     * direct buffers.
+     */
+    public final static String POOL_DIRECT = "direct";
+    private static Logger mLog = Logging.getLogger();
+
+    private BufferPoolFactory() {
+    }
+
+    /**
+     * Creates the buffer pool for the given engine settings.
+     *
+     * @param aSettings the settings of the engine, may be <tt>null</tt>
+     * @return
+     */
+    public static BufferPool createBufferPool(Map<String, Object> aSettings) {
+        String lType = getString(aSettings, SETTING_BUFFER_POOL, POOL_SLAB);
+        int lMaxCapacity = getInt(aSettings, SETTING_MAX_CAPACITY,
+                SlabBufferPool.DEFAULT_MAX_CAPACITY);
+        if (POOL_DIRECT.equalsIgnoreCase(lType)) {
+            return new DirectBufferPool(lMaxCapacity, DirectBufferPool.DEFAULT_MAX_FREE);
+        }
+        if (!POOL_SLAB.equalsIgnoreCase(lType)) {
+            try {
+                return (BufferPool) Class.forName(lType).newInstance();
+            } catch (Exception lEx) {
+                mLog.error(lEx.getClass().getSimpleName() + " instantiating buffer pool '"
+                        + lType + "': " + lEx.getMessage() + ", using slab pool.");
+            }
+        }
+        return new SlabBufferPool(
+                getInt(aSettings, SETTING_POOL_SIZE, SlabBufferPool.DEFAULT_POOL_SIZE),
+                lMaxCapacity,
+                getInt(aSettings, SETTING_MAX_CACHED_PER_THREAD,
+                SlabBufferPool.DEFAULT_MAX_CACHED_PER_THREAD));
+    }
+
+    private static String getString(Map<String, Object> aSettings, String aKey, String aDefault) {
+        Object lValue = (null != aSettings ? aSettings.get(aKey) : null);
+        return (null != lValue ? lValue.toString().trim() : aDefault);
+    }
+
+    private static int getInt(Map<String, Object> aSettings, String aKey, int aDefault) {
+        Object lValue = (null != aSettings ? aSettings.get(aKey) : null);
+        if (lValue instanceof Number) {
+            return ((Number) lValue).intValue();
+        }
+        if (null != lValue) {
+            try {
+                return Integer.parseInt(lValue.toString().trim());
+            } catch (NumberFormatException lEx) {
+                mLog.warn("Invalid value '" + lValue + "' for engine setting '" + aKey + "'.");
+            }
+        }
+        return aDefault;
+    }
+}
@@ -0,0 +1,127 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Usage statistics of a buffer pool
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.buffer;
+
+/**
+ * Snapshot of the usage statistics of a {@link BufferPool}.
+ *
+ * @author aschulze
+ */
+public class BufferPoolStats {
+
+    private final long mReservedBytes;
+    private final long mUsedBytes;
+    private final long mAllocations;
+    private final long mFrees;
+    private final long mThreadCacheHits;
+    private final long mPoolHits;
+    private final long mUnpooledAllocations;
+
+    /**
+     *
+     * @param aReservedBytes
+     * @param aUsedBytes
+     * @param aAllocations
+     * @param aFrees
+     * @param aThreadCacheHits
+     * @param aPoolHits
+     * @param aUnpooledAllocations
+     */
+    public BufferPoolStats(long aReservedBytes, long aUsedBytes, long aAllocations,
+            long aFrees, long aThreadCacheHits, long aPoolHits, long aUnpooledAllocations) {
+        mReservedBytes = aReservedBytes;
+        mUsedBytes = aUsedBytes;
+        mAllocations = aAllocations;
+        mFrees = aFrees;
+        mThreadCacheHits = aThreadCacheHits;
+        mPoolHits = aPoolHits;
+        mUnpooledAllocations = aUnpooledAllocations;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory reserved by the pool.
+     *
+     * @return
+     */
+    public long getReservedBytes() {
+        return mReservedBytes;
+    }
+
+    /**
+     * Returns the number of bytes of pooled buffers currently in use.
+     *
+     * @return
+     */
+    public long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    /**
+     * Returns the total number of allocations.
+     *
+     * @return
+     */
+    public long getAllocations() {
+        return mAllocations;
+    }
+
+    /**
+     * Returns the total number of freed buffers.
+     *
+     * @return
+     */
+    public long getFrees() {
+        return mFrees;
+    }
+
+    /**
+     * Returns the number of allocations served by the cache of the
+     * allocating thread.
+     *
+     * @return
+     */
+    public long getThreadCacheHits() {
+        return mThreadCacheHits;
+    }
+
+    /**
+     * Returns the number of allocations served by the shared free lists of
+     * the pool.
+     *
+     * @return
+     */
+    public long getPoolHits() {
+        return mPoolHits;
+    }
+
+    /**
+     * Returns the number of allocations which could not be served by the
+     * pool, e.g. because the buffer was too large or the pool exhausted.
+     *
+     * @return
+     */
+    public long getUnpooledAllocations() {
+        return mUnpooledAllocations;
+    }
+
+    @Override
+    public String toString() {
+        return "reserved=" + mReservedBytes + ", used=" + mUsedBytes
+                + ", allocations=" + mAllocations + ", frees=" + mFrees
+                + ", threadCacheHits=" + mThreadCacheHits + ", poolHits=" + mPoolHits
+                + ", unpooled=" + mUnpooledAllocations;
+    }
+}
@@ -0,0 +1,151 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Pool of direct I/O buffers
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simple pool of direct buffers. The buffers are pooled in power-of-two
+ * size classes from {@link #MIN_CAPACITY} up to a maximum capacity, each
+ * class keeps up to a maximum number of free buffers. Larger buffers are
+ * allocated on demand and left to the garbage collector.
+ *
+ * @author aschulze
+ */
+public class DirectBufferPool implements BufferPool {
+
+    /**
+     * Capacity of the smallest size class.
+     */
+    public final static int MIN_CAPACITY = 256;
+    /**
+     * Default capacity of the largest size class.
+     */
+    public final static int DEFAULT_MAX_CAPACITY = 64 * 1024;
+    /**
+     * Default maximum number of free buffers per size class.
+     */
+    public final static int DEFAULT_MAX_FREE = 256;
+    private final int mMaxCapacity;
+    private final int mMaxFree;
+    private final Queue<ByteBuffer>[] mFree;
+    private final AtomicInteger[] mFreeCount;
+    private final AtomicLong mReservedBytes = new AtomicLong(0);
+    private final AtomicLong mUsedBytes = new AtomicLong(0);
+    private final AtomicLong mAllocations = new AtomicLong(0);
+    private final AtomicLong mFrees = new AtomicLong(0);
+    private final AtomicLong mPoolHits = new AtomicLong(0);
+    private final AtomicLong mUnpooledAllocations = new AtomicLong(0);
+
+    /**
+     *
+     */
+    public DirectBufferPool() {
+        this(DEFAULT_MAX_CAPACITY, DEFAULT_MAX_FREE);
+    }
+
+    /**
+     *
+     * @param aMaxCapacity capacity of the largest pooled buffers, rounded up
+     * to a power of two
+     * @param aMaxFree maximum number of free buffers per size class
+     */
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool(int aMaxCapacity, int aMaxFree) {
+        mMaxCapacity = roundUp(Math.max(aMaxCapacity, MIN_CAPACITY));
+        mMaxFree = aMaxFree;
+        int lClasses = indexOf(mMaxCapacity) + 1;
+        mFree = new Queue[lClasses];
+        mFreeCount = new AtomicInteger[lClasses];
+        for (int lIdx = 0; lIdx < lClasses; lIdx++) {
+            mFree[lIdx] = new ConcurrentLinkedQueue<ByteBuffer>();
+            mFreeCount[lIdx] = new AtomicInteger(0);
+        }
+    }
+
+    private static int roundUp(int aCapacity) {
+        int lCapacity = Integer.highestOneBit(aCapacity);
+        return (lCapacity == aCapacity ? lCapacity : lCapacity << 1);
+    }
+
+    private static int indexOf(int aCapacity) {
+        return Integer.numberOfTrailingZeros(aCapacity)
+                - Integer.numberOfTrailingZeros(MIN_CAPACITY);
+    }
+
+    @Override
+    public ByteBuffer allocate(int aCapacity) {
+        mAllocations.incrementAndGet();
+        if (aCapacity > mMaxCapacity) {
+            mUnpooledAllocations.incrementAndGet();
+            return ByteBuffer.allocateDirect(aCapacity);
+        }
+        int lCapacity = roundUp(Math.max(aCapacity, MIN_CAPACITY));
+        int lIdx = indexOf(lCapacity);
+        ByteBuffer lBuffer = mFree[lIdx].poll();
+        if (null == lBuffer) {
+            lBuffer = ByteBuffer.allocateDirect(lCapacity);
+            mReservedBytes.addAndGet(lCapacity);
+        } else {
+            mFreeCount[lIdx].decrementAndGet();
+            mPoolHits.incrementAndGet();
+            lBuffer.clear();
+        }
+        mUsedBytes.addAndGet(lCapacity);
+        lBuffer.limit(aCapacity);
+        return lBuffer;
+    }
+
+    @Override
+    public void free(ByteBuffer aBuffer) {
+        int lCapacity = aBuffer.capacity();
+        if (!aBuffer.isDirect() || lCapacity > mMaxCapacity
+                || lCapacity < MIN_CAPACITY || Integer.bitCount(lCapacity) != 1) {
+            // not allocated by this pool or too large to be pooled
+            return;
+        }
+        mFrees.incrementAndGet();
+        mUsedBytes.addAndGet(-lCapacity);
+        int lIdx = indexOf(lCapacity);
+        if (mFreeCount[lIdx].incrementAndGet() <= mMaxFree) {
+            mFree[lIdx].offer(aBuffer);
+        } else {
+            mFreeCount[lIdx].decrementAndGet();
+            // left to the garbage collector
+            mReservedBytes.addAndGet(-lCapacity);
+        }
+    }
+
+    @Override
+    public BufferPoolStats getStats() {
+        return new BufferPoolStats(mReservedBytes.get(), mUsedBytes.get(),
+                mAllocations.get(), mFrees.get(), 0, mPoolHits.get(),
+                mUnpooledAllocations.get());
+    }
+
+    /**
+     * Returns the capacity of the largest pooled buffers.
+     *
+     * @return
+     */
+    public int getMaxCapacity() {
+        return mMaxCapacity;
+    }
+}
@@ -0,0 +1,57 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Utilities for reference counted objects
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.buffer;
+
+/**
+ * Retains and releases objects which may or may not be reference counted,
+ * e.g. data packets that are passed through the engines, servers, filters
+ * and plug-ins. For objects which are not reference counted these methods
+ * do nothing.
+ *
+ * @author aschulze
+ */
+public class ReferenceCountUtils {
+
+    private ReferenceCountUtils() {
+    }
+
+    /**
+     * Retains the object if it is reference counted.
+     *
+     * @param <T>
+     * @param aObject
+     * @return the passed object
+     */
+    public static <T> T retain(T aObject) {
+        if (aObject instanceof ReferenceCounted) {
+            ((ReferenceCounted) aObject).retain();
+        }
+        return aObject;
+    }
+
+    /**
+     * Releases the object if it is reference counted.
+     *
+     * @param aObject
+     * @return <tt>true</tt> if the object has been freed by this call
+     */
+    public static boolean release(Object aObject) {
+        if (aObject instanceof ReferenceCounted) {
+            return ((ReferenceCounted) aObject).release();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,53 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Reference counted objects
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.buffer;
+
+/**
+ * An object which holds a resource, e.g. a pooled buffer, that is returned
+ * as soon as the last reference has been released. A new object has a
+ * reference count of <tt>1</tt>, which is owned by its creator. Whoever
+ * keeps the object beyond the call it has been passed to, e.g. to process
+ * it asynchronously, has to {@link #retain()} it and to {@link #release()}
+ * it afterwards.
+ *
+ * @author aschulze
+ */
+public interface ReferenceCounted {
+
+    /**
+     * Returns the current number of references.
+     *
+     * @return
+     */
+    int getRefCount();
+
+    /**
+     * Increments the number of references.
+     *
+     * @return this object
+     * @throws IllegalStateException if the object has already been freed
+     */
+    ReferenceCounted retain();
+
+    /**
+     * Decrements the number of references and frees the resource if it was
+     * the last reference.
+     *
+     * @return <tt>true</tt> if the resource has been freed by this call
+     * @throws IllegalStateException if the object has already been freed
+     */
+    boolean release();
+}
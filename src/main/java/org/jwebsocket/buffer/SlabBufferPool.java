@@ -0,0 +1,418 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Off-heap slab buffer pool
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.buffer;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jwebsocket.util.LongHashMap;
+
+/**
+ * Buffer pool which carves its buffers out of a single slab of direct
+ * memory. The slab is reserved on the first allocation and divided into
+ * pages of the size of the largest size class. A page is assigned to a size
+ * class when the class runs out of free buffers and is split into buffers
+ * of that class. Size classes are powers of two from {@link #MIN_CAPACITY}
+ * up to the page size.
+ *
+ * Freed buffers are kept in a small cache of the freeing thread first, so
+ * that threads which allocate and free buffers repeatedly, like the I/O
+ * threads of an engine, do not contend for the shared free lists. Only
+ * threads which allocate from the pool have a cache, buffers freed by other
+ * threads, e.g. by the workers of asynchronous plug-ins, as well as buffers
+ * beyond the cache size go back to the shared free list of their class.
+ * The caches of terminated threads are returned to the shared free lists
+ * regularly and whenever the slab is exhausted.
+ * If the slab is exhausted, or a buffer exceeds the page size, the buffer
+ * is allocated outside of the slab and left to the garbage collector. The
+ * pool knows the buffers carved out of its slab by identity, other buffers
+ * passed to {@link #free(ByteBuffer)} are ignored.
+ *
+ * @author aschulze
+ */
+public class SlabBufferPool implements BufferPool {
+
+    /**
+     * Capacity of the smallest size class.
+     */
+    public final static int MIN_CAPACITY = 256;
+    /**
+     * Default size of the slab in bytes.
+     */
+    public final static int DEFAULT_POOL_SIZE = 16 * 1024 * 1024;
+    /**
+     * Default capacity of the largest size class, which is the page size.
+     */
+    public final static int DEFAULT_MAX_CAPACITY = 64 * 1024;
+    /**
+     * Default maximum number of buffers per size class in the cache of a
+     * thread.
+     */
+    public final static int DEFAULT_MAX_CACHED_PER_THREAD = 32;
+    /**
+     * Number of created thread caches after which the caches of terminated
+     * threads are reclaimed.
+     */
+    private final static int RECLAIM_INTERVAL = 256;
+    private final int mPageSize;
+    private final int mPageCount;
+    private final int mMaxCachedPerThread;
+    private volatile ByteBuffer mSlab = null;
+    private final AtomicInteger mNextPage = new AtomicInteger(0);
+    private final Queue<ByteBuffer>[] mFree;
+    private final AtomicInteger[] mFreeCount;
+    /**
+     * Number of buffers carved out of the slab per size class.
+     */
+    private final AtomicInteger[] mCarved;
+    /**
+     * The buffers carved out of the slab by their identity hash code. The
+     * value is the buffer or, if the hash codes of buffers collide, an
+     * array of these buffers. Written on carving a page only.
+     */
+    private final LongHashMap<Object> mSlabBuffers = new LongHashMap<Object>();
+    private final ThreadLocal<ThreadCache> mCaches = new ThreadLocal<ThreadCache>();
+    private final Queue<ThreadCache> mAllCaches = new ConcurrentLinkedQueue<ThreadCache>();
+    private final AtomicInteger mCachesCreated = new AtomicInteger(0);
+    private final AtomicLong mUsedBytes = new AtomicLong(0);
+    private final AtomicLong mAllocations = new AtomicLong(0);
+    private final AtomicLong mFrees = new AtomicLong(0);
+    private final AtomicLong mThreadCacheHits = new AtomicLong(0);
+    private final AtomicLong mPoolHits = new AtomicLong(0);
+    private final AtomicLong mUnpooledAllocations = new AtomicLong(0);
+
+    /**
+     *
+     */
+    public SlabBufferPool() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_MAX_CAPACITY, DEFAULT_MAX_CACHED_PER_THREAD);
+    }
+
+    /**
+     *
+     * @param aPoolSize size of the slab in bytes, rounded down to a multiple
+     * of the page size
+     * @param aMaxCapacity capacity of the largest size class, rounded up to
+     * a power of two
+     * @param aMaxCachedPerThread maximum number of buffers per size class in
+     * the cache of a thread, <tt>0</tt> disables the thread caches
+     */
+    @SuppressWarnings("unchecked")
+    public SlabBufferPool(int aPoolSize, int aMaxCapacity, int aMaxCachedPerThread) {
+        mPageSize = roundUp(Math.max(aMaxCapacity, MIN_CAPACITY));
+        mPageCount = Math.max(aPoolSize, 0) / mPageSize;
+        mMaxCachedPerThread = Math.max(aMaxCachedPerThread, 0);
+        int lClasses = indexOf(mPageSize) + 1;
+        mFree = new Queue[lClasses];
+        mFreeCount = new AtomicInteger[lClasses];
+        mCarved = new AtomicInteger[lClasses];
+        for (int lIdx = 0; lIdx < lClasses; lIdx++) {
+            mFree[lIdx] = new ConcurrentLinkedQueue<ByteBuffer>();
+            mFreeCount[lIdx] = new AtomicInteger(0);
+            mCarved[lIdx] = new AtomicInteger(0);
+        }
+    }
+
+    /**
+     * Returns the cache of the current thread, which is created on its first
+     * allocation.
+     */
+    private ThreadCache getCache() {
+        ThreadCache lCache = mCaches.get();
+        if (null == lCache) {
+            lCache = new ThreadCache(mFree.length, mMaxCachedPerThread);
+            mCaches.set(lCache);
+            mAllCaches.offer(lCache);
+            if (mCachesCreated.incrementAndGet() % RECLAIM_INTERVAL == 0) {
+                reclaimCaches();
+            }
+        }
+        return lCache;
+    }
+
+    /**
+     * Returns the buffers of the caches of terminated threads to the shared
+     * free lists.
+     */
+    private void reclaimCaches() {
+        synchronized (mAllCaches) {
+            for (Iterator<ThreadCache> lIterator = mAllCaches.iterator(); lIterator.hasNext();) {
+                ThreadCache lCache = lIterator.next();
+                if (lCache.isOwnerAlive()) {
+                    continue;
+                }
+                lIterator.remove();
+                for (int lIdx = 0; lIdx < mFree.length; lIdx++) {
+                    ByteBuffer lBuffer;
+                    while ((lBuffer = lCache.poll(lIdx)) != null) {
+                        mFreeCount[lIdx].incrementAndGet();
+                        mFree[lIdx].offer(lBuffer);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int roundUp(int aCapacity) {
+        int lCapacity = Integer.highestOneBit(aCapacity);
+        return (lCapacity == aCapacity ? lCapacity : lCapacity << 1);
+    }
+
+    private static int indexOf(int aCapacity) {
+        return Integer.numberOfTrailingZeros(aCapacity)
+                - Integer.numberOfTrailingZeros(MIN_CAPACITY);
+    }
+
+    @Override
+    public ByteBuffer allocate(int aCapacity) {
+        mAllocations.incrementAndGet();
+        if (aCapacity > mPageSize) {
+            mUnpooledAllocations.incrementAndGet();
+            return ByteBuffer.allocateDirect(aCapacity);
+        }
+        int lCapacity = roundUp(Math.max(aCapacity, MIN_CAPACITY));
+        int lIdx = indexOf(lCapacity);
+        ByteBuffer lBuffer = null;
+        if (mMaxCachedPerThread > 0) {
+            lBuffer = getCache().poll(lIdx);
+            if (null != lBuffer) {
+                mThreadCacheHits.incrementAndGet();
+            }
+        }
+        if (null == lBuffer) {
+            lBuffer = mFree[lIdx].poll();
+            if (null != lBuffer) {
+                mFreeCount[lIdx].decrementAndGet();
+                mPoolHits.incrementAndGet();
+            }
+        }
+        if (null == lBuffer) {
+            lBuffer = carvePage(lIdx, lCapacity);
+        }
+        if (null == lBuffer && mMaxCachedPerThread > 0) {
+            reclaimCaches();
+            lBuffer = mFree[lIdx].poll();
+            if (null != lBuffer) {
+                mFreeCount[lIdx].decrementAndGet();
+                mPoolHits.incrementAndGet();
+            }
+        }
+        if (null == lBuffer) {
+            // slab exhausted
+            mUnpooledAllocations.incrementAndGet();
+            lBuffer = ByteBuffer.allocateDirect(lCapacity);
+        } else {
+            mUsedBytes.addAndGet(lCapacity);
+        }
+        lBuffer.clear();
+        lBuffer.limit(aCapacity);
+        return lBuffer;
+    }
+
+    @Override
+    public void free(ByteBuffer aBuffer) {
+        int lCapacity = aBuffer.capacity();
+        if (!aBuffer.isDirect() || lCapacity > mPageSize
+                || lCapacity < MIN_CAPACITY || Integer.bitCount(lCapacity) != 1
+                || !isSlabBuffer(aBuffer)) {
+            // not carved out of the slab, left to the garbage collector
+            return;
+        }
+        mFrees.incrementAndGet();
+        mUsedBytes.addAndGet(-lCapacity);
+        int lIdx = indexOf(lCapacity);
+        // only threads which allocate from the pool cache freed buffers
+        ThreadCache lCache = mCaches.get();
+        if (null != lCache && lCache.offer(lIdx, aBuffer)) {
+            return;
+        }
+        // the shared list never holds more buffers than carved out of the slab
+        if (mFreeCount[lIdx].incrementAndGet() <= mCarved[lIdx].get()) {
+            mFree[lIdx].offer(aBuffer);
+        } else {
+            mFreeCount[lIdx].decrementAndGet();
+        }
+    }
+
+    /**
+     * Assigns the next free page of the slab to a size class, returns the
+     * first buffer of the page and adds the others to the free list.
+     *
+     * @return the first buffer or <tt>null</tt> if the slab is exhausted
+     */
+    private ByteBuffer carvePage(int aIdx, int aCapacity) {
+        int lPage;
+        do {
+            lPage = mNextPage.get();
+            if (lPage >= mPageCount) {
+                return null;
+            }
+        } while (!mNextPage.compareAndSet(lPage, lPage + 1));
+        ByteBuffer lSlab = getSlab();
+        int lOffset = lPage * mPageSize;
+        int lCount = mPageSize / aCapacity;
+        mCarved[aIdx].addAndGet(lCount);
+        ByteBuffer lFirst = null;
+        for (int lIdx = 0; lIdx < lCount; lIdx++) {
+            ByteBuffer lView = lSlab.duplicate();
+            lView.limit(lOffset + (lIdx + 1) * aCapacity);
+            lView.position(lOffset + lIdx * aCapacity);
+            ByteBuffer lBuffer = lView.slice();
+            addSlabBuffer(lBuffer);
+            if (null == lFirst) {
+                lFirst = lBuffer;
+            } else {
+                mFreeCount[aIdx].incrementAndGet();
+                mFree[aIdx].offer(lBuffer);
+            }
+        }
+        return lFirst;
+    }
+
+    /**
+     * Checks whether the passed buffer has been carved out of the slab. Is
+     * lock free and does not allocate.
+     */
+    private boolean isSlabBuffer(ByteBuffer aBuffer) {
+        Object lEntry = mSlabBuffers.get(System.identityHashCode(aBuffer));
+        if (lEntry == aBuffer) {
+            return true;
+        }
+        if (lEntry instanceof ByteBuffer[]) {
+            for (ByteBuffer lBuffer : (ByteBuffer[]) lEntry) {
+                if (lBuffer == aBuffer) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void addSlabBuffer(ByteBuffer aBuffer) {
+        int lHash = System.identityHashCode(aBuffer);
+        synchronized (mSlabBuffers) {
+            Object lEntry = mSlabBuffers.get(lHash);
+            if (null == lEntry) {
+                mSlabBuffers.put(lHash, aBuffer);
+            } else if (lEntry instanceof ByteBuffer[]) {
+                ByteBuffer[] lBuffers = (ByteBuffer[]) lEntry;
+                ByteBuffer[] lNew = new ByteBuffer[lBuffers.length + 1];
+                System.arraycopy(lBuffers, 0, lNew, 0, lBuffers.length);
+                lNew[lBuffers.length] = aBuffer;
+                mSlabBuffers.put(lHash, lNew);
+            } else {
+                mSlabBuffers.put(lHash, new ByteBuffer[]{(ByteBuffer) lEntry, aBuffer});
+            }
+        }
+    }
+
+    private ByteBuffer getSlab() {
+        ByteBuffer lSlab = mSlab;
+        if (null == lSlab) {
+            synchronized (this) {
+                lSlab = mSlab;
+                if (null == lSlab) {
+                    lSlab = ByteBuffer.allocateDirect(mPageCount * mPageSize);
+                    mSlab = lSlab;
+                }
+            }
+        }
+        return lSlab;
+    }
+
+    @Override
+    public BufferPoolStats getStats() {
+        return new BufferPoolStats(
+                (null != mSlab ? (long) mPageCount * mPageSize : 0),
+                mUsedBytes.get(), mAllocations.get(), mFrees.get(),
+                mThreadCacheHits.get(), mPoolHits.get(), mUnpooledAllocations.get());
+    }
+
+    /**
+     * Returns the size of the slab in bytes.
+     *
+     * @return
+     */
+    public int getPoolSize() {
+        return mPageCount * mPageSize;
+    }
+
+    /**
+     * Returns the capacity of the largest size class.
+     *
+     * @return
+     */
+    public int getMaxCapacity() {
+        return mPageSize;
+    }
+
+    /**
+     * Returns the maximum number of buffers per size class in the cache of
+     * a thread.
+     *
+     * @return
+     */
+    public int getMaxCachedPerThread() {
+        return mMaxCachedPerThread;
+    }
+
+    /**
+     * Free buffers of one thread, not thread safe. The cache is accessed by
+     * its owner only, and by the reclaiming thread after the owner has
+     * terminated.
+     */
+    private static class ThreadCache {
+
+        private final ArrayDeque<ByteBuffer>[] mBuffers;
+        private final int mMaxCached;
+        private final WeakReference<Thread> mOwner;
+
+        @SuppressWarnings("unchecked")
+        ThreadCache(int aClasses, int aMaxCached) {
+            mBuffers = new ArrayDeque[aClasses];
+            mMaxCached = aMaxCached;
+            mOwner = new WeakReference<Thread>(Thread.currentThread());
+        }
+
+        boolean isOwnerAlive() {
+            Thread lOwner = mOwner.get();
+            return null != lOwner && lOwner.isAlive();
+        }
+
+        ByteBuffer poll(int aIdx) {
+            ArrayDeque<ByteBuffer> lBuffers = mBuffers[aIdx];
+            return (null != lBuffers ? lBuffers.pollLast() : null);
+        }
+
+        boolean offer(int aIdx, ByteBuffer aBuffer) {
+            ArrayDeque<ByteBuffer> lBuffers = mBuffers[aIdx];
+            if (null == lBuffers) {
+                lBuffers = new ArrayDeque<ByteBuffer>(mMaxCached);
+                mBuffers[aIdx] = lBuffers;
+            }
+            if (lBuffers.size() >= mMaxCached) {
+                return false;
+            }
+            lBuffers.addLast(aBuffer);
+            return true;
+        }
+    }
+}
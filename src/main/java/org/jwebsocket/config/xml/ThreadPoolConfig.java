@@ -14,6 +14,7 @@
 // ---------------------------------------------------------------------------
 package org.jwebsocket.config.xml;
 
+import org.jwebsocket.async.OverflowPolicy;
 import org.jwebsocket.config.Config;
 import org.jwebsocket.kit.WebSocketRuntimeException;
 
@@ -28,6 +29,19 @@ public class ThreadPoolConfig implements Config {
   private int maximumPoolSize = 100;
   private int keepAliveTime = 60;
   private int blockingQueueSize = 1000;
+  /**
+   * Executor mode: a classic pool of platform threads.
+   */
+  public static final String MODE_PLATFORM = "platform";
+  /**
+   * Executor mode: one virtual thread per task, limited by
+   * <tt>maxConcurrency</tt>. Falls back to the platform pool if the JVM does
+   * not support virtual threads.
+   */
+  public static final String MODE_VIRTUAL = "virtual";
+  private String mode = MODE_PLATFORM;
+  private int maxConcurrency = 10000;
+  private String overflowPolicy = OverflowPolicy.CALLER_RUNS.getName();
 
   public ThreadPoolConfig(int aCorePoolSize, int aMaximumPoolSize, int aKeepAliveTime, int aBlockingQueueSize) {
       this.corePoolSize = aCorePoolSize;
@@ -35,6 +49,25 @@ public class ThreadPoolConfig implements Config {
       this.keepAliveTime = aKeepAliveTime ;
       this.blockingQueueSize = aBlockingQueueSize ;
   }
+
+  public ThreadPoolConfig(int aCorePoolSize, int aMaximumPoolSize, int aKeepAliveTime, int aBlockingQueueSize,
+          String aMode, int aMaxConcurrency) {
+      this(aCorePoolSize, aMaximumPoolSize, aKeepAliveTime, aBlockingQueueSize);
+      if (aMode != null && aMode.trim().length() > 0) {
+          this.mode = aMode.trim().toLowerCase();
+      }
+      if (aMaxConcurrency > 0) {
+          this.maxConcurrency = aMaxConcurrency;
+      }
+  }
+
+  public ThreadPoolConfig(int aCorePoolSize, int aMaximumPoolSize, int aKeepAliveTime, int aBlockingQueueSize,
+          String aMode, int aMaxConcurrency, String aOverflowPolicy) {
+      this(aCorePoolSize, aMaximumPoolSize, aKeepAliveTime, aBlockingQueueSize, aMode, aMaxConcurrency);
+      if (aOverflowPolicy != null && aOverflowPolicy.trim().length() > 0) {
+          this.overflowPolicy = aOverflowPolicy.trim();
+      }
+  }
   public ThreadPoolConfig() {
   }
 
@@ -44,6 +77,16 @@ public class ThreadPoolConfig implements Config {
                 && (maximumPoolSize > 0)
                 && (keepAliveTime > 0)
                 && (blockingQueueSize > 0)) {
+            if (!MODE_PLATFORM.equals(mode) && !MODE_VIRTUAL.equals(mode)) {
+                throw new WebSocketRuntimeException(
+                        "Invalid thread pool mode '" + mode + "', "
+                        + "please check your configuration file");
+            }
+            if (OverflowPolicy.fromName(overflowPolicy) == null) {
+                throw new WebSocketRuntimeException(
+                        "Invalid thread pool overflow policy '" + overflowPolicy + "', "
+                        + "please check your configuration file");
+            }
             return;
         }
         throw new WebSocketRuntimeException(
@@ -66,4 +109,27 @@ public class ThreadPoolConfig implements Config {
         return blockingQueueSize;
     }
 
+    /**
+     * @return the executor mode, {@link #MODE_PLATFORM} or {@link #MODE_VIRTUAL}
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the maximum number of tasks running concurrently in virtual mode
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @return what the server work queue does with new tasks if
+     * <tt>blockingQueueSize</tt> tasks are pending, see {@link OverflowPolicy}
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        OverflowPolicy lPolicy = OverflowPolicy.fromName(overflowPolicy);
+        return (lPolicy != null ? lPolicy : OverflowPolicy.CALLER_RUNS);
+    }
+
 }
@@ -30,6 +30,9 @@ public class ThreadPoolConfigHandler implements ConfigHandler {
     private static final String MAXIMUM_POOL_SIZE = "maximumPoolSize";
     private static final String KEEP_ALIVE_TIME = "keepAliveTime";
     private static final String BLOCKING_QUEUE_SIZE = "blockingQueueSize";
+    private static final String MODE = "mode";
+    private static final String MAX_CONCURRENCY = "maxConcurrency";
+    private static final String OVERFLOW_POLICY = "overflowPolicy";
     private static final String ELEMENT_THREAD_POOL = "threadPool";    
     /**
      * {@inheritDoc}
@@ -37,6 +40,8 @@ public class ThreadPoolConfigHandler implements ConfigHandler {
     @Override
     public Config processConfig(XMLStreamReader streamReader) throws XMLStreamException {      
         int corePoolSize = 0, maximumPoolSize = 0, keepAliveTime = 0, blockingQueueSize = 0;
+        int maxConcurrency = 0;
+        String mode = null, overflowPolicy = null;
         while (streamReader.hasNext()) {
             streamReader.next();
             if (streamReader.isStartElement()) {
@@ -65,6 +70,18 @@ public class ThreadPoolConfigHandler implements ConfigHandler {
                         blockingQueueSize = Integer.valueOf(streamReader.getText());
                     } catch (NumberFormatException e) {
                     }
+                } else if (elementName.equals(MODE)) {
+                    streamReader.next();
+                    mode = streamReader.getText();
+                } else if (elementName.equals(OVERFLOW_POLICY)) {
+                    streamReader.next();
+                    overflowPolicy = streamReader.getText();
+                } else if (elementName.equals(MAX_CONCURRENCY)) {
+                    streamReader.next();
+                    try {
+                        maxConcurrency = Integer.valueOf(streamReader.getText());
+                    } catch (NumberFormatException e) {
+                    }
                 } else {
                     //ignore
                 }
@@ -76,7 +93,8 @@ public class ThreadPoolConfigHandler implements ConfigHandler {
                 }
             }
         }
-        return new ThreadPoolConfig(corePoolSize, maximumPoolSize, keepAliveTime, blockingQueueSize);
+        return new ThreadPoolConfig(corePoolSize, maximumPoolSize, keepAliveTime, blockingQueueSize,
+                mode, maxConcurrency, overflowPolicy);
     }
 
 }
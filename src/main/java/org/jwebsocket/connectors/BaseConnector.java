@@ -15,17 +15,50 @@
 //    ---------------------------------------------------------------------------
 package org.jwebsocket.connectors;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import javolution.util.FastMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.jwebsocket.api.BufferPoolProvider;
+import org.jwebsocket.api.ConflatingConnector;
+import org.jwebsocket.api.EncodedPacketConnector;
+import org.jwebsocket.api.FragmentHandler;
+import org.jwebsocket.api.LongIdConnector;
+import org.jwebsocket.api.OutboundPriority;
+import org.jwebsocket.api.PrioritizedConnector;
+import org.jwebsocket.api.StreamingConnector;
 import org.jwebsocket.api.WebSocketConnector;
 import org.jwebsocket.api.WebSocketConnectorStatus;
 import org.jwebsocket.api.WebSocketEngine;
 import org.jwebsocket.api.WebSocketPacket;
+import org.jwebsocket.api.WebSocketServer;
+import org.jwebsocket.async.DefaultIOFuture;
 import org.jwebsocket.async.IOFuture;
+import org.jwebsocket.broadcast.EncodedPacket;
+import org.jwebsocket.buffer.BufferAllocator;
+import org.jwebsocket.buffer.BufferPacket;
+import org.jwebsocket.buffer.DirectBufferPool;
+import org.jwebsocket.buffer.ReferenceCountUtils;
 import org.jwebsocket.config.JWebSocketCommonConstants;
 import org.jwebsocket.config.JWebSocketConfig;
+import org.jwebsocket.engines.BaseEngine;
 import org.jwebsocket.kit.*;
+import org.jwebsocket.logging.Logging;
+import org.jwebsocket.server.BaseServer;
 
 /**
  * Provides the basic implementation of the jWebSocket connectors. The
@@ -35,7 +68,9 @@ import org.jwebsocket.kit.*;
  * 
  * @author aschulze
  */
-public class BaseConnector implements WebSocketConnector {
+public class BaseConnector implements WebSocketConnector, EncodedPacketConnector,
+        LongIdConnector, ConflatingConnector, PrioritizedConnector,
+        StreamingConnector {
 
     /**
      * Default reserved name for shared custom variable <tt>username</tt>.
@@ -53,6 +88,54 @@ public class BaseConnector implements WebSocketConnector {
      * Default name for shared custom variable <tt>nodeid</tt>.
      */
     public final static String VAR_NODEID = "$nodeid";
+    /**
+     * Name of the engine setting for the byte budget of coalesced writes.
+     */
+    public final static String SETTING_BATCH_BYTES = "outbound_batch_bytes";
+    /**
+     * Name of the engine setting for the latency budget of coalesced writes
+     * in milliseconds.
+     */
+    public final static String SETTING_BATCH_DELAY = "outbound_batch_delay";
+    /**
+     * Name of the engine setting for the high watermark of the outbound
+     * queue in bytes.
+     */
+    public final static String SETTING_HIGH_WATERMARK_BYTES = "outbound_high_watermark_bytes";
+    /**
+     * Name of the engine setting for the low watermark of the outbound queue
+     * in bytes.
+     */
+    public final static String SETTING_LOW_WATERMARK_BYTES = "outbound_low_watermark_bytes";
+    /**
+     * Name of the engine setting for the high watermark of the outbound
+     * queue in packets.
+     */
+    public final static String SETTING_HIGH_WATERMARK_PACKETS = "outbound_high_watermark_packets";
+    /**
+     * Name of the engine setting for the low watermark of the outbound queue
+     * in packets.
+     */
+    public final static String SETTING_LOW_WATERMARK_PACKETS = "outbound_low_watermark_packets";
+    /**
+     * Name of the engine setting for the {@link SlowConsumerPolicy}.
+     */
+    public final static String SETTING_SLOW_CONSUMER_POLICY = "slow_consumer_policy";
+    /**
+     * Name of the engine setting for the maximum number of queued fragments
+     * of a streamed message.
+     */
+    public final static String SETTING_STREAM_WINDOW = "stream_window";
+    /**
+     * Default maximum number of queued fragments of a streamed message.
+     */
+    public final static int DEFAULT_STREAM_WINDOW = 4;
+    /**
+     * Maximum payload size of the fragments of a streamed message, smaller
+     * if the maximum frame size of the engine is smaller.
+     */
+    public final static int MAX_FRAGMENT_SIZE = 64 * 1024;
+    private static Logger mLog = Logging.getLogger();
     /**
      * Is connector using SSL encryption?
      */
@@ -81,10 +164,73 @@ public class BaseConnector implements WebSocketConnector {
     /**
      * Shared Variables container for this connector.
      */
-    private final Map<String, Object> mCustomVars = new FastMap<String, Object>();
+    private final ConnectorVars mCustomVars = new ConnectorVars();
 
     private final Object mWriteLock = new Object();
     private final Object mReadLock = new Object();
+    /**
+     * Registries which maintain indexes on the shared variables of this
+     * connector, usually one per server.
+     */
+    private volatile ConnectorRegistry[] mRegistries = new ConnectorRegistry[0];
+    /**
+     * Has the invalid watermark configuration already been reported?
+     */
+    private static final AtomicBoolean mWatermarksWarned = new AtomicBoolean(false);
+    /**
+     * Packets to be sent asynchronously.
+     */
+    private final OutboundQueue mOutboundQueue = new OutboundQueue(this);
+    /**
+     * Byte budget of a coalesced write, 0 disables coalescing.
+     */
+    private volatile int mMaxBatchBytes = 0;
+    /**
+     * Latency budget of a coalesced write in milliseconds.
+     */
+    private volatile long mMaxBatchDelay = 0;
+    /**
+     * Watermarks of the outbound queue, 0 means unlimited.
+     */
+    private volatile int mHighWatermarkBytes = 0;
+    private volatile int mLowWatermarkBytes = 0;
+    private volatile int mHighWatermarkPackets = 0;
+    private volatile int mLowWatermarkPackets = 0;
+    private volatile SlowConsumerPolicy mSlowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+    /**
+     * Is the outbound queue below its high watermark?
+     */
+    private final AtomicBoolean mWritable = new AtomicBoolean(true);
+    private volatile WritabilityListener[] mWritabilityListeners = new WritabilityListener[0];
+    /**
+     * Are pending packets replaced by newer ones with the same conflation key?
+     */
+    private volatile boolean mConflating = false;
+    /**
+     * Is a streamed message being sent?
+     */
+    private final AtomicBoolean mStreamActive = new AtomicBoolean(false);
+    /**
+     * Number of packets currently written past the outbound queue, see
+     * {@link #beginDirectWrite()}.
+     */
+    private final AtomicInteger mDirectWrites = new AtomicInteger(0);
+    /**
+     * Thread which currently writes a packet of the outbound queue via
+     * {@link #writeOutbound(OutboundPacket)}.
+     */
+    private volatile Thread mOutboundWriter = null;
+    private volatile FragmentHandler mFragmentHandler = null;
+    /**
+     * Incoming fragmented message assembled if no fragment handler is set,
+     * confined to the reading thread.
+     */
+    private ByteArrayOutputStream mAssembly = null;
+    private WebSocketFrameType mAssemblyType = null;
+    /**
+     * Is reading from this connector paused due to backpressure?
+     */
+    private volatile boolean mReadingPaused = false;
 
     /**
      *
@@ -92,6 +238,76 @@ public class BaseConnector implements WebSocketConnector {
      */
     public BaseConnector(WebSocketEngine aEngine) {
         mEngine = aEngine;
+        mMaxBatchBytes = getIntSetting(aEngine, SETTING_BATCH_BYTES, 0);
+        mMaxBatchDelay = getIntSetting(aEngine, SETTING_BATCH_DELAY, 0);
+        int lHigh = getIntSetting(aEngine, SETTING_HIGH_WATERMARK_BYTES, 0);
+        int lLow = getIntSetting(aEngine, SETTING_LOW_WATERMARK_BYTES, lHigh / 2);
+        int lHighPackets = getIntSetting(aEngine, SETTING_HIGH_WATERMARK_PACKETS, 0);
+        int lLowPackets = getIntSetting(aEngine, SETTING_LOW_WATERMARK_PACKETS, lHighPackets / 2);
+        if (lLow > lHigh || lLowPackets > lHighPackets) {
+            if (mWatermarksWarned.compareAndSet(false, true)) {
+                mLog.warn("Low outbound watermarks exceed the high watermarks,"
+                        + " using half of the high watermarks instead.");
+            }
+            if (lLow > lHigh) {
+                lLow = lHigh / 2;
+            }
+            if (lLowPackets > lHighPackets) {
+                lLowPackets = lHighPackets / 2;
+            }
+        }
+        setOutboundWatermarks(lHigh, lLow, lHighPackets, lLowPackets);
+        SlowConsumerPolicy lPolicy = SlowConsumerPolicy.fromName(
+                getStringSetting(aEngine, SETTING_SLOW_CONSUMER_POLICY));
+        if (null != lPolicy) {
+            mSlowConsumerPolicy = lPolicy;
+        }
+    }
+
+    private static Object getSetting(WebSocketEngine aEngine, String aKey) {
+        try {
+            return aEngine.getConfiguration().getSettings().get(aKey);
+        } catch (RuntimeException lEx) {
+            // no engine or no settings given
+            return null;
+        }
+    }
+
+    /**
+     * Returns a string setting of the configuration of the engine.
+     *
+     * @param aEngine
+     * @param aKey
+     * @return the value of the setting or <tt>null</tt> if the setting is
+     * not given
+     */
+    protected static String getStringSetting(WebSocketEngine aEngine, String aKey) {
+        Object lValue = getSetting(aEngine, aKey);
+        return (null != lValue ? lValue.toString() : null);
+    }
+
+    /**
+     * Returns an integer setting of the configuration of the engine.
+     *
+     * @param aEngine
+     * @param aKey
+     * @param aDefault
+     * @return the value of the setting or the default if the setting is not
+     * given or invalid
+     */
+    protected static int getIntSetting(WebSocketEngine aEngine, String aKey, int aDefault) {
+        Object lValue = getSetting(aEngine, aKey);
+        if (lValue instanceof Number) {
+            return ((Number) lValue).intValue();
+        }
+        if (lValue instanceof String) {
+            try {
+                return Integer.parseInt(((String) lValue).trim());
+            } catch (NumberFormatException lEx) {
+                mLog.warn("Invalid value '" + lValue + "' for engine setting '" + aKey + "'.");
+            }
+        }
+        return aDefault;
     }
 
     @Override
@@ -106,6 +322,7 @@ public class BaseConnector implements WebSocketConnector {
         if (mEngine != null) {
             mEngine.connectorStopped(this, aCloseReason);
         }
+        failOutbound(new ClosedChannelException());
     }
 
     /**
@@ -148,6 +365,48 @@ public class BaseConnector implements WebSocketConnector {
         return mReadLock;
     }
     
+    /**
+     * Pauses reading from this connector, e.g. because the server cannot keep
+     * up with processing the incoming packets. Connector implementations are
+     * supposed to stop reading from the underlying connection while paused,
+     * either by checking {@link #isReadingPaused()} or by overriding
+     * {@link #processReadingPaused(boolean)}.
+     */
+    public void pauseReading() {
+        if (!mReadingPaused) {
+            mReadingPaused = true;
+            processReadingPaused(true);
+        }
+    }
+
+    /**
+     * Resumes reading from this connector after {@link #pauseReading()}.
+     */
+    public void resumeReading() {
+        if (mReadingPaused) {
+            mReadingPaused = false;
+            processReadingPaused(false);
+        }
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if reading from this connector is paused
+     */
+    public boolean isReadingPaused() {
+        return mReadingPaused;
+    }
+
+    /**
+     * Is called when reading from this connector is paused or resumed. This
+     * is supposed to be overwritten by the connector implementations, e.g.
+     * to toggle the interest in read events of the underlying channel.
+     *
+     * @param aPaused
+     */
+    protected void processReadingPaused(boolean aPaused) {
+    }
+
     @Override
     public void processPacket(WebSocketPacket aDataPacket) {
         if (mEngine != null) {
@@ -155,6 +414,216 @@ public class BaseConnector implements WebSocketConnector {
         }
     }
 
+    /**
+     * Is called by the engine for each frame of an incoming fragmented
+     * message. Like with {@link #processPacket(WebSocketPacket)} the engine
+     * hands over its reference to the fragment. Fragments exceeding the
+     * maximum frame size of the engine close the connector, as do assembled
+     * messages exceeding it.
+     *
+     * If a {@link FragmentHandler} is set the fragments are passed to it
+     * incrementally, if the handler returns <tt>false</tt> reading is paused
+     * until it calls {@link #resumeReading()}. Without handler the fragments
+     * are assembled and the complete message is passed to
+     * {@link #processPacket(WebSocketPacket)}.
+     *
+     * @param aFragment
+     */
+    public void processFragment(WebSocketPacket aFragment) {
+        try {
+            int lMaxFrameSize = getMaxFrameSize();
+            if (lMaxFrameSize > 0 && aFragment.size() > lMaxFrameSize) {
+                mLog.warn("Fragment of " + aFragment.size() + " bytes exceeds maximum frame size of "
+                        + lMaxFrameSize + " bytes, closing connector '" + getId() + "'.");
+                stopConnector(CloseReason.SERVER);
+                return;
+            }
+            boolean lLast = !aFragment.isFragmented();
+            FragmentHandler lHandler = mFragmentHandler;
+            if (null != lHandler) {
+                if (!lHandler.processFragment(this, aFragment, lLast)) {
+                    pauseReading();
+                }
+                return;
+            }
+            if (null == mAssembly) {
+                mAssembly = new ByteArrayOutputStream();
+                mAssemblyType = aFragment.getFrameType();
+            }
+            if (lMaxFrameSize > 0 && mAssembly.size() + aFragment.size() > lMaxFrameSize) {
+                mLog.warn("Fragmented message exceeds maximum frame size of "
+                        + lMaxFrameSize + " bytes, closing connector '" + getId() + "'.");
+                mAssembly = null;
+                stopConnector(CloseReason.SERVER);
+                return;
+            }
+            byte[] lBytes = aFragment.getByteArray();
+            mAssembly.write(lBytes, 0, lBytes.length);
+            if (lLast) {
+                RawPacket lMessage = new RawPacket(mAssembly.toByteArray());
+                lMessage.setFrameType(mAssemblyType);
+                mAssembly = null;
+                processPacket(lMessage);
+            }
+        } finally {
+            ReferenceCountUtils.release(aFragment);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setFragmentHandler(FragmentHandler aHandler) {
+        mFragmentHandler = aHandler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FragmentHandler getFragmentHandler() {
+        return mFragmentHandler;
+    }
+
+    /**
+     * Returns the maximum frame size of the engine in bytes or <tt>0</tt> if
+     * not configured.
+     *
+     * @return
+     */
+    protected int getMaxFrameSize() {
+        try {
+            return mEngine.getConfiguration().getMaxFramesize();
+        } catch (RuntimeException lEx) {
+            // no engine or no configuration given
+            return 0;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The fragments do not exceed the maximum frame size of the engine, at
+     * most <tt>stream_window</tt> fragments are queued at a time and no
+     * fragment is queued while the connector is unwritable. Other packets
+     * sent meanwhile are queued behind the last fragment, control frames
+     * may be written in between. This applies to packets sent by
+     * {@link #sendPacket(WebSocketPacket)} as well, as long as the engine
+     * connector writes them within {@link #beginDirectWrite()} and
+     * {@link #endDirectWrite()}.
+     *
+     * The channel is read by the calling thread and by the threads which
+     * complete the writes, it is supposed to be blocking and is not closed.
+     * Only one message at a time can be streamed per connector.
+     *
+     * @return the future of the complete message, which reports the
+     * progress to {@link org.jwebsocket.async.IOFutureProgressListener}s
+     */
+    @Override
+    public IOFuture sendStream(ReadableByteChannel aSource, WebSocketFrameType aFrameType) {
+        if (!WebSocketProtocolAbstraction.isHybiVersion(getVersion())) {
+            DefaultIOFuture lFuture = new DefaultIOFuture(this);
+            lFuture.setFailure(new UnsupportedOperationException("Connector '" + getId()
+                    + "' does not support fragmented messages."));
+            return lFuture;
+        }
+        if (!mStreamActive.compareAndSet(false, true)) {
+            DefaultIOFuture lFuture = new DefaultIOFuture(this);
+            lFuture.setFailure(new IllegalStateException("Connector '" + getId()
+                    + "' is already streaming a message."));
+            return lFuture;
+        }
+        // direct writes which started before the stream must not overlap
+        // with its fragments, later ones are queued
+        while (mDirectWrites.get() > 0) {
+            Thread.yield();
+        }
+        int lFragmentSize = getMaxFrameSize();
+        if (lFragmentSize <= 0 || lFragmentSize > MAX_FRAGMENT_SIZE) {
+            lFragmentSize = MAX_FRAGMENT_SIZE;
+        }
+        int lWindow = Math.max(1, getIntSetting(mEngine, SETTING_STREAM_WINDOW, DEFAULT_STREAM_WINDOW));
+        return new OutboundStream(this, aSource, aFrameType, getBufferAllocator(),
+                lFragmentSize, lWindow).start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IOFuture sendStream(InputStream aSource, WebSocketFrameType aFrameType) {
+        return sendStream(Channels.newChannel(aSource), aFrameType);
+    }
+
+    /**
+     * Is called by the {@link OutboundStream} when the message has been sent
+     * or the stream failed.
+     */
+    void streamFinished() {
+        mStreamActive.set(false);
+    }
+
+    /**
+     * Is called before a packet is written past the outbound queue, e.g. by
+     * an engine connector in {@link #sendPacket(WebSocketPacket)}. While a
+     * streamed message is in flight a packet must not be written between
+     * its fragments, then <tt>false</tt> is returned and the caller is
+     * supposed to queue the packet by {@link #sendPacketAsync(WebSocketPacket)}
+     * instead of writing it. Otherwise the caller writes the packet and
+     * calls {@link #endDirectWrite()} afterwards. Packets of the outbound
+     * queue itself are always written directly.
+     *
+     * @return <tt>true</tt> if the packet may be written directly
+     */
+    protected boolean beginDirectWrite() {
+        if (Thread.currentThread() == mOutboundWriter) {
+            return true;
+        }
+        mDirectWrites.incrementAndGet();
+        if (mStreamActive.get()) {
+            mDirectWrites.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Is called after a packet has been written past the outbound queue, see
+     * {@link #beginDirectWrite()}.
+     */
+    protected void endDirectWrite() {
+        if (Thread.currentThread() != mOutboundWriter) {
+            mDirectWrites.decrementAndGet();
+        }
+    }
+
+    /**
+     * Queues a fragment of a streamed message. The first fragment is queued
+     * in the normal lane, the continuation fragments follow it exclusively.
+     * Fragments are not subject to the slow consumer policy, the stream
+     * limits the number of queued fragments itself.
+     */
+    IOFuture queueFragment(BufferPacket aFragment, boolean aFirst) {
+        DefaultIOFuture lFuture = new DefaultIOFuture(this);
+        OutboundPacket lPacket = new OutboundPacket(aFragment, lFuture, null,
+                OutboundPriority.NORMAL);
+        if (aFirst) {
+            lPacket.markStreamHead();
+            mOutboundQueue.offer(lPacket);
+        } else {
+            mOutboundQueue.offerFragment(lPacket);
+        }
+        processOutboundQueued();
+        return lFuture;
+    }
+
+    private BufferAllocator getBufferAllocator() {
+        BufferAllocator lAllocator = (mEngine instanceof BufferPoolProvider
+                ? ((BufferPoolProvider) mEngine).getBufferPool() : null);
+        return (null != lAllocator ? lAllocator : DefaultAllocator.INSTANCE);
+    }
+
     @Override
     public void processPing(WebSocketPacket aDataPacket) {
         /*
@@ -177,15 +646,669 @@ public class BaseConnector implements WebSocketConnector {
     public void sendPacketInTransaction(WebSocketPacket aDataPacket) throws WebSocketException {
     }
 
+    /**
+     * {@inheritDoc }
+     *
+     * Engine connectors which write the packet directly are supposed to do
+     * so within {@link #beginDirectWrite()} and {@link #endDirectWrite()},
+     * such that the packet is not written between the fragments of a
+     * streamed message.
+     */
     @Override
     public void sendPacket(WebSocketPacket aDataPacket) {
     }
 
+    /**
+     * Queues the packet for sending and returns immediately with the future
+     * of the send operation. The packets are sent in the order of the calls.
+     * After queuing {@link #processOutboundQueued()} is called, which drains
+     * the queue on the calling thread unless an engine overrides it.
+     *
+     * If the packet would exceed a high watermark of the outbound queue the
+     * connector becomes unwritable and the {@link SlowConsumerPolicy} is
+     * applied.
+     *
+     * @param aDataPacket
+     * @return the future of the send operation
+     */
     @Override
     public IOFuture sendPacketAsync(WebSocketPacket aDataPacket) {
+        return queueOutbound(aDataPacket, null, null, OutboundPriority.of(aDataPacket));
+    }
+
+    /**
+     * {@inheritDoc }
+     *
+     * The queued packet is written from the shared frame of the encoded
+     * packet by gathering writes, see {@link #encodeOutbound}.
+     */
+    @Override
+    public IOFuture sendEncodedPacketAsync(EncodedPacket aPacket) {
+        WebSocketPacket lPacket = aPacket.getPacket(this);
+        return queueOutbound(lPacket, aPacket, null, OutboundPriority.of(lPacket));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IOFuture sendPacketAsync(WebSocketPacket aDataPacket, String aConflationKey) {
+        return queueOutbound(aDataPacket, null, aConflationKey, OutboundPriority.of(aDataPacket));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IOFuture sendPacketAsync(WebSocketPacket aDataPacket, OutboundPriority aPriority) {
+        return queueOutbound(aDataPacket, null, null, aPriority);
+    }
+
+    private IOFuture queueOutbound(WebSocketPacket aDataPacket, EncodedPacket aEncoded,
+            String aConflationKey, OutboundPriority aPriority) {
+        boolean lClose = (WebSocketFrameType.CLOSE == aDataPacket.getFrameType());
+        if (lClose) {
+            // a close frame must not overtake queued data frames, neither
+            // must it interrupt a streamed message
+            aPriority = OutboundPriority.NORMAL;
+        }
+        DefaultIOFuture lFuture = new DefaultIOFuture(this);
+        OutboundPacket lPacket = new OutboundPacket(aDataPacket, aEncoded, lFuture,
+                mConflating ? aConflationKey : null, aPriority);
+        if (mOutboundQueue.replace(lPacket)) {
+            processOutboundQueued();
+            return lFuture;
+        }
+        if (OutboundPriority.CONTROL != aPriority && !lClose
+                && exceedsHighWatermark(lPacket)) {
+            setWritable(false);
+            SlowConsumerPolicy lPolicy = mSlowConsumerPolicy;
+            if (SlowConsumerPolicy.CONFLATE == lPolicy) {
+                mOutboundQueue.offer(lPacket);
+                conflateOutbound(lPacket);
+            } else {
+                lFuture.setFailure(new WebSocketRuntimeException("Outbound queue of connector '"
+                        + getId() + "' exceeds its high watermark, packet dropped."));
+                if (SlowConsumerPolicy.DISCONNECT == lPolicy) {
+                    if (mLog.isDebugEnabled()) {
+                        mLog.debug("Disconnecting slow consumer '" + getId() + "'...");
+                    }
+                    stopConnector(CloseReason.SERVER);
+                }
+                return lFuture;
+            }
+        } else {
+            mOutboundQueue.offer(lPacket);
+        }
+        processOutboundQueued();
+        return lFuture;
+    }
+
+    private boolean exceedsHighWatermark(OutboundPacket aPacket) {
+        int lHighBytes = mHighWatermarkBytes;
+        int lHighPackets = mHighWatermarkPackets;
+        return (lHighBytes > 0
+                && mOutboundQueue.getByteSize() + aPacket.getSize() > lHighBytes)
+                || (lHighPackets > 0 && mOutboundQueue.size() + 1 > lHighPackets);
+    }
+
+    private boolean isBelowLowWatermark() {
+        return (mHighWatermarkBytes <= 0 || mOutboundQueue.getByteSize() <= mLowWatermarkBytes)
+                && (mHighWatermarkPackets <= 0 || mOutboundQueue.size() <= mLowWatermarkPackets);
+    }
+
+    /**
+     * Discards the oldest queued packets of the same priority in favour of
+     * the given most recent one until the queue is back at its low watermark.
+     */
+    private void conflateOutbound(OutboundPacket aRecent) {
+        OutboundPacket lOldest;
+        while (!isBelowLowWatermark()
+                && (lOldest = mOutboundQueue.peek(aRecent.getPriority())) != null
+                && lOldest != aRecent) {
+            if (mOutboundQueue.remove(lOldest)) {
+                lOldest.setFailure(new WebSocketRuntimeException(
+                        "Packet conflated due to slow consumer."));
+            }
+        }
+    }
+
+    /**
+     * Makes the connector writable again if the outbound queue has drained
+     * below its low watermarks. This is called whenever packets are taken
+     * from the outbound queue, also by engines which drain the queue by
+     * themselves.
+     */
+    protected void checkWritable() {
+        if (!mWritable.get() && isBelowLowWatermark()) {
+            setWritable(true);
+        }
+    }
+
+    private void setWritable(boolean aWritable) {
+        if (!mWritable.compareAndSet(!aWritable, aWritable)) {
+            return;
+        }
+        try {
+            for (WritabilityListener lListener : mWritabilityListeners) {
+                lListener.processWritabilityChanged(this, aWritable);
+            }
+            if (mEngine instanceof BaseEngine) {
+                ((BaseEngine) mEngine).processWritabilityChanged(this, aWritable);
+            }
+        } catch (RuntimeException lEx) {
+            mLog.error(lEx.getClass().getSimpleName() + " in writability listener: "
+                    + lEx.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setConflating(boolean aConflating) {
+        mConflating = aConflating;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isConflating() {
+        return mConflating;
+    }
+
+    /**
+     * Returns <tt>false</tt> if the outbound queue has exceeded a high
+     * watermark and has not yet drained below the low watermarks.
+     *
+     * @return
+     */
+    public boolean isWritable() {
+        return mWritable.get();
+    }
+
+    /**
+     * Sets the watermarks of the outbound queue. If a high watermark is
+     * exceeded the connector becomes unwritable, if the queue drains below
+     * all low watermarks it becomes writable again. A high watermark of
+     * <tt>0</tt> means unlimited.
+     *
+     * @param aHighBytes
+     * @param aLowBytes
+     * @param aHighPackets
+     * @param aLowPackets
+     */
+    public void setOutboundWatermarks(int aHighBytes, int aLowBytes,
+            int aHighPackets, int aLowPackets) {
+        if (aLowBytes > aHighBytes || aLowPackets > aHighPackets) {
+            throw new IllegalArgumentException("Low watermarks must not exceed the high watermarks.");
+        }
+        mHighWatermarkBytes = aHighBytes;
+        mLowWatermarkBytes = aLowBytes;
+        mHighWatermarkPackets = aHighPackets;
+        mLowWatermarkPackets = aLowPackets;
+    }
+
+    /**
+     *
+     * @return the high watermark of the outbound queue in bytes
+     */
+    public int getHighWatermarkBytes() {
+        return mHighWatermarkBytes;
+    }
+
+    /**
+     *
+     * @return the low watermark of the outbound queue in bytes
+     */
+    public int getLowWatermarkBytes() {
+        return mLowWatermarkBytes;
+    }
+
+    /**
+     *
+     * @return the high watermark of the outbound queue in packets
+     */
+    public int getHighWatermarkPackets() {
+        return mHighWatermarkPackets;
+    }
+
+    /**
+     *
+     * @return the low watermark of the outbound queue in packets
+     */
+    public int getLowWatermarkPackets() {
+        return mLowWatermarkPackets;
+    }
+
+    /**
+     *
+     * @param aPolicy
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy aPolicy) {
+        mSlowConsumerPolicy = aPolicy;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return mSlowConsumerPolicy;
+    }
+
+    /**
+     * Adds a listener which is notified when this connector becomes
+     * unwritable or writable again.
+     *
+     * @param aListener
+     */
+    public synchronized void addWritabilityListener(WritabilityListener aListener) {
+        WritabilityListener[] lListeners = new WritabilityListener[mWritabilityListeners.length + 1];
+        System.arraycopy(mWritabilityListeners, 0, lListeners, 0, mWritabilityListeners.length);
+        lListeners[mWritabilityListeners.length] = aListener;
+        mWritabilityListeners = lListeners;
+    }
+
+    /**
+     *
+     * @param aListener
+     */
+    public synchronized void removeWritabilityListener(WritabilityListener aListener) {
+        int lCount = 0;
+        WritabilityListener[] lListeners = new WritabilityListener[mWritabilityListeners.length];
+        for (WritabilityListener lListener : mWritabilityListeners) {
+            if (lListener != aListener) {
+                lListeners[lCount++] = lListener;
+            }
+        }
+        if (lCount < mWritabilityListeners.length) {
+            WritabilityListener[] lResult = new WritabilityListener[lCount];
+            System.arraycopy(lListeners, 0, lResult, 0, lCount);
+            mWritabilityListeners = lResult;
+        }
+    }
+
+    /**
+     * Is called after a packet has been added to the outbound queue. By
+     * default the queue is drained on the calling thread. If coalescing with
+     * a latency budget is enabled (see {@link #setMaxBatchDelay(long)}) and
+     * the queued bytes are still below the byte budget, the drain is delayed
+     * by the latency budget so that further packets join the batch, the
+     * delayed drain runs on {@link #getFlushExecutor()}. Engines
+     * which drain the queue by their own I/O threads are supposed to
+     * override this method, e.g. to register the interest in write events.
+     */
+    protected void processOutboundQueued() {
+        long lDelay = mMaxBatchDelay;
+        if (lDelay > 0 && mMaxBatchBytes > 0
+                && mOutboundQueue.getByteSize() < mMaxBatchBytes) {
+            if (mOutboundQueue.tryScheduleFlush()) {
+                FlushScheduler.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        mOutboundQueue.clearFlushScheduled();
+                        drainOutbound();
+                    }
+                }, getFlushExecutor(), lDelay);
+            }
+            return;
+        }
+        drainOutbound();
+    }
+
+    /**
+     * Returns the executor which runs the delayed drains of the outbound
+     * queue. By default this is the worker pool of the first
+     * {@code BaseServer} of the engine, <tt>null</tt> for the shared flush
+     * threads.
+     *
+     * @return
+     */
+    protected Executor getFlushExecutor() {
+        if (null != mEngine) {
+            for (WebSocketServer lServer : mEngine.getServers().values()) {
+                if (lServer instanceof BaseServer) {
+                    return ((BaseServer) lServer).getWorkerPool();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes all queued packets in the order of their queuing and completes
+     * their futures. If another thread is currently draining the queue this
+     * method returns immediately, the other thread takes care of the new
+     * packets. Cancelled packets are skipped.
+     *
+     * If coalescing is enabled (see {@link #setMaxBatchBytes(int)}) and the
+     * connector provides a gathering channel, subsequent packets are written
+     * by a single gathering write of up to the byte budget instead of one
+     * write per packet.
+     *
+     * @return the number of packets written by this call
+     */
+    public int drainOutbound() {
+        int lCount = 0;
+        while (!mOutboundQueue.isEmpty() && mOutboundQueue.tryAcquireDrain()) {
+            try {
+                int lBatchBytes = mMaxBatchBytes;
+                GatheringByteChannel lChannel = (lBatchBytes > 0 ? getGatheringChannel() : null);
+                OutboundPacket lNext = null;
+                OutboundPacket lPacket;
+                while ((lPacket = (null != lNext ? lNext : mOutboundQueue.poll())) != null) {
+                    lNext = null;
+                    if (lPacket.getFuture().isDone()) {
+                        skipOutbound(lPacket);
+                        continue;
+                    }
+                    if (null == lChannel || mOutboundQueue.isEmpty()) {
+                        lCount += writeSingle(lPacket);
+                        checkWritable();
+                        continue;
+                    }
+                    List<OutboundPacket> lBatch = new ArrayList<OutboundPacket>();
+                    lBatch.add(lPacket);
+                    long lBytes = lPacket.getSize();
+                    while (lBytes < lBatchBytes
+                            && (lPacket = mOutboundQueue.poll()) != null) {
+                        if (lPacket.getFuture().isDone()) {
+                            skipOutbound(lPacket);
+                            continue;
+                        }
+                        if (lBytes + lPacket.getSize() > lBatchBytes) {
+                            // starts the next batch
+                            lNext = lPacket;
+                            break;
+                        }
+                        lBatch.add(lPacket);
+                        lBytes += lPacket.getSize();
+                    }
+                    lCount += writeBatch(lChannel, lBatch);
+                    checkWritable();
+                }
+            } finally {
+                mOutboundQueue.releaseDrain();
+            }
+            // loop in case packets have been added after the last poll
+        }
+        return lCount;
+    }
+
+    private void skipOutbound(OutboundPacket aPacket) {
+        // the most recent packet has been cancelled, so are the ones it replaced
+        aPacket.setFailure(new CancellationException());
+    }
+
+    private int writeSingle(OutboundPacket aPacket) {
+        try {
+            writeOutbound(aPacket);
+            aPacket.setSuccess();
+            return 1;
+        } catch (RuntimeException lEx) {
+            aPacket.setFailure(lEx);
+            return 0;
+        }
+    }
+
+    private int writeBatch(GatheringByteChannel aChannel, List<OutboundPacket> aBatch) {
+        if (aBatch.size() == 1) {
+            return writeSingle(aBatch.get(0));
+        }
+        Throwable lCause = null;
+        try {
+            List<ByteBuffer> lBuffers = new ArrayList<ByteBuffer>(aBatch.size() * 2);
+            for (OutboundPacket lPacket : aBatch) {
+                encodeOutbound(lPacket, lBuffers);
+            }
+            writeGathering(aChannel, lBuffers.toArray(new ByteBuffer[lBuffers.size()]));
+        } catch (IOException lEx) {
+            lCause = lEx;
+        } catch (RuntimeException lEx) {
+            lCause = lEx;
+        }
+        for (OutboundPacket lPacket : aBatch) {
+            if (null == lCause) {
+                lPacket.setSuccess();
+            } else {
+                lPacket.setFailure(lCause);
+            }
+        }
+        return (null == lCause ? aBatch.size() : 0);
+    }
+
+    /**
+     * Writes a packet of the outbound queue. By default the packet is written
+     * by {@link #sendPacket(WebSocketPacket)}, the packets of a broadcast
+     * (see {@link OutboundPacket#getEncodedPacket()}) are written from their
+     * shared frame to the gathering channel if the connector provides one.
+     *
+     * @param aPacket
+     */
+    protected void writeOutbound(OutboundPacket aPacket) {
+        EncodedPacket lEncoded = aPacket.getEncodedPacket();
+        GatheringByteChannel lChannel = (null != lEncoded ? getGatheringChannel() : null);
+        if (null == lChannel) {
+            mOutboundWriter = Thread.currentThread();
+            try {
+                sendPacket(aPacket.getPacket());
+            } finally {
+                mOutboundWriter = null;
+            }
+            return;
+        }
+        try {
+            writeGathering(lChannel, new ByteBuffer[]{lEncoded.getFrame(this)});
+        } catch (IOException lEx) {
+            throw new WebSocketRuntimeException("Sending encoded packet to connector '"
+                    + getId() + "' failed.", lEx);
+        }
+    }
+
+    /**
+     * Returns the channel to which coalesced packets are written by a single
+     * gathering write. By default <tt>null</tt> is returned, i.e. the packets
+     * are written one by one via {@link #writeOutbound(OutboundPacket)}.
+     * Connectors based on a blocking socket channel are supposed to return
+     * their channel here.
+     *
+     * @return
+     */
+    protected GatheringByteChannel getGatheringChannel() {
         return null;
     }
 
+    /**
+     * Adds the WebSocket frame of a queued packet to the buffers of a
+     * gathering write. The payload of a {@link BufferPacket} is written from
+     * its buffer without copying it, only the frame header is created. The
+     * packets of a broadcast add the shared frame of their encoded packet.
+     *
+     * @param aPacket
+     * @param aBuffers
+     */
+    protected void encodeOutbound(OutboundPacket aPacket, List<ByteBuffer> aBuffers) {
+        EncodedPacket lEncoded = aPacket.getEncodedPacket();
+        if (null != lEncoded) {
+            aBuffers.add(lEncoded.getFrame(this));
+            return;
+        }
+        WebSocketPacket lPacket = aPacket.getPacket();
+        if (lPacket instanceof BufferPacket
+                && WebSocketProtocolAbstraction.isHybiVersion(getVersion())) {
+            ByteBuffer lPayload = ((BufferPacket) lPacket).getBuffer();
+            aBuffers.add(encodeHybiHeader(lPacket.getFrameType(),
+                    !lPacket.isFragmented(), lPayload.remaining()));
+            aBuffers.add(lPayload);
+        } else {
+            aBuffers.add(ByteBuffer.wrap(WebSocketProtocolAbstraction.rawToProtocolPacket(
+                    getVersion(), lPacket)));
+        }
+    }
+
+    /**
+     * Creates the header of an unmasked hybi frame.
+     */
+    private static ByteBuffer encodeHybiHeader(WebSocketFrameType aFrameType,
+            boolean aFinal, int aLength) {
+        int lOpcode;
+        if (null == aFrameType) {
+            lOpcode = 0x01;
+        } else {
+            switch (aFrameType) {
+                case FRAGMENT:
+                    lOpcode = 0x00;
+                    break;
+                case BINARY:
+                    lOpcode = 0x02;
+                    break;
+                case CLOSE:
+                    lOpcode = 0x08;
+                    break;
+                case PING:
+                    lOpcode = 0x09;
+                    break;
+                case PONG:
+                    lOpcode = 0x0A;
+                    break;
+                default:
+                    lOpcode = 0x01;
+            }
+        }
+        ByteBuffer lHeader = ByteBuffer.allocate(10);
+        lHeader.put((byte) (aFinal ? 0x80 | lOpcode : lOpcode));
+        if (aLength < 126) {
+            lHeader.put((byte) aLength);
+        } else if (aLength <= 0xFFFF) {
+            lHeader.put((byte) 126);
+            lHeader.putShort((short) aLength);
+        } else {
+            lHeader.put((byte) 127);
+            lHeader.putLong(aLength);
+        }
+        lHeader.flip();
+        return lHeader;
+    }
+
+    /**
+     * Writes the buffers completely by gathering writes to the channel while
+     * holding the write lock of this connector.
+     *
+     * @param aChannel
+     * @param aBuffers
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    protected long writeGathering(GatheringByteChannel aChannel, ByteBuffer[] aBuffers)
+            throws IOException {
+        long lWritten = 0;
+        int lOffset = 0;
+        synchronized (getWriteLock()) {
+            while (lOffset < aBuffers.length) {
+                lWritten += aChannel.write(aBuffers, lOffset, aBuffers.length - lOffset);
+                while (lOffset < aBuffers.length && !aBuffers[lOffset].hasRemaining()) {
+                    lOffset++;
+                }
+            }
+        }
+        return lWritten;
+    }
+
+    /**
+     * Sets the byte budget of a coalesced write. Queued packets are written
+     * by a single gathering write as long as their total size does not
+     * exceed the budget. A value of <tt>0</tt> disables coalescing.
+     *
+     * @param aMaxBatchBytes
+     */
+    public void setMaxBatchBytes(int aMaxBatchBytes) {
+        mMaxBatchBytes = aMaxBatchBytes;
+    }
+
+    /**
+     *
+     * @return the byte budget of a coalesced write
+     */
+    public int getMaxBatchBytes() {
+        return mMaxBatchBytes;
+    }
+
+    /**
+     * Sets the latency budget of a coalesced write in milliseconds. Queued
+     * packets wait up to this time for further packets to join their batch
+     * unless the byte budget is reached before. A value of <tt>0</tt> writes
+     * the packets as soon as possible.
+     *
+     * @param aMaxBatchDelay
+     */
+    public void setMaxBatchDelay(long aMaxBatchDelay) {
+        mMaxBatchDelay = aMaxBatchDelay;
+    }
+
+    /**
+     *
+     * @return the latency budget of a coalesced write in milliseconds
+     */
+    public long getMaxBatchDelay() {
+        return mMaxBatchDelay;
+    }
+
+    /**
+     * Fails the futures of all queued packets and empties the queue, e.g.
+     * when the connector has been stopped.
+     *
+     * @param aCause
+     */
+    protected void failOutbound(Throwable aCause) {
+        OutboundPacket lPacket;
+        while ((lPacket = mOutboundQueue.pollAny()) != null) {
+            lPacket.setFailure(aCause);
+        }
+    }
+
+    /**
+     * Returns the queue of the packets to be sent asynchronously. Engines
+     * which drain the queue by their own I/O threads poll the packets from
+     * the queue while they hold its drain permission.
+     *
+     * @return
+     */
+    public OutboundQueue getOutboundQueue() {
+        return mOutboundQueue;
+    }
+
+    /**
+     * {@inheritDoc }
+     *
+     * The shared frame is written to the gathering channel of this connector
+     * (see {@link #getGatheringChannel()}). Connectors without gathering
+     * channel send the packet for their sub protocol via {@code sendPacket}.
+     */
+    @Override
+    public void sendEncodedPacket(EncodedPacket aPacket) {
+        GatheringByteChannel lChannel = getGatheringChannel();
+        if (null == lChannel) {
+            sendPacket(aPacket.getPacket(this));
+            return;
+        }
+        if (!beginDirectWrite()) {
+            // queued behind the streamed message
+            sendEncodedPacketAsync(aPacket);
+            return;
+        }
+        try {
+            writeGathering(lChannel, new ByteBuffer[]{aPacket.getFrame(this)});
+        } catch (IOException lEx) {
+            throw new WebSocketRuntimeException("Sending encoded packet to connector '"
+                    + getId() + "' failed.", lEx);
+        } finally {
+            endDirectWrite();
+        }
+    }
+
     @Override
     public WebSocketEngine getEngine() {
         return mEngine;
@@ -224,7 +1347,11 @@ public class BaseConnector implements WebSocketConnector {
 
     @Override
     public void setVar(String aKey, Object aValue) {
-        mCustomVars.put(aKey, aValue);
+        // the registries are updated in the order of the changes
+        synchronized (mCustomVars) {
+            Object lOldValue = mCustomVars.put(aKey, aValue);
+            notifyRegistries(aKey, lOldValue, aValue);
+        }
     }
 
     @Override
@@ -263,9 +1390,134 @@ public class BaseConnector implements WebSocketConnector {
         setVar(aKey, aValue);
     }
 
+    /**
+     * Returns the value of a typed variable of this connector.
+     *
+     * @param aSlot handle of the variable, see {@link ConnectorVars#newIntSlot}
+     * @return the value or <tt>0</tt> if not set
+     */
+    public int getInt(ConnectorVars.IntSlot aSlot) {
+        return mCustomVars.getInt(aSlot);
+    }
+
+    /**
+     *
+     * @param aSlot
+     * @param aValue
+     */
+    public void setInt(ConnectorVars.IntSlot aSlot, int aValue) {
+        mCustomVars.setInt(aSlot, aValue);
+    }
+
+    /**
+     * Returns the value of a typed variable of this connector.
+     *
+     * @param aSlot handle of the variable, see {@link ConnectorVars#newLongSlot}
+     * @return the value or <tt>0</tt> if not set
+     */
+    public long getLong(ConnectorVars.LongSlot aSlot) {
+        return mCustomVars.getLong(aSlot);
+    }
+
+    /**
+     *
+     * @param aSlot
+     * @param aValue
+     */
+    public void setLong(ConnectorVars.LongSlot aSlot, long aValue) {
+        mCustomVars.setLong(aSlot, aValue);
+    }
+
+    /**
+     * Returns the value of a typed variable of this connector.
+     *
+     * @param aSlot handle of the variable, see {@link ConnectorVars#newBoolSlot}
+     * @return the value or <tt>false</tt> if not set
+     */
+    public boolean getBool(ConnectorVars.BoolSlot aSlot) {
+        return mCustomVars.getBool(aSlot);
+    }
+
+    /**
+     *
+     * @param aSlot
+     * @param aValue
+     */
+    public void setBool(ConnectorVars.BoolSlot aSlot, boolean aValue) {
+        mCustomVars.setBool(aSlot, aValue);
+    }
+
+    /**
+     * Returns the value of a typed variable of this connector.
+     *
+     * @param <T>
+     * @param aSlot handle of the variable, see {@link ConnectorVars#newObjectSlot}
+     * @return the value or <tt>null</tt> if not set
+     */
+    public <T> T getObject(ConnectorVars.ObjectSlot<T> aSlot) {
+        return mCustomVars.getObject(aSlot);
+    }
+
+    /**
+     *
+     * @param <T>
+     * @param aSlot
+     * @param aValue
+     */
+    public <T> void setObject(ConnectorVars.ObjectSlot<T> aSlot, T aValue) {
+        mCustomVars.setObject(aSlot, aValue);
+    }
+
     @Override
     public void removeVar(String aKey) {
-        mCustomVars.remove(aKey);
+        synchronized (mCustomVars) {
+            Object lOldValue = mCustomVars.remove(aKey);
+            notifyRegistries(aKey, lOldValue, null);
+        }
+    }
+
+    /**
+     * Returns the lock which guards changes of the variables together with
+     * the notification of the registries.
+     */
+    Object getVarLock() {
+        return mCustomVars;
+    }
+
+    private void notifyRegistries(String aKey, Object aOldValue, Object aNewValue) {
+        if (aOldValue == aNewValue) {
+            return;
+        }
+        for (ConnectorRegistry lRegistry : mRegistries) {
+            lRegistry.varChanged(this, aKey, aOldValue, aNewValue);
+        }
+    }
+
+    synchronized void addRegistry(ConnectorRegistry aRegistry) {
+        for (ConnectorRegistry lRegistry : mRegistries) {
+            if (lRegistry == aRegistry) {
+                return;
+            }
+        }
+        ConnectorRegistry[] lRegistries = new ConnectorRegistry[mRegistries.length + 1];
+        System.arraycopy(mRegistries, 0, lRegistries, 0, mRegistries.length);
+        lRegistries[mRegistries.length] = aRegistry;
+        mRegistries = lRegistries;
+    }
+
+    synchronized void removeRegistry(ConnectorRegistry aRegistry) {
+        int lCount = 0;
+        ConnectorRegistry[] lRegistries = new ConnectorRegistry[mRegistries.length];
+        for (ConnectorRegistry lRegistry : mRegistries) {
+            if (lRegistry != aRegistry) {
+                lRegistries[lCount++] = lRegistry;
+            }
+        }
+        if (lCount < mRegistries.length) {
+            ConnectorRegistry[] lResult = new ConnectorRegistry[lCount];
+            System.arraycopy(lRegistries, 0, lResult, 0, lCount);
+            mRegistries = lResult;
+        }
     }
 
     @Override
@@ -283,19 +1535,44 @@ public class BaseConnector implements WebSocketConnector {
         return null;
     }
     
-    private String mUniqueId = null;
-    private static Integer mCounter = 0;
+    /**
+     * Allocator for the numeric ids of all connectors of this node.
+     */
+    private static final AtomicLong mCounter = new AtomicLong(0);
+    /**
+     * Numeric id of this connector, unique per node, allocated on construction.
+     */
+    private final long mLongId = mCounter.incrementAndGet();
+    private volatile String mUniqueId = null;
 
+    /**
+     * Returns the unique id of this connector in the form
+     * <tt>[nodeid.]remoteport.counter</tt> with the counter in radix 36.
+     * The id is built on first request only, because the remote port is
+     * not yet known when the connector is constructed. Concurrent first
+     * calls build the same id, hence no synchronization is required.
+     *
+     * @return
+     */
     @Override
     public String getId() {
-        synchronized (mCounter) {
-            if (null == mUniqueId) {
-                String lNodeId = JWebSocketConfig.getConfig().getNodeId();
-                mUniqueId = ((lNodeId != null && lNodeId.length() > 0) ? lNodeId + "." : "")
-                        + String.valueOf(getRemotePort()) + "." + mCounter++;
-            }
-            return mUniqueId;
+        String lUniqueId = mUniqueId;
+        if (null == lUniqueId) {
+            String lNodeId = JWebSocketConfig.getConfig().getNodeId();
+            lUniqueId = ((lNodeId != null && lNodeId.length() > 0) ? lNodeId + "." : "")
+                    + String.valueOf(getRemotePort()) + "."
+                    + Long.toString(mLongId, Character.MAX_RADIX);
+            mUniqueId = lUniqueId;
         }
+        return lUniqueId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLongId() {
+        return mLongId;
     }
 
     @Override
@@ -303,6 +1580,14 @@ public class BaseConnector implements WebSocketConnector {
         return mSession;
     }
 
+    /**
+     * Returns the shared custom variables of this connector. Please note
+     * that changes applied directly to the returned map bypass the connector
+     * registries, use {@code setVar} and {@code removeVar} instead. The
+     * values of typed variables are not part of the map.
+     *
+     * @return
+     */
     public Map<String, Object> getVars() {
         return mCustomVars;
     }
@@ -391,4 +1676,13 @@ public class BaseConnector implements WebSocketConnector {
     public boolean isHybi() {
         return WebSocketProtocolAbstraction.isHybiVersion(getVersion());
     }
+
+    /**
+     * Allocator for streamed messages of connectors without engine, created
+     * on first use.
+     */
+    private static class DefaultAllocator {
+
+        static final BufferAllocator INSTANCE = new DirectBufferPool();
+    }
 }
@@ -0,0 +1,280 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Precompiled Connector Filter
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.connectors;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Pattern;
+import javolution.util.FastMap;
+import org.jwebsocket.api.ConnectorFilter;
+import org.jwebsocket.api.WebSocketConnector;
+
+/**
+ * Connector filter which is compiled once and then applied to many
+ * connectors. The filter consists of conditions on the shared custom
+ * variables of the connectors, which are combined by a logical 'and':
+ * <ul>
+ * <li>regex: the string variable matches a regular expression, the
+ * expression is compiled only once (see {@link PatternCache}),</li>
+ * <li>exact: the variable equals a value,</li>
+ * <li>prefix: the string variable starts with a prefix,</li>
+ * <li>bool: the boolean variable has a value, missing variables are treated
+ * as <tt>false</tt> like by {@code getBool},</li>
+ * <li>any other {@link ConnectorFilter}.</li>
+ * </ul>
+ * Exact conditions on indexed variables allow the server to look up the
+ * candidates in its connector registry instead of checking all connectors.
+ *
+ * The filter is supposed to be built completely before it is used, after
+ * that it can be shared between threads.
+ *
+ * @author aschulze
+ */
+public class CompiledConnectorFilter implements ConnectorFilter {
+
+    private static final String REGEX_META_CHARS = "\\[](){}.*+?^$|";
+    private Condition[] mConditions = new Condition[0];
+    private final Map<String, Object> mExactValues = new FastMap<String, Object>();
+    private final PatternCache mPatternCache;
+
+    /**
+     * Creates an empty filter (accepting all connectors) which uses the
+     * default pattern cache.
+     */
+    public CompiledConnectorFilter() {
+        this(PatternCache.getDefault());
+    }
+
+    /**
+     * Creates an empty filter (accepting all connectors) which uses the
+     * passed pattern cache.
+     *
+     * @param aPatternCache
+     */
+    public CompiledConnectorFilter(PatternCache aPatternCache) {
+        mPatternCache = aPatternCache;
+    }
+
+    /**
+     * Adds a condition with the semantics of
+     * {@code WebSocketServer.selectConnectors}: string values are matched as
+     * regular expression (or compared directly if they do not contain any
+     * regular expression meta characters), all other values need to be
+     * equal.
+     *
+     * @param aKey
+     * @param aValue
+     * @return this filter
+     */
+    public CompiledConnectorFilter var(String aKey, Object aValue) {
+        if (aValue instanceof String && !isLiteral((String) aValue)) {
+            return regex(aKey, (String) aValue);
+        }
+        return exact(aKey, aValue);
+    }
+
+    /**
+     * Adds the condition that the string variable matches the passed regular
+     * expression. Non-string variables need to be equal to the expression.
+     *
+     * @param aKey
+     * @param aRegex
+     * @return this filter
+     */
+    public CompiledConnectorFilter regex(String aKey, String aRegex) {
+        return add(new RegexCondition(aKey, aRegex, mPatternCache.getPattern(aRegex)));
+    }
+
+    /**
+     * Adds the condition that the variable equals the passed value.
+     *
+     * @param aKey
+     * @param aValue
+     * @return this filter
+     */
+    public CompiledConnectorFilter exact(String aKey, Object aValue) {
+        if (aValue != null) {
+            mExactValues.put(aKey, aValue);
+        }
+        return add(new ExactCondition(aKey, aValue));
+    }
+
+    /**
+     * Adds the condition that the string variable starts with the passed
+     * prefix.
+     *
+     * @param aKey
+     * @param aPrefix
+     * @return this filter
+     */
+    public CompiledConnectorFilter prefix(String aKey, String aPrefix) {
+        return add(new PrefixCondition(aKey, aPrefix));
+    }
+
+    /**
+     * Adds the condition that the boolean variable has the passed value.
+     * Missing or non-boolean variables are treated as <tt>false</tt>.
+     *
+     * @param aKey
+     * @param aValue
+     * @return this filter
+     */
+    public CompiledConnectorFilter bool(String aKey, boolean aValue) {
+        return add(new BoolCondition(aKey, aValue));
+    }
+
+    /**
+     * Adds an arbitrary connector filter as condition.
+     *
+     * @param aFilter
+     * @return this filter
+     */
+    public CompiledConnectorFilter and(final ConnectorFilter aFilter) {
+        return add(new Condition(null) {
+
+            @Override
+            boolean matches(WebSocketConnector aConnector) {
+                return aFilter.accept(aConnector);
+            }
+        });
+    }
+
+    private CompiledConnectorFilter add(Condition aCondition) {
+        Condition[] lConditions = new Condition[mConditions.length + 1];
+        System.arraycopy(mConditions, 0, lConditions, 0, mConditions.length);
+        lConditions[mConditions.length] = aCondition;
+        mConditions = lConditions;
+        return this;
+    }
+
+    /**
+     * Returns the variables with an exact condition and their values. The
+     * server uses these to look up the candidates in its indexes.
+     *
+     * @return
+     */
+    public Map<String, Object> getExactValues() {
+        return Collections.unmodifiableMap(mExactValues);
+    }
+
+    @Override
+    public boolean accept(WebSocketConnector aConnector) {
+        for (Condition lCondition : mConditions) {
+            if (!lCondition.matches(aConnector)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the passed string does not contain any
+     * regular expression meta characters, i.e. if matching it as regular
+     * expression means equality.
+     *
+     * @param aRegex
+     * @return
+     */
+    public static boolean isLiteral(String aRegex) {
+        for (int lIdx = 0; lIdx < aRegex.length(); lIdx++) {
+            if (REGEX_META_CHARS.indexOf(aRegex.charAt(lIdx)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static abstract class Condition {
+
+        final String mKey;
+
+        Condition(String aKey) {
+            mKey = aKey;
+        }
+
+        abstract boolean matches(WebSocketConnector aConnector);
+    }
+
+    private static class RegexCondition extends Condition {
+
+        private final String mRegex;
+        private final Pattern mPattern;
+
+        RegexCondition(String aKey, String aRegex, Pattern aPattern) {
+            super(aKey);
+            mRegex = aRegex;
+            mPattern = aPattern;
+        }
+
+        @Override
+        boolean matches(WebSocketConnector aConnector) {
+            Object lValue = aConnector.getVar(mKey);
+            if (lValue instanceof String) {
+                return mPattern.matcher((String) lValue).matches();
+            }
+            return lValue != null && lValue.equals(mRegex);
+        }
+    }
+
+    private static class ExactCondition extends Condition {
+
+        private final Object mValue;
+
+        ExactCondition(String aKey, Object aValue) {
+            super(aKey);
+            mValue = aValue;
+        }
+
+        @Override
+        boolean matches(WebSocketConnector aConnector) {
+            Object lValue = aConnector.getVar(mKey);
+            return lValue != null && lValue.equals(mValue);
+        }
+    }
+
+    private static class PrefixCondition extends Condition {
+
+        private final String mPrefix;
+
+        PrefixCondition(String aKey, String aPrefix) {
+            super(aKey);
+            mPrefix = aPrefix;
+        }
+
+        @Override
+        boolean matches(WebSocketConnector aConnector) {
+            Object lValue = aConnector.getVar(mKey);
+            return lValue instanceof String && ((String) lValue).startsWith(mPrefix);
+        }
+    }
+
+    private static class BoolCondition extends Condition {
+
+        private final boolean mValue;
+
+        BoolCondition(String aKey, boolean aValue) {
+            super(aKey);
+            mValue = aValue;
+        }
+
+        @Override
+        boolean matches(WebSocketConnector aConnector) {
+            Object lValue = aConnector.getVar(mKey);
+            boolean lBool = (lValue instanceof Boolean && (Boolean) lValue);
+            return lBool == mValue;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Connector Registry (per server)
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.connectors;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jwebsocket.api.WebSocketConnector;
+
+/**
+ * Server wide registry of all connectors of all engines bound to a server.
+ * Besides the primary index by connector id the registry maintains secondary
+ * indexes on a configurable set of shared custom variables (by default
+ * <tt>$username</tt> and <tt>$nodeid</tt>). The indexes are kept up to date
+ * by the {@code BaseConnector} whenever an indexed variable is set or
+ * removed, so that lookups by those variables do not require to iterate
+ * through all connectors of all engines.
+ *
+ * Connectors which are not derived from {@code BaseConnector} cannot report
+ * variable changes. They are registered by id but are not indexed; lookups
+ * therefore additionally scan those connectors.
+ *
+ * @author aschulze
+ */
+public class ConnectorRegistry {
+
+    /**
+     * Name of the server setting which contains a comma separated list of
+     * additional connector variables to be indexed.
+     */
+    public final static String SETTING_INDEXED_VARS = "indexed_vars";
+    /**
+     * Shared custom variables which are always indexed.
+     */
+    public final static String[] DEFAULT_INDEXED_VARS = new String[]{
+        BaseConnector.VAR_USERNAME,
+        BaseConnector.VAR_NODEID
+    };
+    private final Map<String, WebSocketConnector> mConnectors =
+            new ConcurrentHashMap<String, WebSocketConnector>();
+    private final Map<String, WebSocketConnector> mUnindexed =
+            new ConcurrentHashMap<String, WebSocketConnector>();
+    private final Map<String, VarIndex> mIndexes =
+            new ConcurrentHashMap<String, VarIndex>();
+
+    /**
+     * Creates a new registry which indexes the default variables only.
+     */
+    public ConnectorRegistry() {
+        this(null);
+    }
+
+    /**
+     * Creates a new registry which indexes the default variables plus the
+     * variables passed as comma separated list.
+     *
+     * @param aIndexedVars comma separated list of variable names, may be
+     * <tt>null</tt>.
+     */
+    public ConnectorRegistry(String aIndexedVars) {
+        for (String lVar : DEFAULT_INDEXED_VARS) {
+            mIndexes.put(lVar, new VarIndex());
+        }
+        if (aIndexedVars != null) {
+            for (String lVar : aIndexedVars.split(",")) {
+                lVar = lVar.trim();
+                if (lVar.length() > 0 && !mIndexes.containsKey(lVar)) {
+                    mIndexes.put(lVar, new VarIndex());
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a connector to the registry and indexes its current variables.
+     *
+     * @param aConnector
+     */
+    public void addConnector(WebSocketConnector aConnector) {
+        if (null != mConnectors.put(aConnector.getId(), aConnector)) {
+            // already registered
+            return;
+        }
+        if (aConnector instanceof BaseConnector) {
+            BaseConnector lConnector = (BaseConnector) aConnector;
+            synchronized (lConnector.getVarLock()) {
+                lConnector.addRegistry(this);
+                for (Map.Entry<String, VarIndex> lEntry : mIndexes.entrySet()) {
+                    Object lValue = lConnector.getVar(lEntry.getKey());
+                    if (lValue != null) {
+                        lEntry.getValue().add(lValue, lConnector);
+                    }
+                }
+            }
+        } else {
+            mUnindexed.put(aConnector.getId(), aConnector);
+        }
+    }
+
+    /**
+     * Removes a connector and all its index entries from the registry.
+     *
+     * @param aConnector
+     */
+    public void removeConnector(WebSocketConnector aConnector) {
+        if (null == mConnectors.remove(aConnector.getId())) {
+            return;
+        }
+        if (aConnector instanceof BaseConnector) {
+            BaseConnector lConnector = (BaseConnector) aConnector;
+            synchronized (lConnector.getVarLock()) {
+                lConnector.removeRegistry(this);
+                for (Map.Entry<String, VarIndex> lEntry : mIndexes.entrySet()) {
+                    Object lValue = lConnector.getVar(lEntry.getKey());
+                    if (lValue != null) {
+                        lEntry.getValue().remove(lValue, lConnector);
+                    }
+                }
+            }
+        } else {
+            mUnindexed.remove(aConnector.getId());
+        }
+    }
+
+    /**
+     * Is called by the {@code BaseConnector} when one of its variables has
+     * been changed or removed (in this case <tt>aNewValue</tt> is
+     * <tt>null</tt>).
+     *
+     * @param aConnector
+     * @param aKey
+     * @param aOldValue
+     * @param aNewValue
+     */
+    void varChanged(WebSocketConnector aConnector, String aKey,
+            Object aOldValue, Object aNewValue) {
+        VarIndex lIndex = mIndexes.get(aKey);
+        if (lIndex != null) {
+            if (aOldValue != null) {
+                lIndex.remove(aOldValue, aConnector);
+            }
+            if (aNewValue != null) {
+                lIndex.add(aNewValue, aConnector);
+            }
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if the passed variable is indexed.
+     *
+     * @param aKey
+     * @return
+     */
+    public boolean isIndexed(String aKey) {
+        return mIndexes.containsKey(aKey);
+    }
+
+    /**
+     * Returns the connector identified by its id or <tt>null</tt> if no such
+     * connector is registered.
+     *
+     * @param aId
+     * @return
+     */
+    public WebSocketConnector getConnector(String aId) {
+        return mConnectors.get(aId);
+    }
+
+    /**
+     * Returns a read-only map of all registered connectors.
+     *
+     * @return
+     */
+    public Map<String, WebSocketConnector> getConnectors() {
+        return Collections.unmodifiableMap(mConnectors);
+    }
+
+    /**
+     * Returns the connectors whose indexed variable <tt>aKey</tt> equals
+     * <tt>aValue</tt>. The returned collection contains only the indexed
+     * connectors, the caller needs to check the connectors returned by
+     * {@link #getUnindexedConnectors()} separately. If the variable is not
+     * indexed <tt>null</tt> is returned.
+     *
+     * @param aKey
+     * @param aValue
+     * @return
+     */
+    public Collection<WebSocketConnector> lookup(String aKey, Object aValue) {
+        VarIndex lIndex = mIndexes.get(aKey);
+        if (lIndex == null) {
+            return null;
+        }
+        return lIndex.get(aValue);
+    }
+
+    /**
+     * Returns the connectors which do not support variable indexing.
+     *
+     * @return
+     */
+    public Collection<WebSocketConnector> getUnindexedConnectors() {
+        return Collections.unmodifiableCollection(mUnindexed.values());
+    }
+
+    /**
+     * Returns the number of registered connectors.
+     *
+     * @return
+     */
+    public int size() {
+        return mConnectors.size();
+    }
+
+    /**
+     * Index from the value of a certain variable to the connectors.
+     */
+    private static class VarIndex {
+
+        private final Map<Object, Map<String, WebSocketConnector>> mBuckets =
+                new ConcurrentHashMap<Object, Map<String, WebSocketConnector>>();
+
+        synchronized void add(Object aValue, WebSocketConnector aConnector) {
+            Map<String, WebSocketConnector> lBucket = mBuckets.get(aValue);
+            if (lBucket == null) {
+                lBucket = new ConcurrentHashMap<String, WebSocketConnector>(4);
+                mBuckets.put(aValue, lBucket);
+            }
+            lBucket.put(aConnector.getId(), aConnector);
+        }
+
+        synchronized void remove(Object aValue, WebSocketConnector aConnector) {
+            Map<String, WebSocketConnector> lBucket = mBuckets.get(aValue);
+            if (lBucket != null) {
+                lBucket.remove(aConnector.getId());
+                if (lBucket.isEmpty()) {
+                    mBuckets.remove(aValue);
+                }
+            }
+        }
+
+        Collection<WebSocketConnector> get(Object aValue) {
+            Map<String, WebSocketConnector> lBucket = mBuckets.get(aValue);
+            if (lBucket == null) {
+                return Collections.emptyList();
+            }
+            return Collections.unmodifiableCollection(lBucket.values());
+        }
+    }
+}
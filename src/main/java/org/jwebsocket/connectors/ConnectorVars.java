@@ -0,0 +1,522 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Compact, thread safe store of connector variables
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.connectors;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Store of the shared variables of a connector. Other than a general purpose
+ * map the store is optimized for a large number of connectors with only a
+ * few variables each:
+ * <ul>
+ * <li>the well-known variables <tt>$username</tt>, <tt>$nodeid</tt> and
+ * <tt>$subprot</tt> are kept in dedicated fields,</li>
+ * <li>custom string keys are kept in a map which is created on first
+ * use only,</li>
+ * <li>typed variables are accessed by slot handles which are registered once
+ * per application (see {@link #newIntSlot(String)} etc.). Their values are
+ * kept in small arrays without boxing and without hashing the key.</li>
+ * </ul>
+ * All operations are safe for concurrent access from I/O and worker threads,
+ * reads do not lock. The store implements the map interface for the string
+ * keys, the values of typed slots are not part of the map.
+ *
+ * @author aschulze
+ */
+public class ConnectorVars extends AbstractMap<String, Object> {
+
+    private static final AtomicInteger mPrimitiveSlots = new AtomicInteger(0);
+    private static final AtomicInteger mObjectSlots = new AtomicInteger(0);
+    private volatile String mUsername = null;
+    private volatile String mNodeId = null;
+    private volatile String mSubprot = null;
+    private volatile Map<String, Object> mCustomVars = null;
+    private volatile AtomicLongArray mPrimitives = null;
+    private volatile AtomicReferenceArray<Object> mObjects = null;
+
+    /**
+     * Registers a new <tt>int</tt> variable for all connectors. Slots are
+     * supposed to be registered once, e.g. in a static field of the plug-in
+     * using them.
+     *
+     * @param aName name of the variable, for diagnostic purposes only
+     * @return the handle to access the variable
+     */
+    public static IntSlot newIntSlot(String aName) {
+        return new IntSlot(aName, mPrimitiveSlots.getAndIncrement());
+    }
+
+    /**
+     * Registers a new <tt>long</tt> variable for all connectors.
+     *
+     * @param aName name of the variable, for diagnostic purposes only
+     * @return the handle to access the variable
+     */
+    public static LongSlot newLongSlot(String aName) {
+        return new LongSlot(aName, mPrimitiveSlots.getAndIncrement());
+    }
+
+    /**
+     * Registers a new <tt>boolean</tt> variable for all connectors.
+     *
+     * @param aName name of the variable, for diagnostic purposes only
+     * @return the handle to access the variable
+     */
+    public static BoolSlot newBoolSlot(String aName) {
+        return new BoolSlot(aName, mPrimitiveSlots.getAndIncrement());
+    }
+
+    /**
+     * Registers a new object variable for all connectors.
+     *
+     * @param <T> type of the variable
+     * @param aName name of the variable, for diagnostic purposes only
+     * @return the handle to access the variable
+     */
+    public static <T> ObjectSlot<T> newObjectSlot(String aName) {
+        return new ObjectSlot<T>(aName, mObjectSlots.getAndIncrement());
+    }
+
+    private static boolean isWellKnown(String aKey) {
+        return aKey != null && aKey.length() > 0 && aKey.charAt(0) == '$';
+    }
+
+    @Override
+    public Object get(Object aKey) {
+        if (aKey instanceof String && isWellKnown((String) aKey)) {
+            String lValue = null;
+            if (BaseConnector.VAR_USERNAME.equals(aKey)) {
+                lValue = mUsername;
+            } else if (BaseConnector.VAR_NODEID.equals(aKey)) {
+                lValue = mNodeId;
+            } else if (BaseConnector.VAR_SUBPROT.equals(aKey)) {
+                lValue = mSubprot;
+            }
+            if (null != lValue) {
+                return lValue;
+            }
+        }
+        Map<String, Object> lCustomVars = mCustomVars;
+        return (null != lCustomVars && null != aKey ? lCustomVars.get(aKey) : null);
+    }
+
+    @Override
+    public boolean containsKey(Object aKey) {
+        return get(aKey) != null;
+    }
+
+    /**
+     * Sets the variable with the passed key. Setting a variable to
+     * <tt>null</tt> removes it, i.e. <tt>put(aKey, null)</tt> is equivalent
+     * to <tt>remove(aKey)</tt>.
+     *
+     * Existing values are overwritten in place, concurrent readers see
+     * either the old or the new value but never a missing variable.
+     *
+     * @param aKey
+     * @param aValue
+     * @return the previous value of the variable
+     */
+    @Override
+    public synchronized Object put(String aKey, Object aValue) {
+        if (null == aValue) {
+            return remove(aKey);
+        }
+        int lField = fieldOf(aKey);
+        if (lField >= 0 && aValue instanceof String) {
+            Object lOld = swapField(lField, (String) aValue);
+            // the variable may have been set with a non-string value before,
+            // it is removed from the map after the field has been set
+            Map<String, Object> lCustomVars = mCustomVars;
+            if (null != lCustomVars) {
+                Object lOldCustom = lCustomVars.remove(aKey);
+                if (null == lOld) {
+                    lOld = lOldCustom;
+                }
+            }
+            return lOld;
+        }
+        Map<String, Object> lCustomVars = mCustomVars;
+        if (null == lCustomVars) {
+            lCustomVars = new ConcurrentHashMap<String, Object>(4, 0.75f, 2);
+            mCustomVars = lCustomVars;
+        }
+        Object lOld = lCustomVars.put(aKey, aValue);
+        if (lField >= 0) {
+            // a well-known variable changes from a string to another value,
+            // the field is cleared after the map has been updated
+            Object lOldField = swapField(lField, null);
+            if (null != lOldField) {
+                lOld = lOldField;
+            }
+        }
+        return lOld;
+    }
+
+    private static final int FIELD_USERNAME = 0;
+    private static final int FIELD_NODEID = 1;
+    private static final int FIELD_SUBPROT = 2;
+
+    /**
+     * Returns the dedicated field of a well-known variable or <tt>-1</tt>.
+     */
+    private static int fieldOf(String aKey) {
+        if (!isWellKnown(aKey)) {
+            return -1;
+        } else if (BaseConnector.VAR_USERNAME.equals(aKey)) {
+            return FIELD_USERNAME;
+        } else if (BaseConnector.VAR_NODEID.equals(aKey)) {
+            return FIELD_NODEID;
+        } else if (BaseConnector.VAR_SUBPROT.equals(aKey)) {
+            return FIELD_SUBPROT;
+        }
+        return -1;
+    }
+
+    private String swapField(int aField, String aValue) {
+        String lOld;
+        switch (aField) {
+            case FIELD_USERNAME:
+                lOld = mUsername;
+                mUsername = aValue;
+                break;
+            case FIELD_NODEID:
+                lOld = mNodeId;
+                mNodeId = aValue;
+                break;
+            default:
+                lOld = mSubprot;
+                mSubprot = aValue;
+                break;
+        }
+        return lOld;
+    }
+
+    private Object removeWellKnown(String aKey) {
+        int lField = fieldOf(aKey);
+        Object lOld = (lField >= 0 ? swapField(lField, null) : null);
+        Map<String, Object> lCustomVars = mCustomVars;
+        if (null != lCustomVars) {
+            // a well-known variable may have been set with a non-string value
+            Object lOldCustom = lCustomVars.remove(aKey);
+            if (null == lOld) {
+                lOld = lOldCustom;
+            }
+        }
+        return lOld;
+    }
+
+    @Override
+    public synchronized Object remove(Object aKey) {
+        if (aKey instanceof String && isWellKnown((String) aKey)) {
+            return removeWellKnown((String) aKey);
+        }
+        Map<String, Object> lCustomVars = mCustomVars;
+        return (null != lCustomVars && null != aKey ? lCustomVars.remove(aKey) : null);
+    }
+
+    @Override
+    public synchronized void clear() {
+        mUsername = null;
+        mNodeId = null;
+        mSubprot = null;
+        mCustomVars = null;
+    }
+
+    /**
+     * Returns a snapshot of the string keyed variables. Removing an entry by
+     * the iterator removes the variable from the store.
+     *
+     * @return
+     */
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        final List<Map.Entry<String, Object>> lEntries =
+                new ArrayList<Map.Entry<String, Object>>();
+        addEntry(lEntries, BaseConnector.VAR_USERNAME, mUsername);
+        addEntry(lEntries, BaseConnector.VAR_NODEID, mNodeId);
+        addEntry(lEntries, BaseConnector.VAR_SUBPROT, mSubprot);
+        Map<String, Object> lCustomVars = mCustomVars;
+        if (null != lCustomVars) {
+            for (Map.Entry<String, Object> lEntry : lCustomVars.entrySet()) {
+                addEntry(lEntries, lEntry.getKey(), lEntry.getValue());
+            }
+        }
+        return new AbstractSet<Map.Entry<String, Object>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                final Iterator<Map.Entry<String, Object>> lIterator = lEntries.iterator();
+                return new Iterator<Map.Entry<String, Object>>() {
+
+                    private Map.Entry<String, Object> mCurrent = null;
+
+                    @Override
+                    public boolean hasNext() {
+                        return lIterator.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, Object> next() {
+                        mCurrent = lIterator.next();
+                        return mCurrent;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (null == mCurrent) {
+                            throw new IllegalStateException();
+                        }
+                        ConnectorVars.this.remove(mCurrent.getKey());
+                        mCurrent = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return lEntries.size();
+            }
+        };
+    }
+
+    private static void addEntry(List<Map.Entry<String, Object>> aEntries,
+            String aKey, Object aValue) {
+        if (null != aValue) {
+            aEntries.add(new SimpleImmutableEntry<String, Object>(aKey, aValue));
+        }
+    }
+
+    private AtomicLongArray getPrimitives(int aIndex) {
+        AtomicLongArray lPrimitives = mPrimitives;
+        if (null != lPrimitives && aIndex < lPrimitives.length()) {
+            return lPrimitives;
+        }
+        synchronized (this) {
+            lPrimitives = mPrimitives;
+            if (null == lPrimitives || aIndex >= lPrimitives.length()) {
+                int lLength = Math.max(aIndex + 1, mPrimitiveSlots.get());
+                AtomicLongArray lNew = new AtomicLongArray(lLength);
+                if (null != lPrimitives) {
+                    for (int lIdx = 0; lIdx < lPrimitives.length(); lIdx++) {
+                        lNew.set(lIdx, lPrimitives.get(lIdx));
+                    }
+                }
+                lPrimitives = lNew;
+                mPrimitives = lPrimitives;
+            }
+            return lPrimitives;
+        }
+    }
+
+    private AtomicReferenceArray<Object> getObjects(int aIndex) {
+        AtomicReferenceArray<Object> lObjects = mObjects;
+        if (null != lObjects && aIndex < lObjects.length()) {
+            return lObjects;
+        }
+        synchronized (this) {
+            lObjects = mObjects;
+            if (null == lObjects || aIndex >= lObjects.length()) {
+                int lLength = Math.max(aIndex + 1, mObjectSlots.get());
+                AtomicReferenceArray<Object> lNew = new AtomicReferenceArray<Object>(lLength);
+                if (null != lObjects) {
+                    for (int lIdx = 0; lIdx < lObjects.length(); lIdx++) {
+                        lNew.set(lIdx, lObjects.get(lIdx));
+                    }
+                }
+                lObjects = lNew;
+                mObjects = lObjects;
+            }
+            return lObjects;
+        }
+    }
+
+    private long getPrimitive(int aIndex) {
+        AtomicLongArray lPrimitives = mPrimitives;
+        return (null != lPrimitives && aIndex < lPrimitives.length()
+                ? lPrimitives.get(aIndex) : 0L);
+    }
+
+    private synchronized void setPrimitive(int aIndex, long aValue) {
+        // writes are synchronized with growing the array, so that no value
+        // gets lost when the array is copied concurrently
+        getPrimitives(aIndex).set(aIndex, aValue);
+    }
+
+    private Object getObject(int aIndex) {
+        AtomicReferenceArray<Object> lObjects = mObjects;
+        return (null != lObjects && aIndex < lObjects.length()
+                ? lObjects.get(aIndex) : null);
+    }
+
+    private synchronized void setObject(int aIndex, Object aValue) {
+        getObjects(aIndex).set(aIndex, aValue);
+    }
+
+    /**
+     *
+     * @param aSlot
+     * @return the value of the slot or <tt>0</tt> if not set
+     */
+    public int getInt(IntSlot aSlot) {
+        return (int) getPrimitive(aSlot.mIndex);
+    }
+
+    /**
+     *
+     * @param aSlot
+     * @param aValue
+     */
+    public void setInt(IntSlot aSlot, int aValue) {
+        setPrimitive(aSlot.mIndex, aValue);
+    }
+
+    /**
+     *
+     * @param aSlot
+     * @return the value of the slot or <tt>0</tt> if not set
+     */
+    public long getLong(LongSlot aSlot) {
+        return getPrimitive(aSlot.mIndex);
+    }
+
+    /**
+     *
+     * @param aSlot
+     * @param aValue
+     */
+    public void setLong(LongSlot aSlot, long aValue) {
+        setPrimitive(aSlot.mIndex, aValue);
+    }
+
+    /**
+     *
+     * @param aSlot
+     * @return the value of the slot or <tt>false</tt> if not set
+     */
+    public boolean getBool(BoolSlot aSlot) {
+        return getPrimitive(aSlot.mIndex) != 0L;
+    }
+
+    /**
+     *
+     * @param aSlot
+     * @param aValue
+     */
+    public void setBool(BoolSlot aSlot, boolean aValue) {
+        setPrimitive(aSlot.mIndex, aValue ? 1L : 0L);
+    }
+
+    /**
+     *
+     * @param <T>
+     * @param aSlot
+     * @return the value of the slot or <tt>null</tt> if not set
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getObject(ObjectSlot<T> aSlot) {
+        return (T) getObject(aSlot.mIndex);
+    }
+
+    /**
+     *
+     * @param <T>
+     * @param aSlot
+     * @param aValue
+     */
+    public <T> void setObject(ObjectSlot<T> aSlot, T aValue) {
+        setObject(aSlot.mIndex, aValue);
+    }
+
+    /**
+     * Handle of a typed connector variable.
+     */
+    public static abstract class Slot {
+
+        private final String mName;
+        final int mIndex;
+
+        Slot(String aName, int aIndex) {
+            mName = aName;
+            mIndex = aIndex;
+        }
+
+        /**
+         *
+         * @return the name of the variable
+         */
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[" + mName + "]";
+        }
+    }
+
+    /**
+     * Handle of an <tt>int</tt> connector variable.
+     */
+    public static final class IntSlot extends Slot {
+
+        IntSlot(String aName, int aIndex) {
+            super(aName, aIndex);
+        }
+    }
+
+    /**
+     * Handle of a <tt>long</tt> connector variable.
+     */
+    public static final class LongSlot extends Slot {
+
+        LongSlot(String aName, int aIndex) {
+            super(aName, aIndex);
+        }
+    }
+
+    /**
+     * Handle of a <tt>boolean</tt> connector variable.
+     */
+    public static final class BoolSlot extends Slot {
+
+        BoolSlot(String aName, int aIndex) {
+            super(aName, aIndex);
+        }
+    }
+
+    /**
+     * Handle of an object connector variable.
+     *
+     * @param <T> type of the variable
+     */
+    public static final class ObjectSlot<T> extends Slot {
+
+        ObjectSlot(String aName, int aIndex) {
+            super(aName, aIndex);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Timer for the delayed flushes of outbound queues
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.connectors;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared timer for the delayed flushes of the outbound queues of all
+ * connectors. The timer thread only triggers the flushes, the packets are
+ * written by the passed worker pool, or by a shared pool of flush threads,
+ * so that a stalled client does not delay the flushes of other connectors.
+ *
+ * The timer is created on first use. Engines acquire it when they have
+ * started and release it when they have stopped, the timer thread is
+ * terminated when the last engine has stopped.
+ *
+ * @author aschulze
+ */
+public final class FlushScheduler {
+
+    private static ScheduledExecutorService mTimer = null;
+    private static ExecutorService mFlushPool = null;
+    private static int mUsers = 0;
+
+    private FlushScheduler() {
+    }
+
+    /**
+     * Registers a user of the timer, e.g. a started engine.
+     */
+    public static synchronized void acquire() {
+        mUsers++;
+    }
+
+    /**
+     * Unregisters a user of the timer. When the last user is gone the timer
+     * and the flush threads are shut down, already scheduled flushes are
+     * still executed.
+     */
+    public static synchronized void release() {
+        if (mUsers > 0 && --mUsers == 0) {
+            if (null != mTimer) {
+                mTimer.shutdown();
+                mTimer = null;
+            }
+            if (null != mFlushPool) {
+                mFlushPool.shutdown();
+                mFlushPool = null;
+            }
+        }
+    }
+
+    /**
+     * Runs the flush on the passed executor after the passed delay.
+     *
+     * @param aFlush
+     * @param aExecutor the worker pool to run the flush, <tt>null</tt> for
+     * the shared flush threads
+     * @param aDelay delay in milliseconds
+     */
+    public static void schedule(final Runnable aFlush, final Executor aExecutor, long aDelay) {
+        getTimer().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                Executor lExecutor = (null != aExecutor ? aExecutor : getFlushPool());
+                try {
+                    lExecutor.execute(aFlush);
+                } catch (RejectedExecutionException lEx) {
+                    // the pool has been shut down, flush on the timer thread
+                    aFlush.run();
+                }
+            }
+        }, aDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (null == mTimer) {
+            mTimer = Executors.newSingleThreadScheduledExecutor(
+                    new DaemonThreadFactory("jWebSocket-outbound-flush-timer"));
+        }
+        return mTimer;
+    }
+
+    private static synchronized ExecutorService getFlushPool() {
+        if (null == mFlushPool) {
+            mFlushPool = Executors.newCachedThreadPool(
+                    new DaemonThreadFactory("jWebSocket-outbound-flush"));
+        }
+        return mFlushPool;
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String mName;
+
+        DaemonThreadFactory(String aName) {
+            mName = aName;
+        }
+
+        @Override
+        public Thread newThread(Runnable aRunnable) {
+            Thread lThread = new Thread(aRunnable, mName);
+            lThread.setDaemon(true);
+            return lThread;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Entry of the outbound queue of a connector
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.connectors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jwebsocket.api.OutboundPriority;
+import org.jwebsocket.api.WebSocketPacket;
+import org.jwebsocket.async.DefaultIOFuture;
+import org.jwebsocket.broadcast.EncodedPacket;
+import org.jwebsocket.buffer.ReferenceCountUtils;
+
+/**
+ * A packet queued for sending together with the future of the send
+ * operation. In conflating mode a pending packet may be replaced by a newer
+ * one with the same conflation key until it is taken from the queue.
+ *
+ * @author aschulze
+ */
+public class OutboundPacket {
+
+    private WebSocketPacket mPacket;
+    private EncodedPacket mEncoded;
+    private DefaultIOFuture mFuture;
+    private int mSize;
+    private final long mQueuedAt;
+    private final String mConflationKey;
+    private final OutboundPriority mPriority;
+    /**
+     * Futures of the packets which have been replaced by this one due to
+     * conflation, guarded by this instance.
+     */
+    private List<DefaultIOFuture> mSuperseded = null;
+    private boolean mTaken = false;
+    private boolean mCompleted = false;
+    private boolean mQueued = false;
+    private volatile boolean mStreamHead = false;
+
+    /**
+     *
+     * @param aPacket
+     * @param aFuture
+     */
+    public OutboundPacket(WebSocketPacket aPacket, DefaultIOFuture aFuture) {
+        this(aPacket, aFuture, null, OutboundPriority.of(aPacket));
+    }
+
+    /**
+     *
+     * @param aPacket
+     * @param aFuture
+     * @param aConflationKey key of the packet in conflating mode, a pending
+     * packet is replaced by a newer one with the same key, may be
+     * <tt>null</tt>
+     * @param aPriority priority lane of the packet
+     */
+    public OutboundPacket(WebSocketPacket aPacket, DefaultIOFuture aFuture,
+            String aConflationKey, OutboundPriority aPriority) {
+        this(aPacket, null, aFuture, aConflationKey, aPriority);
+    }
+
+    /**
+     *
+     * @param aPacket the packet for the sub protocol of the target connector
+     * @param aEncoded the encoded packet whose shared frame is written
+     * instead of framing the packet again, may be <tt>null</tt>
+     * @param aFuture
+     * @param aConflationKey may be <tt>null</tt>
+     * @param aPriority priority lane of the packet
+     */
+    public OutboundPacket(WebSocketPacket aPacket, EncodedPacket aEncoded,
+            DefaultIOFuture aFuture, String aConflationKey, OutboundPriority aPriority) {
+        mPacket = aPacket;
+        mEncoded = aEncoded;
+        mFuture = aFuture;
+        mSize = aPacket.size();
+        mQueuedAt = System.nanoTime();
+        mConflationKey = aConflationKey;
+        mPriority = aPriority;
+    }
+
+    /**
+     *
+     * @return the packet to be sent
+     */
+    public synchronized WebSocketPacket getPacket() {
+        return mPacket;
+    }
+
+    /**
+     * Returns the encoded packet the packet to be sent belongs to, e.g. of a
+     * broadcast. Writers are supposed to write its shared frame (see
+     * {@link EncodedPacket#getFrame(org.jwebsocket.api.WebSocketConnector)})
+     * instead of framing the packet again.
+     *
+     * @return the encoded packet or <tt>null</tt>
+     */
+    public synchronized EncodedPacket getEncodedPacket() {
+        return mEncoded;
+    }
+
+    /**
+     *
+     * @return the future of the send operation of the most recent packet
+     */
+    public synchronized DefaultIOFuture getFuture() {
+        return mFuture;
+    }
+
+    /**
+     *
+     * @return the payload size of the packet in bytes
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    /**
+     *
+     * @return the value of {@link System#nanoTime()} when the packet has
+     * been queued
+     */
+    public long getQueuedAt() {
+        return mQueuedAt;
+    }
+
+    /**
+     *
+     * @return the conflation key or <tt>null</tt>
+     */
+    public String getConflationKey() {
+        return mConflationKey;
+    }
+
+    /**
+     *
+     * @return the priority lane of the packet
+     */
+    public OutboundPriority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Marks the packet as first fragment of a streamed message, is called
+     * before the packet is queued.
+     */
+    void markStreamHead() {
+        mStreamHead = true;
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if the packet is the first fragment of a
+     * streamed message
+     */
+    public boolean isStreamHead() {
+        return mStreamHead;
+    }
+
+    /**
+     * Replaces the pending packet by the newer one with the same conflation
+     * key. The future of the replaced packet completes together with the
+     * future of the newer one.
+     *
+     * @param aNewer
+     * @return the difference of the sizes in bytes or
+     * <tt>Integer.MIN_VALUE</tt> if this packet has already been taken from
+     * the queue and cannot be replaced anymore
+     */
+    synchronized int replace(OutboundPacket aNewer) {
+        if (mTaken) {
+            return Integer.MIN_VALUE;
+        }
+        if (null == mSuperseded) {
+            mSuperseded = new ArrayList<DefaultIOFuture>(2);
+        }
+        mSuperseded.add(mFuture);
+        int lDelta = aNewer.mSize - mSize;
+        // the queue holds a reference to the pending packet only
+        ReferenceCountUtils.retain(aNewer.mPacket);
+        ReferenceCountUtils.release(mPacket);
+        mPacket = aNewer.mPacket;
+        mEncoded = aNewer.mEncoded;
+        mFuture = aNewer.mFuture;
+        mSize = aNewer.mSize;
+        return lDelta;
+    }
+
+    /**
+     * Acquires the reference of the queue to the packet, is called when the
+     * packet is added to the queue.
+     */
+    synchronized void queued() {
+        ReferenceCountUtils.retain(mPacket);
+        mQueued = true;
+    }
+
+    /**
+     * Marks the packet as taken from the queue, afterwards it is not
+     * replaced anymore.
+     *
+     * @return the final size of the packet in bytes
+     */
+    synchronized int take() {
+        mTaken = true;
+        return mSize;
+    }
+
+    /**
+     * Completes the futures of the packet and of all packets replaced by it
+     * successfully.
+     */
+    public void setSuccess() {
+        for (DefaultIOFuture lFuture : complete()) {
+            lFuture.setSuccess();
+        }
+    }
+
+    /**
+     * Fails the futures of the packet and of all packets replaced by it.
+     *
+     * @param aCause
+     */
+    public void setFailure(Throwable aCause) {
+        for (DefaultIOFuture lFuture : complete()) {
+            lFuture.setFailure(aCause);
+        }
+    }
+
+    /**
+     * Releases the reference of the queue to the packet on the first
+     * completion and returns the futures to be completed.
+     */
+    private synchronized List<DefaultIOFuture> complete() {
+        if (!mCompleted) {
+            mCompleted = true;
+            if (mQueued) {
+                ReferenceCountUtils.release(mPacket);
+            }
+        }
+        if (null == mSuperseded) {
+            return Collections.singletonList(mFuture);
+        }
+        List<DefaultIOFuture> lFutures = new ArrayList<DefaultIOFuture>(mSuperseded);
+        lFutures.add(mFuture);
+        return lFutures;
+    }
+}
@@ -0,0 +1,377 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Outbound queue of a connector
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.connectors;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.jwebsocket.api.OutboundPriority;
+
+/**
+ * Queue of the packets to be sent asynchronously by a connector. Any thread
+ * may add packets, the packets are written in the order they have been
+ * added by exactly one thread at a time, the one which holds the drain
+ * permission (see {@link #tryAcquireDrain()}). Packets of a higher
+ * {@link OutboundPriority} overtake queued packets of a lower priority. Packets with a conflation
+ * key may be replaced by newer ones with the same key as long as they are
+ * pending (see {@link #replace(OutboundPacket)}).
+ *
+ * @author aschulze
+ */
+public class OutboundQueue {
+
+    private static final int LANE_COUNT = OutboundPriority.values().length;
+    /**
+     * Index of the lane with the continuation fragments of the message which
+     * is currently streamed.
+     */
+    private static final int FRAGMENTS = LANE_COUNT;
+    /**
+     * One queue per {@link OutboundPriority}, indexed by its ordinal, plus
+     * the fragments of a streamed message. The queues are created on first
+     * usage, most connectors use only one of them.
+     */
+    private final AtomicReferenceArray<Queue<OutboundPacket>> mLanes =
+            new AtomicReferenceArray<Queue<OutboundPacket>>(LANE_COUNT + 1);
+    /**
+     * Has the first fragment of a streamed message been taken but not yet
+     * its last one? Modified by the thread holding the drain permission.
+     */
+    private volatile boolean mStreaming = false;
+    private final AtomicInteger mSize = new AtomicInteger(0);
+    private final AtomicLong mBytes = new AtomicLong(0);
+    private final AtomicBoolean mDraining = new AtomicBoolean(false);
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+    /**
+     * Pending packets by their conflation key, created by the first packet
+     * with a conflation key.
+     */
+    private volatile ConcurrentMap<String, OutboundPacket> mPendingByKey = null;
+    /**
+     * Connector which owns this queue, may be <tt>null</tt>.
+     */
+    private final BaseConnector mConnector;
+
+    /**
+     *
+     */
+    public OutboundQueue() {
+        this(null);
+    }
+
+    /**
+     * Creates the queue of a connector, which is notified whenever packets
+     * are taken from the queue, such that it becomes writable again also if
+     * an engine drains the queue by itself.
+     *
+     * @param aConnector
+     */
+    OutboundQueue(BaseConnector aConnector) {
+        mConnector = aConnector;
+    }
+
+    /**
+     * Returns the lane with the given index, creates it if required.
+     */
+    private Queue<OutboundPacket> getLane(int aIdx) {
+        Queue<OutboundPacket> lLane = mLanes.get(aIdx);
+        if (null == lLane) {
+            mLanes.compareAndSet(aIdx, null, new ConcurrentLinkedQueue<OutboundPacket>());
+            lLane = mLanes.get(aIdx);
+        }
+        return lLane;
+    }
+
+    private OutboundPacket pollLane(int aIdx) {
+        Queue<OutboundPacket> lLane = mLanes.get(aIdx);
+        return (null != lLane ? lLane.poll() : null);
+    }
+
+    private OutboundPacket peekLane(int aIdx) {
+        Queue<OutboundPacket> lLane = mLanes.get(aIdx);
+        return (null != lLane ? lLane.peek() : null);
+    }
+
+    private ConcurrentMap<String, OutboundPacket> getPendingByKey() {
+        ConcurrentMap<String, OutboundPacket> lPending = mPendingByKey;
+        if (null == lPending) {
+            synchronized (this) {
+                lPending = mPendingByKey;
+                if (null == lPending) {
+                    lPending = new ConcurrentHashMap<String, OutboundPacket>();
+                    mPendingByKey = lPending;
+                }
+            }
+        }
+        return lPending;
+    }
+
+    /**
+     * Appends a packet to the lane of its priority.
+     *
+     * @param aPacket
+     */
+    public void offer(OutboundPacket aPacket) {
+        String lKey = aPacket.getConflationKey();
+        if (null == lKey) {
+            append(aPacket);
+        } else {
+            // the packet is not replaced before it is completely queued
+            synchronized (aPacket) {
+                getPendingByKey().putIfAbsent(lKey, aPacket);
+                append(aPacket);
+            }
+        }
+    }
+
+    private void append(OutboundPacket aPacket) {
+        aPacket.queued();
+        getLane(aPacket.getPriority().ordinal()).offer(aPacket);
+        mSize.incrementAndGet();
+        mBytes.addAndGet(aPacket.getSize());
+    }
+
+    /**
+     * Appends a continuation fragment of the streamed message. The first
+     * fragment is added by {@link #offer(OutboundPacket)} and marked as
+     * stream head.
+     *
+     * @param aPacket
+     */
+    public void offerFragment(OutboundPacket aPacket) {
+        aPacket.queued();
+        getLane(FRAGMENTS).offer(aPacket);
+        mSize.incrementAndGet();
+        mBytes.addAndGet(aPacket.getSize());
+    }
+
+    /**
+     * Replaces the pending packet with the same conflation key by the given
+     * newer one, keeping its position in the queue.
+     *
+     * @param aPacket
+     * @return <tt>true</tt> if a pending packet has been replaced,
+     * <tt>false</tt> if the packet needs to be added by
+     * {@link #offer(OutboundPacket)}
+     */
+    public boolean replace(OutboundPacket aPacket) {
+        String lKey = aPacket.getConflationKey();
+        ConcurrentMap<String, OutboundPacket> lPendingByKey = mPendingByKey;
+        if (null == lKey || null == lPendingByKey) {
+            return false;
+        }
+        OutboundPacket lPending = lPendingByKey.get(lKey);
+        if (null == lPending) {
+            return false;
+        }
+        int lDelta = lPending.replace(aPacket);
+        if (Integer.MIN_VALUE == lDelta) {
+            // taken from the queue concurrently
+            lPendingByKey.remove(lKey, lPending);
+            return false;
+        }
+        mBytes.addAndGet(lDelta);
+        return true;
+    }
+
+    private void taken(OutboundPacket aPacket) {
+        int lSize = aPacket.take();
+        mSize.decrementAndGet();
+        mBytes.addAndGet(-lSize);
+        String lKey = aPacket.getConflationKey();
+        ConcurrentMap<String, OutboundPacket> lPendingByKey = mPendingByKey;
+        if (null != lKey && null != lPendingByKey) {
+            lPendingByKey.remove(lKey, aPacket);
+        }
+        if (null != mConnector) {
+            mConnector.checkWritable();
+        }
+    }
+
+    /**
+     * Removes the next packet from the queue, i.e. the oldest packet of the
+     * highest non-empty priority lane.
+     *
+     * @return the next packet or <tt>null</tt> if the queue is empty
+     */
+    public OutboundPacket poll() {
+        OutboundPacket lPacket = pollLane(OutboundPriority.CONTROL.ordinal());
+        if (null != lPacket) {
+            taken(lPacket);
+            return lPacket;
+        }
+        if (mStreaming) {
+            // data frames must not interleave with the fragments of a message
+            lPacket = pollLane(FRAGMENTS);
+            if (null != lPacket) {
+                taken(lPacket);
+                if (!lPacket.getPacket().isFragmented()) {
+                    mStreaming = false;
+                }
+            }
+            return lPacket;
+        }
+        for (int lIdx = OutboundPriority.CONTROL.ordinal() + 1; lIdx < LANE_COUNT; lIdx++) {
+            lPacket = pollLane(lIdx);
+            if (null != lPacket) {
+                taken(lPacket);
+                if (lPacket.isStreamHead()) {
+                    mStreaming = true;
+                }
+                return lPacket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the next packet from the queue regardless of a streamed
+     * message, e.g. to fail all packets when the connector is stopped.
+     *
+     * @return the next packet or <tt>null</tt> if the queue is empty
+     */
+    public OutboundPacket pollAny() {
+        mStreaming = false;
+        OutboundPacket lPacket = poll();
+        if (null == lPacket) {
+            lPacket = pollLane(FRAGMENTS);
+            if (null != lPacket) {
+                taken(lPacket);
+            }
+        }
+        return lPacket;
+    }
+
+    /**
+     * Removes the given packet from the queue, e.g. to discard it in favour
+     * of a more recent one.
+     *
+     * @param aPacket
+     * @return <tt>true</tt> if the packet has been removed by this call
+     */
+    public boolean remove(OutboundPacket aPacket) {
+        Queue<OutboundPacket> lLane = mLanes.get(aPacket.getPriority().ordinal());
+        if (null != lLane && lLane.remove(aPacket)) {
+            taken(aPacket);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the next packet without removing it.
+     *
+     * @return the next packet or <tt>null</tt> if the queue is empty
+     */
+    public OutboundPacket peek() {
+        for (int lIdx = 0; lIdx < LANE_COUNT; lIdx++) {
+            OutboundPacket lPacket = peekLane(lIdx);
+            if (null != lPacket) {
+                return lPacket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the oldest packet of the given priority lane without removing
+     * it.
+     *
+     * @param aPriority
+     * @return the oldest packet or <tt>null</tt> if the lane is empty
+     */
+    public OutboundPacket peek(OutboundPriority aPriority) {
+        return peekLane(aPriority.ordinal());
+    }
+
+    /**
+     *
+     * @return the number of queued packets
+     */
+    public int size() {
+        return mSize.get();
+    }
+
+    /**
+     *
+     * @return the total payload size of the queued packets in bytes
+     */
+    public long getByteSize() {
+        return mBytes.get();
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if no packets can be taken from the queue at the
+     * moment
+     */
+    public boolean isEmpty() {
+        if (null != peekLane(OutboundPriority.CONTROL.ordinal())) {
+            return false;
+        }
+        if (mStreaming) {
+            // the other lanes wait for the end of the streamed message
+            return null == peekLane(FRAGMENTS);
+        }
+        for (int lIdx = 0; lIdx < LANE_COUNT; lIdx++) {
+            if (null != peekLane(lIdx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tries to acquire the permission to drain the queue. Only one thread at
+     * a time holds the permission, which preserves the order of the packets.
+     *
+     * @return <tt>true</tt> if the permission has been acquired
+     */
+    public boolean tryAcquireDrain() {
+        return mDraining.compareAndSet(false, true);
+    }
+
+    /**
+     * Releases the permission to drain the queue. The caller is supposed to
+     * check afterwards whether packets have been added concurrently.
+     */
+    public void releaseDrain() {
+        mDraining.set(false);
+    }
+
+    /**
+     * Marks a delayed flush of the queue as scheduled.
+     *
+     * @return <tt>true</tt> if no flush has been scheduled yet, i.e. the
+     * caller is supposed to schedule it
+     */
+    public boolean tryScheduleFlush() {
+        return mFlushScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Clears the mark of a scheduled flush, is called when the flush is
+     * executed.
+     */
+    public void clearFlushScheduled() {
+        mFlushScheduled.set(false);
+    }
+}
@@ -0,0 +1,181 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Streamed outgoing message
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.connectors;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jwebsocket.api.WebSocketConnector;
+import org.jwebsocket.async.DefaultIOFuture;
+import org.jwebsocket.async.IOFuture;
+import org.jwebsocket.async.IOFutureListener;
+import org.jwebsocket.buffer.BufferAllocator;
+import org.jwebsocket.buffer.BufferPacket;
+import org.jwebsocket.kit.CloseReason;
+import org.jwebsocket.kit.WebSocketFrameType;
+
+/**
+ * Sends a message read from a channel as a sequence of fragments. At most
+ * a window of fragments is queued at a time, the next fragment is read when
+ * a queued one has been written and the connector is writable, hence the
+ * message is never buffered completely.
+ *
+ * The channel is read by the thread which starts the stream and by the
+ * threads which complete the writes of the fragments, it is supposed to be
+ * blocking. The channel is not closed by the stream.
+ *
+ * @author aschulze
+ */
+class OutboundStream implements IOFutureListener, WritabilityListener {
+
+    private final BaseConnector mConnector;
+    private final ReadableByteChannel mSource;
+    private final WebSocketFrameType mFrameType;
+    private final BufferAllocator mAllocator;
+    private final int mFragmentSize;
+    private final int mWindow;
+    private final DefaultIOFuture mFuture;
+    private final AtomicInteger mInFlight = new AtomicInteger(0);
+    private final AtomicInteger mPumps = new AtomicInteger(0);
+    private final AtomicBoolean mFinished = new AtomicBoolean(false);
+    private volatile boolean mEndQueued = false;
+    /**
+     * Written by the pumping thread only.
+     */
+    private volatile boolean mFirst = true;
+    private long mBytes = 0;
+
+    OutboundStream(BaseConnector aConnector, ReadableByteChannel aSource,
+            WebSocketFrameType aFrameType, BufferAllocator aAllocator,
+            int aFragmentSize, int aWindow) {
+        mConnector = aConnector;
+        mSource = aSource;
+        mFrameType = aFrameType;
+        mAllocator = aAllocator;
+        mFragmentSize = aFragmentSize;
+        mWindow = aWindow;
+        mFuture = new DefaultIOFuture(aConnector, true);
+    }
+
+    IOFuture start() {
+        mConnector.addWritabilityListener(this);
+        pump();
+        return mFuture;
+    }
+
+    /**
+     * Queues fragments as long as the window and the connector allow. Calls
+     * during a running pump are not nested but let the running pump loop
+     * once more.
+     */
+    private void pump() {
+        if (mPumps.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            while (!mEndQueued && !mFinished.get()
+                    && mInFlight.get() < mWindow && mConnector.isWritable()) {
+                if (mFuture.isCancelled()) {
+                    fail(new CancellationException());
+                    break;
+                }
+                try {
+                    queueNext();
+                } catch (RuntimeException lEx) {
+                    fail(lEx);
+                }
+            }
+        } while (mPumps.decrementAndGet() != 0);
+    }
+
+    private void queueNext() {
+        ByteBuffer lBuffer = mAllocator.allocate(mFragmentSize);
+        boolean lEnd = false;
+        try {
+            while (lBuffer.hasRemaining()) {
+                if (mSource.read(lBuffer) < 0) {
+                    lEnd = true;
+                    break;
+                }
+            }
+        } catch (IOException lEx) {
+            mAllocator.free(lBuffer);
+            fail(lEx);
+            return;
+        }
+        lBuffer.flip();
+        BufferPacket lFragment = new BufferPacket(
+                mFirst ? mFrameType : WebSocketFrameType.FRAGMENT, lBuffer, mAllocator);
+        lFragment.setFragmented(!lEnd);
+        int lSize = lFragment.size();
+        mBytes += lSize;
+        mInFlight.incrementAndGet();
+        if (lEnd) {
+            mEndQueued = true;
+        }
+        IOFuture lFragmentFuture = mConnector.queueFragment(lFragment, mFirst);
+        mFirst = false;
+        // the queue holds its own reference, the fragment may already be
+        // written and freed after this
+        lFragment.release();
+        mFuture.setProgress(lSize, mBytes, -1);
+        lFragmentFuture.addListener(this);
+    }
+
+    @Override
+    public void operationComplete(IOFuture aFuture) {
+        int lInFlight = mInFlight.decrementAndGet();
+        if (!aFuture.isSuccess()) {
+            fail(null != aFuture.getCause() ? aFuture.getCause() : new CancellationException());
+        } else if (mEndQueued && 0 == lInFlight) {
+            if (finish()) {
+                mFuture.setSuccess();
+            }
+        } else {
+            pump();
+        }
+    }
+
+    @Override
+    public void processWritabilityChanged(WebSocketConnector aConnector, boolean aWritable) {
+        if (aWritable) {
+            pump();
+        }
+    }
+
+    private boolean finish() {
+        if (!mFinished.compareAndSet(false, true)) {
+            return false;
+        }
+        mConnector.removeWritabilityListener(this);
+        mConnector.streamFinished();
+        return true;
+    }
+
+    private void fail(Throwable aCause) {
+        if (!finish()) {
+            return;
+        }
+        mFuture.setFailure(aCause);
+        if (!mFirst) {
+            // the message cannot be completed anymore
+            mConnector.stopConnector(CloseReason.SERVER);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Bounded cache of compiled regular expressions
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.connectors;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Least recently used cache of compiled regular expressions. Connector
+ * filters usually use a small set of expressions over and over again, the
+ * cache avoids to compile the same expression for each connector and each
+ * lookup, as <tt>String.matches</tt> does.
+ *
+ * @author aschulze
+ */
+public class PatternCache {
+
+    /**
+     * Default maximum number of cached patterns.
+     */
+    public final static int DEFAULT_MAX_SIZE = 256;
+    private static final PatternCache mDefault = new PatternCache(DEFAULT_MAX_SIZE);
+    private final Map<String, Pattern> mPatterns;
+
+    /**
+     *
+     * @param aMaxSize maximum number of cached patterns
+     */
+    public PatternCache(final int aMaxSize) {
+        mPatterns = new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Pattern> aEldest) {
+                return size() > aMaxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the pattern cache shared by all connector filters.
+     *
+     * @return
+     */
+    public static PatternCache getDefault() {
+        return mDefault;
+    }
+
+    /**
+     * Returns the compiled pattern for the passed regular expression.
+     *
+     * @param aRegex
+     * @return
+     */
+    public Pattern getPattern(String aRegex) {
+        synchronized (mPatterns) {
+            Pattern lPattern = mPatterns.get(aRegex);
+            if (lPattern == null) {
+                lPattern = Pattern.compile(aRegex);
+                mPatterns.put(aRegex, lPattern);
+            }
+            return lPattern;
+        }
+    }
+
+    /**
+     * Returns the number of currently cached patterns.
+     *
+     * @return
+     */
+    public int size() {
+        synchronized (mPatterns) {
+            return mPatterns.size();
+        }
+    }
+}
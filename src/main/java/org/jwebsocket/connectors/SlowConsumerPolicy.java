@@ -0,0 +1,75 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Slow consumer policies of the outbound queues
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.connectors;
+
+/**
+ * Specifies what a connector does with a new outbound packet if its
+ * outbound queue exceeds the high watermark, i.e. if the client does not
+ * consume the packets as fast as they are sent.
+ *
+ * @author aschulze
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * The new packet is dropped, its future fails.
+     */
+    DROP("drop"),
+    /**
+     * The new packet is queued, the oldest queued packets are discarded in
+     * favour of it until the queue is back at its low watermark. This keeps
+     * the most recent state, e.g. for ticker updates.
+     */
+    CONFLATE("conflate"),
+    /**
+     * The new packet is dropped and the connector is closed.
+     */
+    DISCONNECT("disconnect");
+    private final String mName;
+
+    SlowConsumerPolicy(String aName) {
+        mName = aName;
+    }
+
+    /**
+     * Returns the name of the policy as used in the configuration.
+     *
+     * @return
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the policy with the passed configuration name or
+     * <tt>null</tt> if there is no such policy.
+     *
+     * @param aName
+     * @return
+     */
+    public static SlowConsumerPolicy fromName(String aName) {
+        if (aName != null) {
+            String lName = aName.trim();
+            for (SlowConsumerPolicy lPolicy : values()) {
+                if (lPolicy.mName.equalsIgnoreCase(lName)
+                        || lPolicy.name().equalsIgnoreCase(lName)) {
+                    return lPolicy;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,74 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Connector Filter on shared custom variables
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.connectors;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Selects the connectors whose shared custom variables match the given
+ * key/value pairs, with the same semantics as
+ * {@code WebSocketServer.selectConnectors}: string values are matched as
+ * regular expression, all other values need to be equal and multiple
+ * key/value pairs are combined by a logical 'and'. The regular expressions
+ * are compiled only once when the filter is created.
+ *
+ * @author aschulze
+ */
+public class VarConnectorFilter extends CompiledConnectorFilter {
+
+    private final Map<String, Object> mFilter;
+
+    /**
+     *
+     * @param aFilter key/value pairs as search criteria
+     */
+    public VarConnectorFilter(Map<String, Object> aFilter) {
+        mFilter = aFilter;
+        for (Map.Entry<String, Object> lEntry : aFilter.entrySet()) {
+            var(lEntry.getKey(), lEntry.getValue());
+        }
+    }
+
+    /**
+     * Returns the key/value pairs of this filter.
+     *
+     * @return
+     */
+    public Map<String, Object> getFilter() {
+        return Collections.unmodifiableMap(mFilter);
+    }
+
+    /**
+     * Checks if the value of a connector variable matches the passed filter
+     * value. Strings are matched as regular expression, all other values
+     * need to be equal.
+     *
+     * @param aVarVal
+     * @param aFilterVal
+     * @return
+     */
+    public static boolean matches(Object aVarVal, Object aFilterVal) {
+        if (aVarVal == null) {
+            return false;
+        }
+        if (aVarVal instanceof String && aFilterVal instanceof String) {
+            return PatternCache.getDefault().getPattern((String) aFilterVal)
+                    .matcher((String) aVarVal).matches();
+        }
+        return aVarVal.equals(aFilterVal);
+    }
+}
@@ -0,0 +1,38 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Listener for the writability of connectors
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.connectors;
+
+import org.jwebsocket.api.WebSocketConnector;
+
+/**
+ * Is notified when the outbound queue of a connector exceeds its high
+ * watermark (the connector becomes unwritable) and when it has drained
+ * below its low watermark again (the connector becomes writable). Plug-ins
+ * may use this to pause and resume sending to slow clients.
+ *
+ * @author aschulze
+ */
+public interface WritabilityListener {
+
+    /**
+     * Is called when the writability of the connector has changed.
+     *
+     * @param aConnector
+     * @param aWritable <tt>true</tt> if the connector has become writable
+     * again, <tt>false</tt> if it has exceeded its high watermark
+     */
+    void processWritabilityChanged(WebSocketConnector aConnector, boolean aWritable);
+}
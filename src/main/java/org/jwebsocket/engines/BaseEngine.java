@@ -15,12 +15,23 @@
 //    ---------------------------------------------------------------------------
 package org.jwebsocket.engines;
 
+import java.net.InetAddress;
 import java.util.Map;
 import javolution.util.FastMap;
 import org.jwebsocket.api.*;
+import org.jwebsocket.broadcast.BroadcastExecutor;
+import org.jwebsocket.broadcast.EncodedPacket;
+import org.jwebsocket.buffer.BufferPool;
+import org.jwebsocket.buffer.BufferPoolFactory;
+import org.jwebsocket.buffer.ReferenceCountUtils;
+import org.jwebsocket.kit.BroadcastOptions;
 import org.jwebsocket.config.JWebSocketCommonConstants;
+import org.jwebsocket.connectors.BaseConnector;
+import org.jwebsocket.connectors.FlushScheduler;
+import org.jwebsocket.connectors.WritabilityListener;
 import org.jwebsocket.kit.CloseReason;
 import org.jwebsocket.kit.WebSocketException;
+import org.jwebsocket.util.LongHashMap;
 
 /**
  * Provides the basic implementation of the jWebSocket engines. The
@@ -29,14 +40,27 @@ import org.jwebsocket.kit.WebSocketException;
  * 
  * @author aschulze
  */
-public class BaseEngine implements WebSocketEngine {
+public class BaseEngine implements WebSocketEngine, ConnectorCounter,
+        LongIdLookup, BufferPoolProvider {
 
     private final Map<String, WebSocketServer> mServers =
             new FastMap<String, WebSocketServer>().shared();
-    private final FastMap<String, WebSocketConnector> mConnectors =
-            new FastMap<String, WebSocketConnector>().shared();
+    /**
+     * Connectors by their numeric handle, also looked up by string id.
+     */
+    private final EngineConnectorMap mConnectors = new EngineConnectorMap(this);
+    /**
+     * Connectors by their remote port, looked up without boxing the port and
+     * modified under the lock of the map. Usually there is only one
+     * connector per port, but clients behind different NATs may use the same
+     * port, hence the values are arrays.
+     */
+    private final LongHashMap<WebSocketConnector[]> mConnectorsByPort =
+            new LongHashMap<WebSocketConnector[]>();
     private int mSessionTimeout = JWebSocketCommonConstants.DEFAULT_TIMEOUT;
     private EngineConfiguration mConfiguration;
+    private volatile WritabilityListener[] mWritabilityListeners = new WritabilityListener[0];
+    private volatile BufferPool mBufferPool = null;
 
     public BaseEngine(EngineConfiguration aConfiguration) {
         mConfiguration = aConfiguration;
@@ -71,6 +95,7 @@ public class BaseEngine implements WebSocketEngine {
 
     @Override
     public void engineStarted() {
+        FlushScheduler.acquire();
         // notify servers that the engine has started
         for (WebSocketServer lServer : mServers.values()) {
             lServer.engineStarted(this);
@@ -79,6 +104,7 @@ public class BaseEngine implements WebSocketEngine {
 
     @Override
     public void engineStopped() {
+        FlushScheduler.release();
         // notify servers that the engine has stopped
         for (WebSocketServer lServer : mServers.values()) {
             lServer.engineStopped(this);
@@ -101,8 +127,7 @@ public class BaseEngine implements WebSocketEngine {
             lServer.connectorStopped(aConnector, aCloseReason);
         }
         // once a connector stopped remove it from the list of connectors
-        // FastMap ensures that the entry is being kept in shared mode
-        mConnectors.remove(aConnector.getId());
+        removeConnector(aConnector);
     }
 
     @Override
@@ -110,12 +135,26 @@ public class BaseEngine implements WebSocketEngine {
         return false;
     }
 
+    /**
+     * Passes the packet to all servers of this engine. The engine hands over
+     * its reference to the packet, i.e. a reference counted packet (see
+     * {@link org.jwebsocket.buffer.ReferenceCounted}) is released after all servers have processed
+     * it. Servers, listeners and plug-ins which keep the packet beyond the
+     * call have to retain it.
+     *
+     * @param aConnector
+     * @param aDataPacket
+     */
     @Override
     public void processPacket(WebSocketConnector aConnector,
             WebSocketPacket aDataPacket) {
-        Map<String, WebSocketServer> lServers = getServers();
-        for (WebSocketServer lServer : lServers.values()) {
-            lServer.processPacket(this, aConnector, aDataPacket);
+        try {
+            Map<String, WebSocketServer> lServers = getServers();
+            for (WebSocketServer lServer : lServers.values()) {
+                lServer.processPacket(this, aConnector, aDataPacket);
+            }
+        } finally {
+            ReferenceCountUtils.release(aDataPacket);
         }
     }
 
@@ -125,22 +164,152 @@ public class BaseEngine implements WebSocketEngine {
         aConnector.sendPacket(aDataPacket);
     }
 
+    /**
+     * Broadcasts the packet to all connectors except the source, see
+     * {@link #broadcastPacket(WebSocketConnector, WebSocketPacket, BroadcastOptions)}.
+     *
+     * @param aSource
+     * @param aDataPacket
+     */
     @Override
     public void broadcastPacket(WebSocketConnector aSource,
             WebSocketPacket aDataPacket) {
+        broadcastPacket(aSource, aDataPacket, new BroadcastOptions(false, false));
+    }
+
+    /**
+     * Broadcasts a data packet to the connectors of this engine according to
+     * the passed broadcast options, i.e. the source connector is only
+     * included if requested and the packets are sent asynchronously if
+     * requested.
+     *
+     * @param aSource
+     * @param aDataPacket
+     * @param aBroadcastOptions
+     */
+    public void broadcastPacket(WebSocketConnector aSource,
+            WebSocketPacket aDataPacket, BroadcastOptions aBroadcastOptions) {
+        boolean lAsync = aBroadcastOptions.isAsync();
+        boolean lSenderIncluded = aBroadcastOptions.isSenderIncluded();
+        // frame the packet only once per protocol variant
+        EncodedPacket lPacket = new EncodedPacket(aDataPacket);
         for (WebSocketConnector lConnector : mConnectors.values()) {
-            lConnector.sendPacket(aDataPacket);
+            if (lSenderIncluded || !lConnector.equals(aSource)) {
+                if (lAsync) {
+                    BroadcastExecutor.DIRECT_SENDER.sendPacketAsync(lConnector, lPacket);
+                } else {
+                    BroadcastExecutor.DIRECT_SENDER.sendPacket(lConnector, lPacket);
+                }
+            }
         }
     }
 
     @Override
     public void addConnector(WebSocketConnector aConnector) {
-        mConnectors.put(aConnector.getId(), aConnector);
+        mConnectors.add(aConnector);
+        int lPort = aConnector.getRemotePort();
+        synchronized (mConnectorsByPort) {
+            addToPortIndex(lPort, aConnector);
+        }
     }
 
     @Override
     public void removeConnector(WebSocketConnector aConnector) {
-        mConnectors.remove(aConnector.getId());
+        mConnectors.remove(aConnector);
+        int lPort = aConnector.getRemotePort();
+        synchronized (mConnectorsByPort) {
+            removeFromPortIndex(lPort, aConnector);
+        }
+    }
+
+    private void addToPortIndex(int aPort, WebSocketConnector aConnector) {
+        WebSocketConnector[] lConnectors = mConnectorsByPort.get(aPort);
+        if (null == lConnectors) {
+            mConnectorsByPort.put(aPort, new WebSocketConnector[]{aConnector});
+            return;
+        }
+        for (WebSocketConnector lConnector : lConnectors) {
+            if (lConnector == aConnector) {
+                return;
+            }
+        }
+        WebSocketConnector[] lNew = new WebSocketConnector[lConnectors.length + 1];
+        System.arraycopy(lConnectors, 0, lNew, 0, lConnectors.length);
+        lNew[lConnectors.length] = aConnector;
+        mConnectorsByPort.put(aPort, lNew);
+    }
+
+    private void removeFromPortIndex(int aPort, WebSocketConnector aConnector) {
+        WebSocketConnector[] lConnectors = mConnectorsByPort.get(aPort);
+        if (null == lConnectors) {
+            return;
+        }
+        for (int lIdx = 0; lIdx < lConnectors.length; lIdx++) {
+            if (lConnectors[lIdx] == aConnector) {
+                if (lConnectors.length == 1) {
+                    mConnectorsByPort.remove(aPort);
+                } else {
+                    WebSocketConnector[] lNew = new WebSocketConnector[lConnectors.length - 1];
+                    System.arraycopy(lConnectors, 0, lNew, 0, lIdx);
+                    System.arraycopy(lConnectors, lIdx + 1, lNew, lIdx,
+                            lConnectors.length - lIdx - 1);
+                    mConnectorsByPort.put(aPort, lNew);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public WebSocketConnector getConnector(long aLongId) {
+        return mConnectors.getByHandle(aLongId);
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public int getConnectorCount() {
+        return mConnectors.size();
+    }
+
+    /**
+     * Returns the number of connectors of the passed engine, without
+     * iterating them if the engine implements {@link ConnectorCounter}.
+     *
+     * @param aEngine
+     * @return the number of connectors of the engine
+     */
+    public static int countConnectors(WebSocketEngine aEngine) {
+        if (aEngine instanceof ConnectorCounter) {
+            return ((ConnectorCounter) aEngine).getConnectorCount();
+        }
+        return aEngine.getConnectors().size();
+    }
+
+    /**
+     * Returns the connector of the passed engine identified by its numeric
+     * handle. Engines which do not implement {@link LongIdLookup} are
+     * searched sequentially.
+     *
+     * @param aEngine
+     * @param aLongId the numeric handle of the connector
+     * @return the connector or {@code null}
+     */
+    public static WebSocketConnector findConnector(WebSocketEngine aEngine, long aLongId) {
+        if (aEngine instanceof LongIdLookup) {
+            return ((LongIdLookup) aEngine).getConnector(aLongId);
+        }
+        for (WebSocketConnector lConnector : aEngine.getConnectors().values()) {
+            if (lConnector instanceof LongIdConnector
+                    && ((LongIdConnector) lConnector).getLongId() == aLongId) {
+                return lConnector;
+            }
+        }
+        return null;
     }
 
     @Override
@@ -158,16 +327,49 @@ public class BaseEngine implements WebSocketEngine {
         return mConfiguration.getMaxFramesize();
     }
 
+    /**
+     * {@inheritDoc }
+     *
+     * The returned map is a live view, the connectors are looked up by the
+     * numeric handle encoded in their id without hashing the id.
+     */
     @Override
     public Map<String, WebSocketConnector> getConnectors() {
         return mConnectors;
     }
 
+    /**
+     * {@inheritDoc }
+     *
+     * The connector is looked up in an index maintained by
+     * {@link #addConnector} and {@link #removeConnector}. If multiple clients
+     * use the same remote port (e.g. behind different NATs) the one which
+     * connected first is returned, use
+     * {@link #getConnectorByRemoteAddress(InetAddress, int)} to distinguish
+     * them.
+     */
     @Override
     public WebSocketConnector getConnectorByRemotePort(int aRemotePort) {
-        for (WebSocketConnector lConnector : mConnectors.values()) {
-            if (lConnector.getRemotePort() == aRemotePort) {
-                return lConnector;
+        WebSocketConnector[] lConnectors = mConnectorsByPort.get(aRemotePort);
+        return (null != lConnectors ? lConnectors[0] : null);
+    }
+
+    /**
+     * Returns the connector identified by its remote host and port or
+     * {@code null} if there's no such client connected to this engine.
+     *
+     * @param aRemoteHost the remote host searched for.
+     * @param aRemotePort the remote TCP port searched for.
+     * @return WebSocketConnector that matches the given remote address or {@code null}.
+     */
+    public WebSocketConnector getConnectorByRemoteAddress(InetAddress aRemoteHost,
+            int aRemotePort) {
+        WebSocketConnector[] lConnectors = mConnectorsByPort.get(aRemotePort);
+        if (null != lConnectors) {
+            for (WebSocketConnector lConnector : lConnectors) {
+                if (null != aRemoteHost && aRemoteHost.equals(lConnector.getRemoteHost())) {
+                    return lConnector;
+                }
             }
         }
         return null;
@@ -208,6 +410,89 @@ public class BaseEngine implements WebSocketEngine {
     public Integer getMaxConnections() {
         return mConfiguration.getMaxConnections();
     }
-    
-    
+
+    /**
+     * {@inheritDoc}
+     *
+     * The pool is created on first use according to the settings of the
+     * engine configuration.
+     */
+    @Override
+    public BufferPool getBufferPool() {
+        BufferPool lPool = mBufferPool;
+        if (null == lPool) {
+            synchronized (this) {
+                lPool = mBufferPool;
+                if (null == lPool) {
+                    lPool = BufferPoolFactory.createBufferPool(getSettings());
+                    mBufferPool = lPool;
+                }
+            }
+        }
+        return lPool;
+    }
+
+    private Map<String, Object> getSettings() {
+        try {
+            return mConfiguration.getSettings();
+        } catch (RuntimeException lEx) {
+            // no configuration or no settings given for this engine
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the buffer pool of this engine, e.g. to share one pool among
+     * several engines.
+     *
+     * @param aBufferPool
+     */
+    public void setBufferPool(BufferPool aBufferPool) {
+        mBufferPool = aBufferPool;
+    }
+
+    /**
+     * Adds a listener which is notified when any connector of this engine
+     * becomes unwritable or writable again, see {@link BaseConnector}.
+     *
+     * @param aListener
+     */
+    public synchronized void addWritabilityListener(WritabilityListener aListener) {
+        WritabilityListener[] lListeners = new WritabilityListener[mWritabilityListeners.length + 1];
+        System.arraycopy(mWritabilityListeners, 0, lListeners, 0, mWritabilityListeners.length);
+        lListeners[mWritabilityListeners.length] = aListener;
+        mWritabilityListeners = lListeners;
+    }
+
+    /**
+     *
+     * @param aListener
+     */
+    public synchronized void removeWritabilityListener(WritabilityListener aListener) {
+        int lCount = 0;
+        WritabilityListener[] lListeners = new WritabilityListener[mWritabilityListeners.length];
+        for (WritabilityListener lListener : mWritabilityListeners) {
+            if (lListener != aListener) {
+                lListeners[lCount++] = lListener;
+            }
+        }
+        if (lCount < mWritabilityListeners.length) {
+            WritabilityListener[] lResult = new WritabilityListener[lCount];
+            System.arraycopy(lListeners, 0, lResult, 0, lCount);
+            mWritabilityListeners = lResult;
+        }
+    }
+
+    /**
+     * Is called by the connectors of this engine when they become unwritable
+     * or writable again and notifies the registered listeners.
+     *
+     * @param aConnector
+     * @param aWritable
+     */
+    public void processWritabilityChanged(WebSocketConnector aConnector, boolean aWritable) {
+        for (WritabilityListener lListener : mWritabilityListeners) {
+            lListener.processWritabilityChanged(aConnector, aWritable);
+        }
+    }
 }
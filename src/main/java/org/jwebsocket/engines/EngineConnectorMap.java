@@ -0,0 +1,281 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Connector map of an engine keyed by numeric handle
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.engines;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jwebsocket.api.LongIdConnector;
+import org.jwebsocket.api.WebSocketConnector;
+import org.jwebsocket.util.LongHashMap;
+
+/**
+ * Live map of the connectors of an engine by their string id. The
+ * connectors are stored by their numeric handle, the string id of a
+ * {@code BaseConnector} ends with its handle in radix 36, hence a lookup by
+ * id parses the handle instead of hashing the id. Only connectors whose id
+ * does not encode their handle are additionally stored by their string id.
+ *
+ * Lookups are lock free and do not box the handle, modifications of the map
+ * are passed to {@link BaseEngine#addConnector} and
+ * {@link BaseEngine#removeConnector}.
+ *
+ * @author aschulze
+ */
+class EngineConnectorMap extends AbstractMap<String, WebSocketConnector> {
+
+    private final BaseEngine mEngine;
+    private final LongHashMap<WebSocketConnector> mByHandle =
+            new LongHashMap<WebSocketConnector>();
+    private final ConcurrentMap<String, WebSocketConnector> mById =
+            new ConcurrentHashMap<String, WebSocketConnector>();
+    private final AtomicInteger mSize = new AtomicInteger(0);
+    private final Set<Map.Entry<String, WebSocketConnector>> mEntrySet = new EntrySet();
+
+    /**
+     *
+     * @param aEngine the engine which owns the connectors
+     */
+    EngineConnectorMap(BaseEngine aEngine) {
+        mEngine = aEngine;
+    }
+
+    /**
+     * Returns the numeric handle of the passed connector or -1 if it has
+     * none.
+     *
+     * @param aConnector
+     * @return
+     */
+    static long getHandle(WebSocketConnector aConnector) {
+        return (aConnector instanceof LongIdConnector
+                ? ((LongIdConnector) aConnector).getLongId() : -1);
+    }
+
+    /**
+     * Parses the numeric handle from the last segment of a connector id, see
+     * {@code BaseConnector.getId()}.
+     *
+     * @param aId
+     * @return the handle or -1 if the id does not end with a handle
+     */
+    static long parseHandle(String aId) {
+        int lStart = aId.lastIndexOf('.') + 1;
+        int lLength = aId.length() - lStart;
+        // longer segments may overflow a long
+        if (lLength < 1 || lLength > 12) {
+            return -1;
+        }
+        long lHandle = 0;
+        for (int lIdx = lStart; lIdx < aId.length(); lIdx++) {
+            int lDigit = Character.digit(aId.charAt(lIdx), Character.MAX_RADIX);
+            if (lDigit < 0) {
+                return -1;
+            }
+            lHandle = lHandle * Character.MAX_RADIX + lDigit;
+        }
+        return lHandle;
+    }
+
+    /**
+     * Adds the connector, is called by {@link BaseEngine#addConnector}.
+     *
+     * @param aConnector
+     * @return <tt>true</tt> if the connector has not been contained yet
+     */
+    boolean add(WebSocketConnector aConnector) {
+        String lId = aConnector.getId();
+        long lHandle = getHandle(aConnector);
+        WebSocketConnector lPrevious = null;
+        if (lHandle >= 0) {
+            lPrevious = mByHandle.put(lHandle, aConnector);
+        }
+        if (lHandle < 0 || lHandle != parseHandle(lId)) {
+            WebSocketConnector lPreviousById = mById.put(lId, aConnector);
+            if (lHandle < 0) {
+                lPrevious = lPreviousById;
+            }
+        }
+        if (null == lPrevious) {
+            mSize.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the connector, is called by {@link BaseEngine#removeConnector}.
+     *
+     * @param aConnector
+     * @return <tt>true</tt> if the connector has been contained
+     */
+    boolean remove(WebSocketConnector aConnector) {
+        String lId = aConnector.getId();
+        long lHandle = getHandle(aConnector);
+        boolean lRemoved;
+        if (lHandle >= 0) {
+            lRemoved = mByHandle.remove(lHandle, aConnector);
+            mById.remove(lId, aConnector);
+        } else {
+            lRemoved = mById.remove(lId, aConnector);
+        }
+        if (lRemoved) {
+            mSize.decrementAndGet();
+        }
+        return lRemoved;
+    }
+
+    /**
+     * Returns the connector with the passed numeric handle.
+     *
+     * @param aHandle
+     * @return the connector or <tt>null</tt>
+     */
+    WebSocketConnector getByHandle(long aHandle) {
+        return (aHandle >= 0 ? mByHandle.get(aHandle) : null);
+    }
+
+    @Override
+    public WebSocketConnector get(Object aId) {
+        if (!(aId instanceof String)) {
+            return null;
+        }
+        String lId = (String) aId;
+        long lHandle = parseHandle(lId);
+        if (lHandle >= 0) {
+            WebSocketConnector lConnector = mByHandle.get(lHandle);
+            // the handle is unique per node only
+            if (null != lConnector && lId.equals(lConnector.getId())) {
+                return lConnector;
+            }
+        }
+        return (mById.isEmpty() ? null : mById.get(lId));
+    }
+
+    @Override
+    public boolean containsKey(Object aId) {
+        return get(aId) != null;
+    }
+
+    @Override
+    public WebSocketConnector put(String aId, WebSocketConnector aConnector) {
+        if (!aId.equals(aConnector.getId())) {
+            throw new IllegalArgumentException("Connectors are mapped by their id");
+        }
+        WebSocketConnector lPrevious = get(aId);
+        if (lPrevious != aConnector) {
+            if (null != lPrevious) {
+                mEngine.removeConnector(lPrevious);
+            }
+            mEngine.addConnector(aConnector);
+        }
+        return lPrevious;
+    }
+
+    @Override
+    public WebSocketConnector remove(Object aId) {
+        WebSocketConnector lConnector = get(aId);
+        if (null != lConnector) {
+            mEngine.removeConnector(lConnector);
+        }
+        return lConnector;
+    }
+
+    @Override
+    public int size() {
+        return mSize.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mSize.get() == 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, WebSocketConnector>> entrySet() {
+        return mEntrySet;
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<String, WebSocketConnector>> {
+
+        @Override
+        public Iterator<Map.Entry<String, WebSocketConnector>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return EngineConnectorMap.this.size();
+        }
+    }
+
+    /**
+     * Iterates the connectors by handle, then the connectors without handle.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<String, WebSocketConnector>> {
+
+        private final Iterator<WebSocketConnector> mHandled = mByHandle.values();
+        private final Iterator<WebSocketConnector> mUnhandled = mById.values().iterator();
+        private WebSocketConnector mNext = null;
+        private WebSocketConnector mLast = null;
+
+        @Override
+        public boolean hasNext() {
+            if (null != mNext) {
+                return true;
+            }
+            if (mHandled.hasNext()) {
+                mNext = mHandled.next();
+                return true;
+            }
+            while (mUnhandled.hasNext()) {
+                WebSocketConnector lConnector = mUnhandled.next();
+                // connectors with handle have been returned already
+                if (getHandle(lConnector) < 0) {
+                    mNext = lConnector;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Map.Entry<String, WebSocketConnector> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mLast = mNext;
+            mNext = null;
+            return new AbstractMap.SimpleImmutableEntry<String, WebSocketConnector>(
+                    mLast.getId(), mLast);
+        }
+
+        @Override
+        public void remove() {
+            if (null == mLast) {
+                throw new IllegalStateException();
+            }
+            mEngine.removeConnector(mLast);
+            mLast = null;
+        }
+    }
+}
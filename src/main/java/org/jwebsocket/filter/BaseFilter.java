@@ -15,7 +15,10 @@
 //    ---------------------------------------------------------------------------
 package org.jwebsocket.filter;
 
+import java.util.BitSet;
+import java.util.List;
 import org.jwebsocket.api.FilterConfiguration;
+import org.jwebsocket.api.WebSocketBatchFilter;
 import org.jwebsocket.api.WebSocketConnector;
 import org.jwebsocket.api.WebSocketFilter;
 import org.jwebsocket.api.WebSocketFilterChain;
@@ -28,7 +31,7 @@ import org.jwebsocket.kit.FilterResponse;
  * 
  * @author aschulze
  */
-public class BaseFilter implements WebSocketFilter {
+public class BaseFilter implements WebSocketFilter, WebSocketBatchFilter {
     // every filter has a backward reference to its filter chain
     private String mVersion = null;
     private WebSocketFilterChain mFilterChain = null;
@@ -59,6 +62,32 @@ public class BaseFilter implements WebSocketFilter {
     public void processPacketOut(FilterResponse aResponse, WebSocketConnector aSource, WebSocketConnector aTarget, WebSocketPacket aPacket) {
     }
 
+    /**
+     * Default implementation of the batch filter, which passes the packet to
+     * {@link #processPacketOut(FilterResponse, WebSocketConnector, WebSocketConnector, WebSocketPacket)}
+     * once per target that has not been rejected yet. Filters whose decision
+     * does not depend on the target are supposed to override this method
+     * and to check the packet only once, in addition to the single target
+     * method which is still used for packets sent to one target.
+     *
+     * @param aRejected
+     * @param aSource
+     * @param aTargets
+     * @param aPacket
+     */
+    @Override
+    public void processPacketOut(BitSet aRejected, WebSocketConnector aSource, List<WebSocketConnector> aTargets, WebSocketPacket aPacket) {
+        FilterResponse lResponse = new FilterResponse();
+        int lCount = aTargets.size();
+        for (int lIdx = aRejected.nextClearBit(0); lIdx < lCount; lIdx = aRejected.nextClearBit(lIdx + 1)) {
+            processPacketOut(lResponse, aSource, aTargets.get(lIdx), aPacket);
+            if (lResponse.isRejected()) {
+                aRejected.set(lIdx);
+                lResponse.relaxMessage();
+            }
+        }
+    }
+
     /**
      * 
      * @param aFilterChain
@@ -119,6 +148,10 @@ public class BaseFilter implements WebSocketFilter {
                 mConfiguration.getServers(), mConfiguration.getSettings(), aEnabled);
         // notify filter for change of enabled status
         if (aEnabled != lOldEnabled) {
+            // the chain dispatches to precompiled arrays of enabled filters
+            if (mFilterChain instanceof BaseFilterChain) {
+                ((BaseFilterChain) mFilterChain).refresh();
+            }
             processEnabled(aEnabled);
         }
     }
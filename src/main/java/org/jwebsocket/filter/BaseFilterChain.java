@@ -15,20 +15,76 @@
 //    ---------------------------------------------------------------------------
 package org.jwebsocket.filter;
 
+import java.lang.reflect.Method;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import javolution.util.FastList;
 import org.jwebsocket.api.*;
 import org.jwebsocket.kit.FilterResponse;
 
 /**
+ * Implements the basic chain of filters for incoming and outgoing packets.
+ *
+ * The chain is compiled into an immutable snapshot which is replaced
+ * atomically whenever filters are added, removed or enabled/disabled. The
+ * snapshot contains one array per direction with the enabled filters which
+ * actually implement that direction, i.e. {@code BaseFilter} descendants
+ * which do not override <tt>processPacketIn</tt> or <tt>processPacketOut</tt>
+ * are skipped. Each call returns a new response which is owned by the
+ * caller.
+ *
+ * The filters are called synchronously, the packet is valid during the
+ * call only. Filters which keep a reference counted packet (see
+ * {@link org.jwebsocket.buffer.ReferenceCounted}) beyond the call have to
+ * retain it, filters must not release packets they have not retained.
  *
  * @author aschulze
  * @author Marcos Antonio González Huerta (markos0886, UCI)
  */
 public class BaseFilterChain implements WebSocketFilterChain {
 
-    private List<WebSocketFilter> mFilters = new FastList<WebSocketFilter>();
+    private volatile Snapshot mSnapshot = new Snapshot(new WebSocketFilter[0]);
     private WebSocketServer mServer = null;
+    private final List<WebSocketFilter> mFiltersView = new AbstractList<WebSocketFilter>() {
+
+        @Override
+        public WebSocketFilter get(int aIndex) {
+            return mSnapshot.mFilters[aIndex];
+        }
+
+        @Override
+        public int size() {
+            return mSnapshot.mFilters.length;
+        }
+
+        @Override
+        public void add(int aIndex, WebSocketFilter aFilter) {
+            addFilter(aIndex, aFilter);
+        }
+
+        @Override
+        public WebSocketFilter set(int aIndex, WebSocketFilter aFilter) {
+            WebSocketFilter lOld;
+            synchronized (BaseFilterChain.this) {
+                lOld = get(aIndex);
+                removeFilter(lOld);
+                addFilter(aIndex, aFilter);
+            }
+            return lOld;
+        }
+
+        @Override
+        public WebSocketFilter remove(int aIndex) {
+            WebSocketFilter lFilter;
+            synchronized (BaseFilterChain.this) {
+                lFilter = get(aIndex);
+                removeFilter(lFilter);
+            }
+            return lFilter;
+        }
+    };
 
     /**
      *
@@ -45,34 +101,69 @@ public class BaseFilterChain implements WebSocketFilterChain {
     public WebSocketServer getServer() {
         return mServer;
     }
-    
-    // TODO: Filters are currently organized in a map, which does not allow to specify an order. This needs to be changed!
 
     @Override
     public void addFilter(WebSocketFilter aFilter) {
-        mFilters.add(aFilter);
+        synchronized (this) {
+            List<WebSocketFilter> lFilters = copyFilters();
+            lFilters.add(aFilter);
+            mSnapshot = new Snapshot(lFilters.toArray(new WebSocketFilter[lFilters.size()]));
+        }
         aFilter.setFilterChain(this);
     }
 
     @Override
     public void removeFilter(WebSocketFilter aFilter) {
-        mFilters.remove(aFilter);
+        synchronized (this) {
+            List<WebSocketFilter> lFilters = copyFilters();
+            lFilters.remove(aFilter);
+            mSnapshot = new Snapshot(lFilters.toArray(new WebSocketFilter[lFilters.size()]));
+        }
         aFilter.setFilterChain(null);
     }
 
+    @Override
+    public void addFilter(Integer aPosition, WebSocketFilter aFilter) {
+        synchronized (this) {
+            List<WebSocketFilter> lFilters = copyFilters();
+            lFilters.add(aPosition, aFilter);
+            mSnapshot = new Snapshot(lFilters.toArray(new WebSocketFilter[lFilters.size()]));
+        }
+        aFilter.setFilterChain(this);
+    }
+
+    /**
+     * Recompiles the snapshot of the chain. This is required when the
+     * enabled state of a filter has changed, {@code BaseFilter} does so
+     * automatically.
+     */
+    public synchronized void refresh() {
+        mSnapshot = new Snapshot(mSnapshot.mFilters);
+    }
+
+    private List<WebSocketFilter> copyFilters() {
+        WebSocketFilter[] lFilters = mSnapshot.mFilters;
+        List<WebSocketFilter> lCopy = new ArrayList<WebSocketFilter>(lFilters.length + 1);
+        lCopy.addAll(Arrays.asList(lFilters));
+        return lCopy;
+    }
+
     /**
+     * Returns a live view of the filters of the chain. Modifications of the
+     * list are applied to the chain like by <tt>addFilter</tt> and
+     * <tt>removeFilter</tt>.
      *
      * @return
      */
     @Override
     public List<WebSocketFilter> getFilters() {
-        return mFilters;
+        return mFiltersView;
     }
 
     @Override
     public WebSocketFilter getFilterById(String aId) {
         if (aId != null) {
-            for (WebSocketFilter lFilter : mFilters) {
+            for (WebSocketFilter lFilter : mSnapshot.mFilters) {
                 FilterConfiguration lConfig = lFilter.getFilterConfiguration();
                 if (lConfig != null && aId.equals(lConfig.getId())) {
                     return lFilter;
@@ -84,9 +175,11 @@ public class BaseFilterChain implements WebSocketFilterChain {
 
     @Override
     public FilterResponse processPacketIn(WebSocketConnector aConnector, WebSocketPacket aPacket) {
+        WebSocketFilter[] lFilters = mSnapshot.mInFilters;
+        // the response is returned to the caller, hence it must not be reused
         FilterResponse lResponse = new FilterResponse();
-        for (WebSocketFilter lFilter : mFilters) {
-            lFilter.processPacketIn(lResponse, aConnector, aPacket);
+        for (int lIdx = 0; lIdx < lFilters.length; lIdx++) {
+            lFilters[lIdx].processPacketIn(lResponse, aConnector, aPacket);
             if (lResponse.isRejected()) {
                 break;
             }
@@ -96,9 +189,10 @@ public class BaseFilterChain implements WebSocketFilterChain {
 
     @Override
     public FilterResponse processPacketOut(WebSocketConnector aSource, WebSocketConnector aTarget, WebSocketPacket aPacket) {
+        WebSocketFilter[] lFilters = mSnapshot.mOutFilters;
         FilterResponse lResponse = new FilterResponse();
-        for (WebSocketFilter lFilter : mFilters) {
-            lFilter.processPacketOut(lResponse, aSource, aTarget, aPacket);
+        for (int lIdx = 0; lIdx < lFilters.length; lIdx++) {
+            lFilters[lIdx].processPacketOut(lResponse, aSource, aTarget, aPacket);
             if (lResponse.isRejected()) {
                 break;
             }
@@ -106,9 +200,107 @@ public class BaseFilterChain implements WebSocketFilterChain {
         return lResponse;
     }
 
-    @Override
-    public void addFilter(Integer aPosition, WebSocketFilter aFilter) {
-        mFilters.add(aPosition, aFilter);
-        aFilter.setFilterChain(this);
+    /**
+     * Filters an outgoing packet for multiple targets at once, e.g. for a
+     * broadcast. Each filter processes all targets which have not been
+     * rejected by a previous filter, the chain stops as soon as all targets
+     * are rejected. Filters which implement {@link WebSocketBatchFilter} are
+     * called once for all targets, others once per target.
+     *
+     * @param aSource
+     * @param aTargets must support efficient random access
+     * @param aPacket
+     * @return the indexes of the rejected targets
+     */
+    public BitSet processPacketOut(WebSocketConnector aSource, List<WebSocketConnector> aTargets, WebSocketPacket aPacket) {
+        BitSet lRejected = new BitSet(aTargets.size());
+        WebSocketFilter[] lFilters = mSnapshot.mOutFilters;
+        int lCount = aTargets.size();
+        FilterResponse lResponse = null;
+        for (int lIdx = 0; lIdx < lFilters.length && lRejected.cardinality() < lCount; lIdx++) {
+            WebSocketFilter lFilter = lFilters[lIdx];
+            if (lFilter instanceof WebSocketBatchFilter) {
+                ((WebSocketBatchFilter) lFilter).processPacketOut(lRejected, aSource, aTargets, aPacket);
+                continue;
+            }
+            if (null == lResponse) {
+                lResponse = new FilterResponse();
+            }
+            for (int lTarget = lRejected.nextClearBit(0); lTarget < lCount;
+                    lTarget = lRejected.nextClearBit(lTarget + 1)) {
+                lFilter.processPacketOut(lResponse, aSource, aTargets.get(lTarget), aPacket);
+                if (lResponse.isRejected()) {
+                    lRejected.set(lTarget);
+                    lResponse.relaxMessage();
+                }
+            }
+        }
+        return lRejected;
+    }
+
+    /**
+     * Returns <tt>true</tt> if at least one enabled filter processes
+     * outgoing packets.
+     *
+     * @return
+     */
+    public boolean hasOutFilters() {
+        return mSnapshot.mOutFilters.length > 0;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the passed filter implements the passed
+     * direction, i.e. if it is no {@code BaseFilter} or if it overrides the
+     * empty default implementation of {@code BaseFilter}.
+     *
+     * @param aFilter
+     * @param aMethod name of the method
+     * @param aParamTypes parameter types of the method
+     * @return
+     */
+    private static boolean implementsMethod(WebSocketFilter aFilter, String aMethod,
+            Class<?>... aParamTypes) {
+        if (!(aFilter instanceof BaseFilter)) {
+            return true;
+        }
+        try {
+            Method lMethod = aFilter.getClass().getMethod(aMethod, aParamTypes);
+            return lMethod.getDeclaringClass() != BaseFilter.class;
+        } catch (NoSuchMethodException lEx) {
+            return true;
+        }
+    }
+
+    /**
+     * Immutable state of the chain.
+     */
+    private static class Snapshot {
+
+        final WebSocketFilter[] mFilters;
+        final WebSocketFilter[] mInFilters;
+        final WebSocketFilter[] mOutFilters;
+
+        Snapshot(WebSocketFilter[] aFilters) {
+            mFilters = aFilters;
+            List<WebSocketFilter> lIn = new ArrayList<WebSocketFilter>(aFilters.length);
+            List<WebSocketFilter> lOut = new ArrayList<WebSocketFilter>(aFilters.length);
+            for (WebSocketFilter lFilter : aFilters) {
+                if (!lFilter.getEnabled()) {
+                    continue;
+                }
+                if (implementsMethod(lFilter, "processPacketIn", FilterResponse.class,
+                        WebSocketConnector.class, WebSocketPacket.class)) {
+                    lIn.add(lFilter);
+                }
+                if (implementsMethod(lFilter, "processPacketOut", FilterResponse.class,
+                        WebSocketConnector.class, WebSocketConnector.class, WebSocketPacket.class)
+                        || implementsMethod(lFilter, "processPacketOut", BitSet.class,
+                        WebSocketConnector.class, List.class, WebSocketPacket.class)) {
+                    lOut.add(lFilter);
+                }
+            }
+            mInFilters = lIn.toArray(new WebSocketFilter[lIn.size()]);
+            mOutFilters = lOut.toArray(new WebSocketFilter[lOut.size()]);
+        }
     }
 }
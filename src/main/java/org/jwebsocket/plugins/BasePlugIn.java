@@ -210,13 +210,18 @@ public abstract class BasePlugIn implements WebSocketPlugIn {
 
     /**
      * Convenience method, just a wrapper for token server method
-     * <tt>getServer().getAllConnectors().size()</tt> to simplify token plug-in
-     * code.
+     * <tt>getServer().getConnectorCount()</tt> to simplify token plug-in
+     * code. Servers which do not implement {@link ConnectorCounter} count
+     * the map of all connectors.
      *
      * @return
      */
     public int getConnectorCount() {
-        return getServer().getAllConnectors().size();
+        WebSocketServer lServer = getServer();
+        if (lServer instanceof ConnectorCounter) {
+            return ((ConnectorCounter) lServer).getConnectorCount();
+        }
+        return lServer.getAllConnectors().size();
     }
 
     /**
@@ -15,25 +15,92 @@
 //    ---------------------------------------------------------------------------
 package org.jwebsocket.plugins;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import javolution.util.FastList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import org.apache.log4j.Logger;
 import org.jwebsocket.api.*;
+import org.jwebsocket.async.DiscardableTask;
+import org.jwebsocket.async.OrderedExecutor;
+import org.jwebsocket.buffer.ReferenceCountUtils;
 import org.jwebsocket.kit.CloseReason;
 import org.jwebsocket.kit.PlugInResponse;
 import org.jwebsocket.logging.Logging;
+import org.jwebsocket.server.BaseServer;
 
 /**
  * Implements the basic chain of plug-ins which is triggered by a server
  * when data packets are received. Each data packet is pushed through the chain
  * and can be processed by the plug-ins.
+ *
+ * The chain is compiled into an immutable snapshot which is replaced
+ * atomically whenever plug-ins are added or removed at runtime. Hence the
+ * packet dispatch neither locks nor can it observe a partially modified
+ * chain. The enabled state of the plug-ins is checked on each dispatch, so
+ * that it may change at any time.
+ *
+ * Optionally the chain routes packets by namespace (see
+ * {@link #setNamespaceRouting(boolean)}): a packet of a certain namespace is
+ * only passed to the plug-ins which declare that namespace in their
+ * configuration and to the plug-ins which do not declare any namespace, in
+ * the order of the chain.
+ *
+ * In asynchronous mode (see {@link #setAsync(boolean)}) the connector events
+ * and packets are processed by a worker pool instead of the thread which
+ * delivered them, so that slow plug-ins do not stall the reader of the
+ * engine. The events of one connector are still processed in the order of
+ * their arrival, the events of different connectors in parallel.
  * @author aschulze
  * @author Marcos Antonio González Huerta (markos0886, UCI)
  */
 public class BasePlugInChain implements WebSocketPlugInChain {
 
     private static Logger mLog = Logging.getLogger();
-    private List<WebSocketPlugIn> mPlugins = new FastList<WebSocketPlugIn>();
+    private volatile Snapshot mSnapshot = new Snapshot(new WebSocketPlugIn[0]);
+    private final List<WebSocketPlugIn> mPlugInsView = new AbstractList<WebSocketPlugIn>() {
+
+        @Override
+        public WebSocketPlugIn get(int aIndex) {
+            return mSnapshot.mPlugIns[aIndex];
+        }
+
+        @Override
+        public int size() {
+            return mSnapshot.mPlugIns.length;
+        }
+
+        @Override
+        public void add(int aIndex, WebSocketPlugIn aPlugIn) {
+            addPlugIn(aIndex, aPlugIn);
+        }
+
+        @Override
+        public WebSocketPlugIn set(int aIndex, WebSocketPlugIn aPlugIn) {
+            synchronized (BasePlugInChain.this) {
+                WebSocketPlugIn lOld = get(aIndex);
+                removePlugIn(lOld);
+                addPlugIn(aIndex, aPlugIn);
+                return lOld;
+            }
+        }
+
+        @Override
+        public WebSocketPlugIn remove(int aIndex) {
+            synchronized (BasePlugInChain.this) {
+                WebSocketPlugIn lPlugIn = get(aIndex);
+                removePlugIn(lPlugIn);
+                return lPlugIn;
+            }
+        }
+    };
+    private volatile boolean mNamespaceRouting = false;
+    private volatile OrderedExecutor mAsyncExecutor = null;
     private WebSocketServer mServer = null;
 
     /**
@@ -53,7 +120,7 @@ public class BasePlugInChain implements WebSocketPlugInChain {
             mLog.debug("Notifying plug-ins of server '" + getServer().getId() + "' that engine '" + aEngine.getId() + "' started...");
         }
         try {
-            for (WebSocketPlugIn lPlugIn : getPlugIns()) {
+            for (WebSocketPlugIn lPlugIn : mSnapshot.mPlugIns) {
                 try {
                     lPlugIn.engineStarted(aEngine);
                 } catch (Exception lEx) {
@@ -83,7 +150,7 @@ public class BasePlugInChain implements WebSocketPlugInChain {
                     + "' stopped...");
         }
         try {
-            for (WebSocketPlugIn lPlugIn : getPlugIns()) {
+            for (WebSocketPlugIn lPlugIn : mSnapshot.mPlugIns) {
                 try {
                     lPlugIn.engineStopped(aEngine);
                 } catch (Exception lEx) {
@@ -106,25 +173,41 @@ public class BasePlugInChain implements WebSocketPlugInChain {
      * @param aConnector
      */
     @Override
-    public void connectorStarted(WebSocketConnector aConnector) {
+    public void connectorStarted(final WebSocketConnector aConnector) {
+        OrderedExecutor lAsyncExecutor = mAsyncExecutor;
+        if (null != lAsyncExecutor) {
+            lAsyncExecutor.execute(aConnector, new Runnable() {
+
+                @Override
+                public void run() {
+                    doConnectorStarted(aConnector);
+                }
+            }, true);
+        } else {
+            doConnectorStarted(aConnector);
+        }
+    }
+
+    private void doConnectorStarted(WebSocketConnector aConnector) {
         if (mLog.isDebugEnabled()) {
             mLog.debug("Notifying plug-ins that connector '"
                     + aConnector.getId() + "' started...");
         }
         try {
-            for (WebSocketPlugIn lPlugIn : getPlugIns()) {
-                if (lPlugIn.getEnabled()) {
-                    try {
-                        // log.debug("Notifying plug-in " + plugIn + " that connector started...");
-                        lPlugIn.connectorStarted(aConnector);
-                    } catch (Exception lEx) {
-                        mLog.error("Connector '"
-                                + aConnector.getId()
-                                + "' started at plug-in '"
-                                + lPlugIn.getId() + "': "
-                                + lEx.getClass().getSimpleName() + ": "
-                                + lEx.getMessage());
-                    }
+            for (WebSocketPlugIn lPlugIn : mSnapshot.mPlugIns) {
+                if (!lPlugIn.getEnabled()) {
+                    continue;
+                }
+                try {
+                    // log.debug("Notifying plug-in " + plugIn + " that connector started...");
+                    lPlugIn.connectorStarted(aConnector);
+                } catch (Exception lEx) {
+                    mLog.error("Connector '"
+                            + aConnector.getId()
+                            + "' started at plug-in '"
+                            + lPlugIn.getId() + "': "
+                            + lEx.getClass().getSimpleName() + ": "
+                            + lEx.getMessage());
                 }
             }
         } catch (RuntimeException lEx) {
@@ -142,63 +225,242 @@ public class BasePlugInChain implements WebSocketPlugInChain {
      */
     @Override
     public PlugInResponse processPacket(WebSocketConnector aConnector, WebSocketPacket aDataPacket) {
+        return processPacket(aConnector, aDataPacket,
+                mNamespaceRouting ? getNamespace(aConnector, aDataPacket) : null);
+    }
+
+    /**
+     * Passes the packet to the plug-ins which handle the given namespace. If
+     * namespace routing is disabled or no namespace is passed, the packet is
+     * passed to all enabled plug-ins.
+     *
+     * In asynchronous mode the packet is queued for the worker pool and an
+     * empty response is returned immediately, i.e. the response does not
+     * reflect the result of the plug-ins.
+     *
+     * @param aConnector
+     * @param aDataPacket
+     * @param aNamespace namespace of the packet or <tt>null</tt>
+     * @return
+     */
+    public PlugInResponse processPacket(final WebSocketConnector aConnector,
+            final WebSocketPacket aDataPacket, final String aNamespace) {
+        OrderedExecutor lAsyncExecutor = mAsyncExecutor;
+        if (null != lAsyncExecutor) {
+            // the packet is kept beyond this call, see ReferenceCounted
+            ReferenceCountUtils.retain(aDataPacket);
+            lAsyncExecutor.execute(aConnector, new DiscardableTask() {
+
+                @Override
+                public void run() {
+                    try {
+                        doProcessPacket(aConnector, aDataPacket, aNamespace);
+                    } finally {
+                        ReferenceCountUtils.release(aDataPacket);
+                    }
+                }
+
+                @Override
+                public void discarded() {
+                    ReferenceCountUtils.release(aDataPacket);
+                }
+            });
+            return new PlugInResponse();
+        }
+        return doProcessPacket(aConnector, aDataPacket, aNamespace);
+    }
+
+    private PlugInResponse doProcessPacket(WebSocketConnector aConnector,
+            WebSocketPacket aDataPacket, String aNamespace) {
         if (mLog.isDebugEnabled()) {
             mLog.debug("Processing packet for plug-ins on connector '" + aConnector.getId() + "'...");
         }
         PlugInResponse lPluginResponse = new PlugInResponse();
-        for (WebSocketPlugIn lPlugIn : getPlugIns()) {
-            if (lPlugIn.getEnabled()) {
-                try {
-                    lPlugIn.processPacket(lPluginResponse, aConnector, aDataPacket);
-                } catch (RuntimeException lEx) {
-                    mLog.error("Processing packet at connector '"
-                            + aConnector.getId()
-                            + "', plug-in '"
-                            + lPlugIn.getId() + "': "
-                            + lEx.getClass().getSimpleName() + ": "
-                            + lEx.getMessage());
-                }
-                if (lPluginResponse.isChainAborted()) {
-                    break;
-                }
+        WebSocketPlugIn[] lPlugIns = getPlugIns(aNamespace);
+        for (int lIdx = 0; lIdx < lPlugIns.length; lIdx++) {
+            WebSocketPlugIn lPlugIn = lPlugIns[lIdx];
+            if (!lPlugIn.getEnabled()) {
+                continue;
+            }
+            try {
+                lPlugIn.processPacket(lPluginResponse, aConnector, aDataPacket);
+            } catch (RuntimeException lEx) {
+                mLog.error("Processing packet at connector '"
+                        + aConnector.getId()
+                        + "', plug-in '"
+                        + lPlugIn.getId() + "': "
+                        + lEx.getClass().getSimpleName() + ": "
+                        + lEx.getMessage());
+            }
+            if (lPluginResponse.isChainAborted()) {
+                break;
             }
         }
         return lPluginResponse;
     }
 
+    /**
+     * Returns the namespace of the passed packet for the routing of the
+     * packet. The base chain is not aware of the packet format and returns
+     * <tt>null</tt>, i.e. all enabled plug-ins process the packet. Chains
+     * for a certain packet format are supposed to override this method.
+     *
+     * @param aConnector
+     * @param aDataPacket
+     * @return the namespace or <tt>null</tt>
+     */
+    protected String getNamespace(WebSocketConnector aConnector, WebSocketPacket aDataPacket) {
+        return null;
+    }
+
+    /**
+     * Returns the plug-ins which handle the passed namespace in the order of
+     * the chain. If namespace routing is disabled or no namespace is passed
+     * all plug-ins are returned. The returned plug-ins may be disabled, the
+     * caller checks <tt>getEnabled</tt> on dispatch. The returned array must
+     * not be modified.
+     *
+     * @param aNamespace
+     * @return
+     */
+    protected WebSocketPlugIn[] getPlugIns(String aNamespace) {
+        Snapshot lSnapshot = mSnapshot;
+        if (null == aNamespace || !mNamespaceRouting) {
+            return lSnapshot.mPlugIns;
+        }
+        WebSocketPlugIn[] lPlugIns = lSnapshot.mRoutes.get(aNamespace);
+        return (null != lPlugIns ? lPlugIns : lSnapshot.mUndeclaredPlugIns);
+    }
+
+    /**
+     * Enables or disables the routing of packets by namespace.
+     *
+     * @param aNamespaceRouting
+     */
+    public void setNamespaceRouting(boolean aNamespaceRouting) {
+        mNamespaceRouting = aNamespaceRouting;
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if packets are routed by namespace
+     */
+    public boolean isNamespaceRouting() {
+        return mNamespaceRouting;
+    }
+
+    /**
+     * Enables or disables the asynchronous processing of connector events
+     * and packets by the work queue of the server. The server needs to be a
+     * {@code BaseServer}, otherwise use {@link #setAsyncExecutor(Executor)}.
+     *
+     * @param aAsync
+     */
+    public void setAsync(boolean aAsync) {
+        if (!aAsync) {
+            setWorkQueue(null);
+        } else if (mServer instanceof BaseServer) {
+            setWorkQueue(((BaseServer) mServer).getWorkQueue());
+        } else {
+            throw new IllegalStateException("Server '"
+                    + (null != mServer ? mServer.getId() : null)
+                    + "' does not provide a worker pool.");
+        }
+    }
+
+    /**
+     * Sets the worker pool for the asynchronous processing, <tt>null</tt>
+     * switches back to synchronous processing. Already queued events are
+     * still processed by the previous pool.
+     *
+     * @param aExecutor
+     */
+    public void setAsyncExecutor(Executor aExecutor) {
+        setWorkQueue(null != aExecutor ? new OrderedExecutor(aExecutor) : null);
+    }
+
+    /**
+     * Sets the work queue for the asynchronous processing, <tt>null</tt>
+     * switches back to synchronous processing. Packets are subject to the
+     * overflow policy of the queue, connector events are not.
+     *
+     * @param aWorkQueue
+     */
+    public void setWorkQueue(OrderedExecutor aWorkQueue) {
+        mAsyncExecutor = aWorkQueue;
+    }
+
+    /**
+     *
+     * @return the work queue for the asynchronous processing or
+     * <tt>null</tt> in synchronous mode
+     */
+    public OrderedExecutor getWorkQueue() {
+        return mAsyncExecutor;
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if the chain processes asynchronously
+     */
+    public boolean isAsync() {
+        return null != mAsyncExecutor;
+    }
+
     /**
      *
      * @param aConnector
      * @param aCloseReason
      */
     @Override
-    public void connectorStopped(WebSocketConnector aConnector, CloseReason aCloseReason) {
+    public void connectorStopped(final WebSocketConnector aConnector,
+            final CloseReason aCloseReason) {
+        OrderedExecutor lAsyncExecutor = mAsyncExecutor;
+        if (null != lAsyncExecutor) {
+            // processed after all pending packets of the connector
+            lAsyncExecutor.execute(aConnector, new Runnable() {
+
+                @Override
+                public void run() {
+                    doConnectorStopped(aConnector, aCloseReason);
+                }
+            }, true);
+        } else {
+            doConnectorStopped(aConnector, aCloseReason);
+        }
+    }
+
+    private void doConnectorStopped(WebSocketConnector aConnector, CloseReason aCloseReason) {
         if (mLog.isDebugEnabled()) {
             mLog.debug("Notifying plug-ins that connector '" + aConnector.getId() + "' stopped (" + aCloseReason.name() + ")...");
         }
-        for (WebSocketPlugIn lPlugIn : getPlugIns()) {
-            if (lPlugIn.getEnabled()) {
-                try {
-                    lPlugIn.connectorStopped(aConnector, aCloseReason);
-                } catch (RuntimeException lEx) {
-                    mLog.error("Connector '"
-                            + aConnector.getId()
-                            + "' stopped at plug-in '"
-                            + lPlugIn.getId() + "': "
-                            + lEx.getClass().getSimpleName() + ": "
-                            + lEx.getMessage());
-                }
+        for (WebSocketPlugIn lPlugIn : mSnapshot.mPlugIns) {
+            if (!lPlugIn.getEnabled()) {
+                continue;
+            }
+            try {
+                lPlugIn.connectorStopped(aConnector, aCloseReason);
+            } catch (RuntimeException lEx) {
+                mLog.error("Connector '"
+                        + aConnector.getId()
+                        + "' stopped at plug-in '"
+                        + lPlugIn.getId() + "': "
+                        + lEx.getClass().getSimpleName() + ": "
+                        + lEx.getMessage());
             }
         }
     }
 
     /**
+     * Returns the plug-ins of the chain. The returned list is a live view,
+     * modifications are passed to <tt>addPlugIn</tt> and
+     * <tt>removePlugIn</tt>.
      *
      * @return
      */
     @Override
     public List<WebSocketPlugIn> getPlugIns() {
-        return mPlugins;
+        return mPlugInsView;
     }
 
     /**
@@ -207,7 +469,11 @@ public class BasePlugInChain implements WebSocketPlugInChain {
      */
     @Override
     public void addPlugIn(WebSocketPlugIn aPlugIn) {
-        mPlugins.add(aPlugIn);
+        synchronized (this) {
+            List<WebSocketPlugIn> lPlugIns = copyPlugIns();
+            lPlugIns.add(aPlugIn);
+            mSnapshot = new Snapshot(lPlugIns.toArray(new WebSocketPlugIn[lPlugIns.size()]));
+        }
         aPlugIn.setPlugInChain(this);
     }
 
@@ -217,17 +483,36 @@ public class BasePlugInChain implements WebSocketPlugInChain {
      */
     @Override
     public void removePlugIn(WebSocketPlugIn aPlugIn) {
-        mPlugins.remove(aPlugIn);
+        synchronized (this) {
+            List<WebSocketPlugIn> lPlugIns = copyPlugIns();
+            lPlugIns.remove(aPlugIn);
+            mSnapshot = new Snapshot(lPlugIns.toArray(new WebSocketPlugIn[lPlugIns.size()]));
+        }
         aPlugIn.setPlugInChain(null);
     }
 
+    /**
+     * Recompiles the snapshot of the chain, e.g. when the namespaces declared
+     * by the configuration of a plug-in have changed.
+     */
+    public synchronized void refresh() {
+        mSnapshot = new Snapshot(mSnapshot.mPlugIns);
+    }
+
+    private List<WebSocketPlugIn> copyPlugIns() {
+        WebSocketPlugIn[] lPlugIns = mSnapshot.mPlugIns;
+        List<WebSocketPlugIn> lCopy = new ArrayList<WebSocketPlugIn>(lPlugIns.length + 1);
+        lCopy.addAll(Arrays.asList(lPlugIns));
+        return lCopy;
+    }
+
     /**
      * returns a plug-in identified by the given id.
      */
     @Override
     public WebSocketPlugIn getPlugIn(String aId) {
         if (aId != null) {
-            for (WebSocketPlugIn lPlugIn : mPlugins) {
+            for (WebSocketPlugIn lPlugIn : mSnapshot.mPlugIns) {
                 if (lPlugIn.getId() != null && aId.equals(lPlugIn.getId())) {
                     return lPlugIn;
                 }
@@ -246,7 +531,74 @@ public class BasePlugInChain implements WebSocketPlugInChain {
 
     @Override
     public void addPlugIn(Integer aPosition, WebSocketPlugIn aPlugIn) {
-        mPlugins.add(aPosition, aPlugIn);
+        synchronized (this) {
+            List<WebSocketPlugIn> lPlugIns = copyPlugIns();
+            lPlugIns.add(aPosition, aPlugIn);
+            mSnapshot = new Snapshot(lPlugIns.toArray(new WebSocketPlugIn[lPlugIns.size()]));
+        }
         aPlugIn.setPlugInChain(this);
     }
+
+    /**
+     * Returns the namespaces declared by the configuration of the passed
+     * plug-in. Multiple namespaces may be separated by commas, semicolons or
+     * white spaces.
+     *
+     * @param aPlugIn
+     * @return the declared namespaces, empty if none
+     */
+    protected static Set<String> getDeclaredNamespaces(WebSocketPlugIn aPlugIn) {
+        Set<String> lNamespaces = new LinkedHashSet<String>();
+        PluginConfiguration lConfig = aPlugIn.getPluginConfiguration();
+        String lValue = (null != lConfig ? lConfig.getNamespace() : null);
+        if (null != lValue) {
+            for (String lNamespace : lValue.split("[,;\\s]+")) {
+                if (lNamespace.length() > 0) {
+                    lNamespaces.add(lNamespace);
+                }
+            }
+        }
+        return lNamespaces;
+    }
+
+    /**
+     * Immutable state of the chain, the routes per namespace are determined
+     * once per change instead of once per plug-in and packet.
+     */
+    private static class Snapshot {
+
+        final WebSocketPlugIn[] mPlugIns;
+        final WebSocketPlugIn[] mUndeclaredPlugIns;
+        final Map<String, WebSocketPlugIn[]> mRoutes;
+
+        Snapshot(WebSocketPlugIn[] aPlugIns) {
+            mPlugIns = aPlugIns;
+            List<WebSocketPlugIn> lPlugIns = Arrays.asList(aPlugIns);
+            List<Set<String>> lDeclared = new ArrayList<Set<String>>(aPlugIns.length);
+            Set<String> lAllNamespaces = new LinkedHashSet<String>();
+            for (WebSocketPlugIn lPlugIn : aPlugIns) {
+                Set<String> lNamespaces = getDeclaredNamespaces(lPlugIn);
+                lDeclared.add(lNamespaces);
+                lAllNamespaces.addAll(lNamespaces);
+            }
+            mUndeclaredPlugIns = route(lPlugIns, lDeclared, null);
+            mRoutes = new HashMap<String, WebSocketPlugIn[]>();
+            for (String lNamespace : lAllNamespaces) {
+                mRoutes.put(lNamespace, route(lPlugIns, lDeclared, lNamespace));
+            }
+        }
+
+        private static WebSocketPlugIn[] route(List<WebSocketPlugIn> aPlugIns,
+                List<Set<String>> aDeclared, String aNamespace) {
+            List<WebSocketPlugIn> lRoute = new ArrayList<WebSocketPlugIn>();
+            for (int lIdx = 0; lIdx < aPlugIns.size(); lIdx++) {
+                Set<String> lNamespaces = aDeclared.get(lIdx);
+                if (lNamespaces.isEmpty()
+                        || (null != aNamespace && lNamespaces.contains(aNamespace))) {
+                    lRoute.add(aPlugIns.get(lIdx));
+                }
+            }
+            return lRoute.toArray(new WebSocketPlugIn[lRoute.size()]);
+        }
+    }
 }
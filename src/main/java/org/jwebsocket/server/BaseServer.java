@@ -15,10 +15,20 @@
 //    ---------------------------------------------------------------------------
 package org.jwebsocket.server;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import javolution.util.FastList;
 import javolution.util.FastMap;
+import org.jwebsocket.api.ConflatingConnector;
+import org.jwebsocket.api.ConnectorCounter;
+import org.jwebsocket.api.ConnectorFilter;
+import org.jwebsocket.api.LongIdLookup;
+import org.jwebsocket.api.SelectiveBroadcaster;
 import org.jwebsocket.api.ServerConfiguration;
 import org.jwebsocket.api.WebSocketConnector;
 import org.jwebsocket.api.WebSocketEngine;
@@ -30,7 +40,18 @@ import org.jwebsocket.api.WebSocketPlugInChain;
 import org.jwebsocket.api.WebSocketServer;
 import org.jwebsocket.api.WebSocketServerListener;
 import org.jwebsocket.async.IOFuture;
+import org.jwebsocket.async.OrderedExecutor;
+import org.jwebsocket.async.WorkerPoolFactory;
+import org.jwebsocket.broadcast.BroadcastExecutor;
+import org.jwebsocket.broadcast.BroadcastFuture;
+import org.jwebsocket.broadcast.EncodedPacket;
+import org.jwebsocket.config.xml.ThreadPoolConfig;
 import org.jwebsocket.connectors.BaseConnector;
+import org.jwebsocket.connectors.CompiledConnectorFilter;
+import org.jwebsocket.connectors.ConnectorRegistry;
+import org.jwebsocket.connectors.VarConnectorFilter;
+import org.jwebsocket.engines.BaseEngine;
+import org.jwebsocket.filter.BaseFilterChain;
 import org.jwebsocket.kit.BroadcastOptions;
 import org.jwebsocket.kit.CloseReason;
 import org.jwebsocket.kit.WebSocketException;
@@ -45,7 +66,8 @@ import org.jwebsocket.kit.WebSocketServerEvent;
  * 
  * @author aschulze
  */
-public class BaseServer implements WebSocketServer {
+public class BaseServer implements WebSocketServer, ConnectorCounter,
+        SelectiveBroadcaster, LongIdLookup {
 
     private Map<String, WebSocketEngine> mEngines = null;
     private String mId = null;
@@ -54,6 +76,42 @@ public class BaseServer implements WebSocketServer {
     protected WebSocketFilterChain mFilterChain = null;
     private List<WebSocketServerListener> mListeners = new FastList<WebSocketServerListener>();
     private ServerConfiguration mConfiguration;
+    private final ConnectorRegistry mConnectorRegistry;
+    private final Map<String, WebSocketConnector> mAllConnectors;
+    private ExecutorService mWorkerPool = null;
+    private OrderedExecutor mWorkQueue = null;
+    private BroadcastExecutor mBroadcastExecutor = null;
+    /**
+     * Does a descending class override <tt>sendPacket</tt>? Then broadcasts
+     * are routed through it instead of sending the shared frame directly.
+     */
+    private final boolean mSendPacketOverridden =
+            overrides("sendPacket", WebSocketConnector.class, WebSocketPacket.class);
+    /**
+     * Does a descending class override <tt>sendPacketAsync</tt>? Then async
+     * broadcasts are routed through it instead of queuing the shared frame.
+     */
+    private final boolean mSendPacketAsyncOverridden =
+            overrides("sendPacketAsync", WebSocketConnector.class, WebSocketPacket.class);
+    /**
+     * Sends the packets of parallel broadcasts via the overridable send
+     * methods of this server.
+     */
+    private final BroadcastExecutor.Sender mBroadcastSender = new BroadcastExecutor.Sender() {
+
+        @Override
+        public void sendPacket(WebSocketConnector aConnector, EncodedPacket aPacket) {
+            sendEncodedPacket(aConnector, aPacket);
+        }
+
+        @Override
+        public IOFuture sendPacketAsync(WebSocketConnector aConnector, EncodedPacket aPacket) {
+            if (mSendPacketAsyncOverridden) {
+                return BaseServer.this.sendPacketAsync(aConnector, aPacket.getPacket(aConnector));
+            }
+            return BroadcastExecutor.DIRECT_SENDER.sendPacketAsync(aConnector, aPacket);
+        }
+    };
 
     /**
      * Create a new instance of the Base Server. Each BaseServer maintains a
@@ -67,6 +125,34 @@ public class BaseServer implements WebSocketServer {
         this.mConfiguration = aServerConfig;
         mId = aServerConfig.getId();
         mEngines = new FastMap<String, WebSocketEngine>().shared();
+        mAllConnectors = new CompositeConnectorMap(mEngines);
+        mConnectorRegistry = new ConnectorRegistry(getIndexedVars(aServerConfig));
+    }
+
+    /**
+     * Returns <tt>true</tt> if the class of this server overrides the passed
+     * method of {@code BaseServer}.
+     */
+    private boolean overrides(String aMethod, Class<?>... aParamTypes) {
+        try {
+            return getClass().getMethod(aMethod, aParamTypes).getDeclaringClass() != BaseServer.class;
+        } catch (NoSuchMethodException lEx) {
+            return false;
+        }
+    }
+
+    private static String getIndexedVars(ServerConfiguration aServerConfig) {
+        return getSetting(aServerConfig, ConnectorRegistry.SETTING_INDEXED_VARS);
+    }
+
+    private static String getSetting(ServerConfiguration aServerConfig, String aKey) {
+        try {
+            Object lValue = aServerConfig.getSettings().get(aKey);
+            return (lValue instanceof String ? (String) lValue : null);
+        } catch (RuntimeException lEx) {
+            // no settings given for this server
+            return null;
+        }
     }
 
     @Override
@@ -76,6 +162,9 @@ public class BaseServer implements WebSocketServer {
     public void addEngine(WebSocketEngine aEngine) {
         mEngines.put(aEngine.getId(), aEngine);
         aEngine.addServer(this);
+        for (WebSocketConnector lConnector : aEngine.getConnectors().values()) {
+            mConnectorRegistry.addConnector(lConnector);
+        }
     }
 
     @Override
@@ -85,6 +174,12 @@ public class BaseServer implements WebSocketServer {
     public void removeEngine(WebSocketEngine aEngine) {
         mEngines.remove(aEngine.getId());
         aEngine.removeServer(this);
+        for (WebSocketConnector lConnector : aEngine.getConnectors().values()) {
+            mConnectorRegistry.removeConnector(lConnector);
+        }
+        if (mEngines.isEmpty()) {
+            shutdownWorkerPool();
+        }
     }
 
     /**
@@ -109,7 +204,9 @@ public class BaseServer implements WebSocketServer {
      */
     @Override
     public void stopServer() throws WebSocketException {
-        // this method is supposed to be overwritten by descending classes.
+        // this method is supposed to be overwritten by descending classes,
+        // which need to call it to release the worker pool.
+        shutdownWorkerPool();
     }
 
     /**
@@ -134,12 +231,17 @@ public class BaseServer implements WebSocketServer {
 
     /**
      * {@inheritDoc }
+     *
+     * Descending classes should call this method to keep the connector
+     * registry of the server up to date, otherwise lookups by variables fall
+     * back to scanning all connectors.
      */
     @Override
     public void connectorStarted(WebSocketConnector aConnector) {
         // this method is supposed to be overwritten by descending classes.
         // e.g. to notify the overlying appplications or plug-ins
         // about the connectorStarted event
+        mConnectorRegistry.addConnector(aConnector);
         WebSocketServerEvent lEvent = new WebSocketServerEvent(aConnector, this);
         for (WebSocketServerListener lListener : mListeners) {
             if (lListener != null) {
@@ -150,6 +252,10 @@ public class BaseServer implements WebSocketServer {
 
     /**
      * {@inheritDoc }
+     *
+     * Descending classes should call this method to keep the connector
+     * registry of the server up to date, otherwise lookups by variables fall
+     * back to scanning all connectors.
      */
     @Override
     public void connectorStopped(WebSocketConnector aConnector, CloseReason aCloseReason) {
@@ -162,10 +268,17 @@ public class BaseServer implements WebSocketServer {
                 lListener.processClosed(lEvent);
             }
         }
+        mConnectorRegistry.removeConnector(aConnector);
     }
 
     /**
      * {@inheritDoc }
+     *
+     * The packet is only valid during this call, the engine releases it
+     * afterwards if it is reference counted (see
+     * {@link org.jwebsocket.buffer.ReferenceCounted}). Listeners which keep
+     * the packet, e.g. to process it asynchronously, have to retain it and
+     * to release it when done.
      */
     @Override
     public void processPacket(WebSocketEngine aEngine, WebSocketConnector aConnector, WebSocketPacket aDataPacket) {
@@ -196,20 +309,365 @@ public class BaseServer implements WebSocketServer {
         return aConnector.sendPacketAsync(aDataPacket);
     }
 
+    /**
+     * Sends the data packet asynchronously through the given target connector
+     * with a conflation key. If the connector is in conflating mode a pending
+     * packet with the same key is replaced by this one, see
+     * {@link ConflatingConnector#sendPacketAsync(WebSocketPacket, String)}.
+     * Connectors which do not implement {@code ConflatingConnector} send the
+     * packet without conflation.
+     *
+     * @param aConnector the target connector to use for the packet output
+     * @param aDataPacket the data packet
+     * @param aConflationKey the conflation key, may be <tt>null</tt>
+     * @return the future object for this output operation
+     */
+    public IOFuture sendPacketAsync(WebSocketConnector aConnector, WebSocketPacket aDataPacket,
+            String aConflationKey) {
+        if (aConnector instanceof ConflatingConnector) {
+            return ((ConflatingConnector) aConnector).sendPacketAsync(aDataPacket, aConflationKey);
+        }
+        return sendPacketAsync(aConnector, aDataPacket);
+    }
+
     /**
      * {@inheritDoc }
      */
     @Override
     public void broadcastPacket(WebSocketConnector aSource, WebSocketPacket aDataPacket, BroadcastOptions aBroadcastOptions) {
-        for (WebSocketConnector lConnector : getAllConnectors().values()) {
-            if (!aSource.equals(lConnector) || aBroadcastOptions.isSenderIncluded()) {
-                if (aBroadcastOptions.isAsync()) {
-                    sendPacketAsync(lConnector, aDataPacket);
-                } else {
-                    sendPacket(lConnector, aDataPacket);
+        broadcastPacket(aSource, aDataPacket, aBroadcastOptions, null);
+    }
+
+    /**
+     * {@inheritDoc }
+     *
+     * The connectors are not collected into an intermediate map, matching
+     * connectors are passed to the send pipeline immediately. For a
+     * {@link VarConnectorFilter} on indexed variables only the candidates
+     * from the connector registry are checked. If the filter chain of the
+     * server has outbound filters, they are evaluated once for all targets
+     * before sending, see {@link #filterTargets}. Descending classes which
+     * override {@link #sendPacket(WebSocketConnector, WebSocketPacket)} get
+     * the packet for each target and are supposed to apply the filters
+     * themselves, then the broadcast does not filter the targets.
+     */
+    @Override
+    public void broadcastPacket(WebSocketConnector aSource, WebSocketPacket aDataPacket,
+            BroadcastOptions aBroadcastOptions, ConnectorFilter aFilter) {
+        if (aBroadcastOptions.isAsync()) {
+            broadcastPacketAsync(aSource, aDataPacket, aBroadcastOptions, aFilter);
+            return;
+        }
+        // frame the packet only once per protocol variant
+        EncodedPacket lPacket = new EncodedPacket(aDataPacket);
+        if (filtersBroadcasts(false)) {
+            WebSocketConnector[] lTargets = getCandidates(aFilter).toArray(new WebSocketConnector[0]);
+            int lCount = selectTargets(aSource, lTargets, aDataPacket, aBroadcastOptions,
+                    aFilter, false);
+            for (int lIdx = 0; lIdx < lCount; lIdx++) {
+                sendEncodedPacket(lTargets[lIdx], lPacket);
+            }
+            return;
+        }
+        for (WebSocketConnector lConnector : getCandidates(aFilter)) {
+            if (isTarget(lConnector, aSource, aBroadcastOptions, aFilter)) {
+                sendEncodedPacket(lConnector, lPacket);
+            }
+        }
+    }
+
+    private boolean hasOutFilters() {
+        WebSocketFilterChain lChain = mFilterChain;
+        return lChain instanceof BaseFilterChain && ((BaseFilterChain) lChain).hasOutFilters();
+    }
+
+    /**
+     * Does a broadcast have to evaluate the outbound filters? Not if the
+     * packets are sent via an overridden send method of a descending class,
+     * which applies the filters per target, otherwise they were applied
+     * twice.
+     *
+     * @param aAsync are the packets sent asynchronously?
+     */
+    private boolean filtersBroadcasts(boolean aAsync) {
+        return !(aAsync ? mSendPacketAsyncOverridden : mSendPacketOverridden)
+                && hasOutFilters();
+    }
+
+    /**
+     * Moves the candidates which are targets of the broadcast and, if
+     * required, accepted by the outbound filters to the beginning of the
+     * passed array.
+     *
+     * @return the number of targets
+     */
+    private int selectTargets(WebSocketConnector aSource, WebSocketConnector[] aCandidates,
+            WebSocketPacket aDataPacket, BroadcastOptions aBroadcastOptions,
+            ConnectorFilter aFilter, boolean aAsync) {
+        int lCount = 0;
+        for (WebSocketConnector lConnector : aCandidates) {
+            if (isTarget(lConnector, aSource, aBroadcastOptions, aFilter)) {
+                aCandidates[lCount++] = lConnector;
+            }
+        }
+        if (!filtersBroadcasts(aAsync)) {
+            return lCount;
+        }
+        return filterTargets(aSource, aCandidates, lCount, aDataPacket);
+    }
+
+    /**
+     * Evaluates the outbound filters of the server once for all targets of
+     * a broadcast and removes the rejected targets from the first
+     * <tt>aCount</tt> entries of the passed array. The broadcasts of this
+     * server do not call this method if the packets are sent via an
+     * overridden <tt>sendPacket</tt> or <tt>sendPacketAsync</tt>.
+     *
+     * @param aSource
+     * @param aTargets
+     * @param aCount number of valid targets in the array
+     * @param aDataPacket
+     * @return the number of accepted targets at the beginning of the array
+     */
+    protected int filterTargets(WebSocketConnector aSource, WebSocketConnector[] aTargets,
+            int aCount, WebSocketPacket aDataPacket) {
+        if (0 == aCount || !hasOutFilters()) {
+            return aCount;
+        }
+        BitSet lRejected = ((BaseFilterChain) mFilterChain).processPacketOut(aSource,
+                Arrays.asList(aTargets).subList(0, aCount), aDataPacket);
+        if (lRejected.isEmpty()) {
+            return aCount;
+        }
+        int lCount = 0;
+        for (int lIdx = 0; lIdx < aCount; lIdx++) {
+            if (!lRejected.get(lIdx)) {
+                aTargets[lCount++] = aTargets[lIdx];
+            }
+        }
+        return lCount;
+    }
+
+    /**
+     * Broadcasts a data packet to all connectors and returns a future which
+     * aggregates the results of all connectors. Synchronous broadcasts are
+     * split into partitions which are processed in parallel by the broadcast
+     * executor of the server, so that the calling thread is not blocked by
+     * large broadcasts. If the broadcast options request async I/O the
+     * packet is queued for all connectors on the calling thread, which keeps
+     * the order of the packets per connector, and the returned future
+     * completes when the I/O of all connectors has completed.
+     *
+     * @param aSource
+     * @param aDataPacket
+     * @param aBroadcastOptions
+     * @return the aggregated future of the broadcast
+     */
+    public BroadcastFuture broadcastPacketAsync(WebSocketConnector aSource,
+            WebSocketPacket aDataPacket, BroadcastOptions aBroadcastOptions) {
+        return broadcastPacketAsync(aSource, aDataPacket, aBroadcastOptions, null);
+    }
+
+    /**
+     * Broadcasts a data packet in parallel to those connectors which are
+     * accepted by the passed filter, see
+     * {@link #broadcastPacketAsync(WebSocketConnector, WebSocketPacket, BroadcastOptions)}.
+     *
+     * @param aSource
+     * @param aDataPacket
+     * @param aBroadcastOptions
+     * @param aFilter the selection of target connectors, <tt>null</tt> for
+     * all connectors.
+     * @return the aggregated future of the broadcast
+     */
+    public BroadcastFuture broadcastPacketAsync(WebSocketConnector aSource,
+            WebSocketPacket aDataPacket, BroadcastOptions aBroadcastOptions,
+            ConnectorFilter aFilter) {
+        WebSocketConnector[] lTargets = getCandidates(aFilter).toArray(new WebSocketConnector[0]);
+        int lCount = selectTargets(aSource, lTargets, aDataPacket, aBroadcastOptions,
+                aFilter, aBroadcastOptions.isAsync());
+        return getBroadcastExecutor().broadcast(lTargets, lCount,
+                new EncodedPacket(aDataPacket), aBroadcastOptions.isAsync(), mBroadcastSender);
+    }
+
+    private static boolean isTarget(WebSocketConnector aConnector, WebSocketConnector aSource,
+            BroadcastOptions aBroadcastOptions, ConnectorFilter aFilter) {
+        return (aBroadcastOptions.isSenderIncluded() || !aConnector.equals(aSource))
+                && (aFilter == null || aFilter.accept(aConnector));
+    }
+
+    /**
+     * Returns the connectors which need to be checked against the passed
+     * filter. For compiled filters with exact conditions on indexed variables
+     * these are the matching connectors from the registry, otherwise all
+     * connectors.
+     */
+    private Collection<WebSocketConnector> getCandidates(ConnectorFilter aFilter) {
+        if (aFilter instanceof CompiledConnectorFilter && isRegistryComplete()) {
+            Collection<WebSocketConnector> lCandidates = getIndexedCandidates(
+                    ((CompiledConnectorFilter) aFilter).getExactValues());
+            if (lCandidates != null) {
+                return lCandidates;
+            }
+        }
+        return getAllConnectors().values();
+    }
+
+    /**
+     * Returns <tt>true</tt> if the connector registry contains exactly the
+     * connectors of the engines. This is not the case if a descending class
+     * overrides <tt>connectorStarted</tt> or <tt>connectorStopped</tt>
+     * without calling this implementation, or temporarily while a connector
+     * is started or stopped. Lookups then scan the connectors of the engines.
+     */
+    private boolean isRegistryComplete() {
+        return mConnectorRegistry.size() == getConnectorCount();
+    }
+
+    /**
+     * Returns the connectors of the smallest registry index matching one of
+     * the passed exact key/value pairs plus the connectors which are not
+     * indexed, or <tt>null</tt> if none of the key/value pairs can be looked
+     * up in an index.
+     */
+    private Collection<WebSocketConnector> getIndexedCandidates(Map<String, Object> aExactValues) {
+        Collection<WebSocketConnector> lCandidates = null;
+        for (Map.Entry<String, Object> lEntry : aExactValues.entrySet()) {
+            if (mConnectorRegistry.isIndexed(lEntry.getKey())) {
+                Collection<WebSocketConnector> lIndexed =
+                        mConnectorRegistry.lookup(lEntry.getKey(), lEntry.getValue());
+                if (lCandidates == null || lIndexed.size() < lCandidates.size()) {
+                    lCandidates = lIndexed;
                 }
             }
         }
+        if (lCandidates == null) {
+            return null;
+        }
+        Collection<WebSocketConnector> lUnindexed = mConnectorRegistry.getUnindexedConnectors();
+        if (lUnindexed.isEmpty()) {
+            return lCandidates;
+        }
+        List<WebSocketConnector> lResult =
+                new ArrayList<WebSocketConnector>(lCandidates.size() + lUnindexed.size());
+        lResult.addAll(lCandidates);
+        lResult.addAll(lUnindexed);
+        return lResult;
+    }
+
+    /**
+     * Returns the worker pool of this server which is used e.g. for parallel
+     * broadcasts and the asynchronous processing of the plug-in chain. The
+     * pool is created on first usage according to the thread pool
+     * configuration of the server, depending on its mode either as pool of
+     * platform threads or as executor of virtual threads.
+     *
+     * @return the worker pool
+     */
+    public synchronized ExecutorService getWorkerPool() {
+        if (mWorkerPool == null) {
+            ThreadPoolConfig lConfig = mConfiguration.getThreadPoolConfig();
+            if (lConfig == null) {
+                lConfig = new ThreadPoolConfig();
+            }
+            mWorkerPool = WorkerPoolFactory.createWorkerPool(lConfig, "jWebSocket-" + mId + "-worker");
+        }
+        return mWorkerPool;
+    }
+
+    /**
+     * Shuts down the worker pool of this server after the pending tasks have
+     * been processed. The work queue and the broadcast executor on top of
+     * the pool are discarded as well, all of them are created again on next
+     * usage, e.g. when the server is restarted. Components which still refer
+     * to the discarded work queue process their tasks on the submitting
+     * thread.
+     */
+    public synchronized void shutdownWorkerPool() {
+        if (mWorkerPool == null) {
+            return;
+        }
+        if (mWorkQueue != null && mWorkQueue.getExecutor() == mWorkerPool) {
+            mWorkQueue = null;
+        }
+        if (mBroadcastExecutor != null && mBroadcastExecutor.getExecutor() == mWorkerPool) {
+            mBroadcastExecutor = null;
+        }
+        mWorkerPool.shutdown();
+        mWorkerPool = null;
+    }
+
+    /**
+     * Returns the work queue of this server which processes tasks on the
+     * worker pool in FIFO order per connector. The queue is limited to
+     * <tt>blockingQueueSize</tt> pending tasks, beyond that the overflow
+     * policy of the thread pool configuration applies. The queue provides
+     * the metrics about its depth and overflows.
+     *
+     * @return the work queue
+     */
+    public synchronized OrderedExecutor getWorkQueue() {
+        if (mWorkQueue == null) {
+            ThreadPoolConfig lConfig = mConfiguration.getThreadPoolConfig();
+            if (lConfig == null) {
+                lConfig = new ThreadPoolConfig();
+            }
+            mWorkQueue = new OrderedExecutor(getWorkerPool(), OrderedExecutor.DEFAULT_BATCH_SIZE,
+                    lConfig.getBlockingQueueSize(), lConfig.getOverflowPolicy());
+        }
+        return mWorkQueue;
+    }
+
+    /**
+     * Returns the executor for parallel broadcasts of this server. The
+     * executor is created on first usage and runs on the worker pool of the
+     * server.
+     *
+     * @return the broadcast executor
+     */
+    public synchronized BroadcastExecutor getBroadcastExecutor() {
+        if (mBroadcastExecutor == null) {
+            int lPartitionSize = BroadcastExecutor.DEFAULT_PARTITION_SIZE;
+            String lSetting = getSetting(mConfiguration, BroadcastExecutor.SETTING_PARTITION_SIZE);
+            if (lSetting != null) {
+                try {
+                    lPartitionSize = Integer.parseInt(lSetting.trim());
+                } catch (NumberFormatException lEx) {
+                    // keep the default partition size
+                }
+            }
+            mBroadcastExecutor = new BroadcastExecutor(getWorkerPool(), lPartitionSize);
+        }
+        return mBroadcastExecutor;
+    }
+
+    /**
+     * Sets the executor for parallel broadcasts of this server, e.g. to share
+     * a worker pool between multiple servers.
+     *
+     * @param aBroadcastExecutor
+     */
+    public synchronized void setBroadcastExecutor(BroadcastExecutor aBroadcastExecutor) {
+        mBroadcastExecutor = aBroadcastExecutor;
+    }
+
+    /**
+     * Sends a packet which is serialized and framed only once for all
+     * recipients, e.g. of a broadcast, to a certain connector. If a
+     * descending class overrides
+     * {@link #sendPacket(WebSocketConnector, WebSocketPacket)} the packet is
+     * passed to that method, so that e.g. outbound filtering or logging
+     * applies to broadcasts as well.
+     *
+     * @param aConnector
+     * @param aPacket
+     */
+    public void sendEncodedPacket(WebSocketConnector aConnector, EncodedPacket aPacket) {
+        if (mSendPacketOverridden) {
+            sendPacket(aConnector, aPacket.getPacket(aConnector));
+        } else {
+            BroadcastExecutor.DIRECT_SENDER.sendPacket(aConnector, aPacket);
+        }
     }
 
     /**
@@ -236,20 +694,27 @@ public class BaseServer implements WebSocketServer {
     }
 
     /**
-     * returns a thread safe ma of connectors of all engines connected to the
-     * server. Each connector has its own unique id which is used as key in
-     * the connectors FastMap.
+     * returns a thread safe, live and read-only map of the connectors of all
+     * engines connected to the server. Each connector has its own unique id
+     * which is used as key in the map. The map is not a copy, any change of
+     * the engines' connectors is reflected immediately.
      * 
-     * @return the engines
+     * @return the connectors of all engines
      */
     @Override
     public Map<String, WebSocketConnector> getAllConnectors() {
-        Map<String, WebSocketConnector> lClients =
-                new FastMap<String, WebSocketConnector>().shared();
-        for (WebSocketEngine lEngine : mEngines.values()) {
-            lClients.putAll(lEngine.getConnectors());
-        }
-        return lClients;
+        return mAllConnectors;
+    }
+
+    /**
+     * {@inheritDoc }
+     *
+     * The connectors of all engines bound to the server are counted, see
+     * {@link BaseEngine#countConnectors(WebSocketEngine)}.
+     */
+    @Override
+    public int getConnectorCount() {
+        return mAllConnectors.size();
     }
 
     /**
@@ -268,75 +733,70 @@ public class BaseServer implements WebSocketServer {
      */
     @Override
     public Map<String, WebSocketConnector> selectConnectors(Map<String, Object> aFilter) {
+        return selectConnectors(new VarConnectorFilter(aFilter));
+    }
+
+    /**
+     * returns a thread-safe map of only those connectors that are accepted
+     * by the passed filter. For a {@link CompiledConnectorFilter} with exact
+     * conditions on indexed variables only the candidates from the connector
+     * registry are checked.
+     *
+     * @param aFilter
+     *        the connector filter.
+     * @return FastMap with the selected connector or empty FastMap if no
+     *     connector matches the filter.
+     */
+    public Map<String, WebSocketConnector> selectConnectors(ConnectorFilter aFilter) {
         FastMap<String, WebSocketConnector> lClients =
                 new FastMap<String, WebSocketConnector>().shared();
-        // iterate through all engines
-        for (WebSocketEngine lEngine : mEngines.values()) {
-            // and through all connectors of each engine
-            for (WebSocketConnector lConnector : lEngine.getConnectors().values()) {
-                boolean lMatch = true;
-                for (String lKey : aFilter.keySet()) {
-                    Object lVarVal = lConnector.getVar(lKey);
-                    lMatch = (lVarVal != null);
-                    if (lMatch) {
-                        Object lFilterVal = aFilter.get(lKey);
-                        if (lVarVal instanceof String && lFilterVal instanceof String) {
-                            lMatch = ((String) lVarVal).matches((String) lFilterVal);
-                        } else if (lVarVal instanceof Boolean) {
-                            lMatch = ((Boolean) lVarVal).equals((Boolean) lFilterVal);
-                        } else {
-                            lMatch = lVarVal.equals(lFilterVal);
-                        }
-                        if (!lMatch) {
-                            break;
-                        }
-                    }
-                }
-                if (lMatch) {
-                    lClients.put(lConnector.getId(), lConnector);
-                }
+        for (WebSocketConnector lConnector : getCandidates(aFilter)) {
+            if (aFilter.accept(lConnector)) {
+                lClients.put(lConnector.getId(), lConnector);
             }
         }
         return lClients;
     }
 
     /**
-     * Returns the connector identified by it's connector-id or <tt>null</tt> if
-     * no connector with that id could be found. This method iterates through
-     * all embedded engines.
-     * 
-     * @param aId
-     *        id of the connector to be returned.
+     * Returns the connector which matches the passed shared variable or
+     * <tt>null</tt> if no connector matches. For indexed variables the
+     * connector registry is used, otherwise this method iterates through all
+     * embedded engines.
+     *
+     * @param aFilterId
+     *        name of the shared custom variable.
+     * @param aFilterValue
+     *        value (or regular expression) to match.
      * @return WebSocketConnector with the given id or <tt>null</tt> if not
      *     found.
      */
     @Override
     public WebSocketConnector getConnector(String aFilterId, Object aFilterValue) {
-        for (WebSocketEngine lEngine : mEngines.values()) {
-            for (WebSocketConnector lConnector : lEngine.getConnectors().values()) {
-                Object lVarVal = lConnector.getVar(aFilterId);
-                if (lVarVal instanceof String && aFilterValue instanceof String) {
-                    if (((String) lVarVal).matches((String) aFilterValue)) {
-                        return lConnector;
-                    }
-                } else if (lVarVal instanceof Boolean) {
-                    if (((Boolean) lVarVal).equals((Boolean) aFilterValue)) {
-                        return lConnector;
-                    }
-                } else {
-                    if (lVarVal.equals(aFilterValue)) {
-                        return lConnector;
-                    }
-                }
+        ConnectorFilter lFilter = new CompiledConnectorFilter().var(aFilterId, aFilterValue);
+        for (WebSocketConnector lConnector : getCandidates(lFilter)) {
+            if (lFilter.accept(lConnector)) {
+                return lConnector;
             }
         }
         return null;
     }
 
+    /**
+     * Returns the registry of all connectors of this server including the
+     * indexes on the shared custom variables.
+     *
+     * @return the connector registry
+     */
+    public ConnectorRegistry getConnectorRegistry() {
+        return mConnectorRegistry;
+    }
+
     /**
      * Returns the connector identified by it's connector-id or <tt>null</tt> if
      * no connector with that id could be found. This method iterates through
-     * all embedded engines.
+     * all embedded engines, the engines derived from {@code BaseEngine} look
+     * up the connector by the numeric handle encoded in the id.
      * 
      * @param aId
      *        id of the connector to be returned.
@@ -354,10 +814,28 @@ public class BaseServer implements WebSocketServer {
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public WebSocketConnector getConnector(long aLongId) {
+        if (aLongId < 0) {
+            return null;
+        }
+        for (WebSocketEngine lEngine : mEngines.values()) {
+            WebSocketConnector lConnector = BaseEngine.findConnector(lEngine, aLongId);
+            if (lConnector != null) {
+                return lConnector;
+            }
+        }
+        return null;
+    }
+
     /**
      * Returns the connector identified by it's node-id or <tt>null</tt> if no
-     * connector with that id could be found. This method iterates through all
-     * embedded engines.
+     * connector with that id could be found. The node-id is looked up in the
+     * index of the connector registry, if the registry is not up to date all
+     * connectors are scanned.
      * 
      * @param aId
      *        id of the connector to be returned.
@@ -366,12 +844,22 @@ public class BaseServer implements WebSocketServer {
      */
     @Override
     public WebSocketConnector getNode(String aNodeId) {
-        if (aNodeId != null) {
-            for (WebSocketEngine lEngine : mEngines.values()) {
-                for (WebSocketConnector lConnector : lEngine.getConnectors().values()) {
-                    if (aNodeId.equals(lConnector.getString(BaseConnector.VAR_NODEID))) {
-                        return lConnector;
-                    }
+        if (aNodeId != null && !isRegistryComplete()) {
+            for (WebSocketConnector lConnector : getAllConnectors().values()) {
+                if (aNodeId.equals(lConnector.getString(BaseConnector.VAR_NODEID))) {
+                    return lConnector;
+                }
+            }
+        } else if (aNodeId != null) {
+            for (WebSocketConnector lConnector
+                    : mConnectorRegistry.lookup(BaseConnector.VAR_NODEID, aNodeId)) {
+                if (aNodeId.equals(lConnector.getString(BaseConnector.VAR_NODEID))) {
+                    return lConnector;
+                }
+            }
+            for (WebSocketConnector lConnector : mConnectorRegistry.getUnindexedConnectors()) {
+                if (aNodeId.equals(lConnector.getString(BaseConnector.VAR_NODEID))) {
+                    return lConnector;
                 }
             }
         }
@@ -0,0 +1,176 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Read-only view on the connectors of all engines
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.server;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.jwebsocket.api.WebSocketConnector;
+import org.jwebsocket.api.WebSocketEngine;
+import org.jwebsocket.engines.BaseEngine;
+
+/**
+ * Live, read-only map of the connectors of all engines of a server. The map
+ * does not copy any connector, each operation is delegated to the connector
+ * maps of the underlying engines, hence changes of the engines are visible
+ * immediately. Iterating the map while connectors are added or removed is
+ * safe as long as the connector maps of the engines are thread safe.
+ *
+ * @author aschulze
+ */
+class CompositeConnectorMap extends AbstractMap<String, WebSocketConnector> {
+
+    private final Map<String, WebSocketEngine> mEngines;
+    private final Set<Map.Entry<String, WebSocketConnector>> mEntrySet = new EntrySet();
+    private final Collection<WebSocketConnector> mValues = new Values();
+
+    /**
+     *
+     * @param aEngines the (shared) map of engines of the server
+     */
+    CompositeConnectorMap(Map<String, WebSocketEngine> aEngines) {
+        mEngines = aEngines;
+    }
+
+    @Override
+    public WebSocketConnector get(Object aId) {
+        for (WebSocketEngine lEngine : mEngines.values()) {
+            WebSocketConnector lConnector = lEngine.getConnectors().get(aId);
+            if (lConnector != null) {
+                return lConnector;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object aId) {
+        return get(aId) != null;
+    }
+
+    @Override
+    public int size() {
+        int lSize = 0;
+        for (WebSocketEngine lEngine : mEngines.values()) {
+            lSize += BaseEngine.countConnectors(lEngine);
+        }
+        return lSize;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (WebSocketEngine lEngine : mEngines.values()) {
+            if (BaseEngine.countConnectors(lEngine) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Set<Map.Entry<String, WebSocketConnector>> entrySet() {
+        return mEntrySet;
+    }
+
+    @Override
+    public Collection<WebSocketConnector> values() {
+        return mValues;
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<String, WebSocketConnector>> {
+
+        @Override
+        public Iterator<Map.Entry<String, WebSocketConnector>> iterator() {
+            return new ChainedIterator<Map.Entry<String, WebSocketConnector>>() {
+
+                @Override
+                Iterator<Map.Entry<String, WebSocketConnector>> iteratorOf(WebSocketEngine aEngine) {
+                    return aEngine.getConnectors().entrySet().iterator();
+                }
+
+                @Override
+                public Map.Entry<String, WebSocketConnector> next() {
+                    Map.Entry<String, WebSocketConnector> lEntry = super.next();
+                    return new AbstractMap.SimpleImmutableEntry<String, WebSocketConnector>(lEntry);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return CompositeConnectorMap.this.size();
+        }
+    }
+
+    private class Values extends AbstractCollection<WebSocketConnector> {
+
+        @Override
+        public Iterator<WebSocketConnector> iterator() {
+            return new ChainedIterator<WebSocketConnector>() {
+
+                @Override
+                Iterator<WebSocketConnector> iteratorOf(WebSocketEngine aEngine) {
+                    return aEngine.getConnectors().values().iterator();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return CompositeConnectorMap.this.size();
+        }
+    }
+
+    /**
+     * Iterates through the elements of all engines one after another.
+     */
+    private abstract class ChainedIterator<T> implements Iterator<T> {
+
+        private final Iterator<WebSocketEngine> mEngineIterator = mEngines.values().iterator();
+        private Iterator<T> mCurrent = null;
+
+        abstract Iterator<T> iteratorOf(WebSocketEngine aEngine);
+
+        @Override
+        public boolean hasNext() {
+            while (mCurrent == null || !mCurrent.hasNext()) {
+                if (!mEngineIterator.hasNext()) {
+                    return false;
+                }
+                mCurrent = iteratorOf(mEngineIterator.next());
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return mCurrent.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Connectors view is read-only");
+        }
+    }
+}
@@ -0,0 +1,307 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Primitive long-keyed open-addressing hash map
+//    Copyright (c) 2012 Alexander Schulze, Innotrade GmbH
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hash map with primitive <tt>long</tt> keys, based on open addressing with
+ * linear probing. Other than a <tt>Map&lt;Long, V&gt;</tt> it neither boxes
+ * the keys nor allocates an entry object per mapping. <tt>null</tt> values
+ * are not supported, a <tt>null</tt> result always means "not found".
+ *
+ * Reads are lock free and do not allocate, modifications are synchronized
+ * on the map. A slot keeps its key once it has been used, removed mappings
+ * leave a tombstone, such that a concurrent reader never misses a mapping
+ * because of a modification of its probe sequence. The tombstones are
+ * dropped when the table is rebuilt, a rebuilt table is published as a
+ * whole and the old table is not modified anymore.
+ *
+ * @param <V> type of the values
+ * @author aschulze
+ */
+public class LongHashMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+    /**
+     * Marks a slot whose mapping has been removed.
+     */
+    private static final Object REMOVED = new Object();
+    private volatile Table mTable;
+    private volatile int mSize = 0;
+    /**
+     * Number of used slots including tombstones, guarded by this map.
+     */
+    private int mUsed = 0;
+
+    /**
+     * Creates a map with the default initial capacity.
+     */
+    public LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     *
+     * @param aExpectedSize number of mappings the map should hold without
+     * being resized.
+     */
+    public LongHashMap(int aExpectedSize) {
+        mTable = new Table(capacityFor(aExpectedSize));
+    }
+
+    private static int capacityFor(int aSize) {
+        int lCapacity = MIN_CAPACITY;
+        // keep the load factor at 0.5 at most to keep the probe sequences short
+        while (lCapacity / 2 < aSize) {
+            lCapacity <<= 1;
+        }
+        return lCapacity;
+    }
+
+    private static int hash(long aKey) {
+        // finalizer of MurmurHash3, spreads sequential keys
+        aKey ^= (aKey >>> 33);
+        aKey *= 0xff51afd7ed558ccdL;
+        aKey ^= (aKey >>> 33);
+        aKey *= 0xc4ceb9fe1a85ec53L;
+        aKey ^= (aKey >>> 33);
+        return (int) aKey;
+    }
+
+    /**
+     * Returns the value mapped to the passed key or <tt>null</tt>.
+     *
+     * @param aKey
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long aKey) {
+        Table lTable = mTable;
+        int lIdx = lTable.indexOf(aKey);
+        if (lIdx < 0) {
+            return null;
+        }
+        Object lValue = lTable.mValues.get(lIdx);
+        return (lValue != REMOVED ? (V) lValue : null);
+    }
+
+    /**
+     *
+     * @param aKey
+     * @return <tt>true</tt> if a value is mapped to the passed key.
+     */
+    public boolean containsKey(long aKey) {
+        return get(aKey) != null;
+    }
+
+    /**
+     * Maps the passed value to the passed key.
+     *
+     * @param aKey
+     * @param aValue must not be <tt>null</tt>
+     * @return the previous value of the key or <tt>null</tt>
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V put(long aKey, V aValue) {
+        if (aValue == null) {
+            throw new IllegalArgumentException("null values are not supported");
+        }
+        Table lTable = mTable;
+        int lIdx = lTable.indexOf(aKey);
+        if (lIdx >= 0) {
+            Object lOld = lTable.mValues.getAndSet(lIdx, aValue);
+            if (lOld != REMOVED) {
+                return (V) lOld;
+            }
+            mSize++;
+            return null;
+        }
+        if (mUsed + 1 > lTable.mKeys.length / 2) {
+            lTable = rebuild();
+        }
+        lTable.add(aKey, aValue);
+        mUsed++;
+        mSize++;
+        return null;
+    }
+
+    /**
+     * Removes the mapping of the passed key.
+     *
+     * @param aKey
+     * @return the removed value or <tt>null</tt>
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(long aKey) {
+        Table lTable = mTable;
+        int lIdx = lTable.indexOf(aKey);
+        if (lIdx < 0) {
+            return null;
+        }
+        Object lOld = lTable.mValues.getAndSet(lIdx, REMOVED);
+        if (lOld == REMOVED) {
+            return null;
+        }
+        mSize--;
+        return (V) lOld;
+    }
+
+    /**
+     * Removes the mapping of the passed key if it is mapped to the passed
+     * value.
+     *
+     * @param aKey
+     * @param aValue
+     * @return <tt>true</tt> if the mapping has been removed
+     */
+    public synchronized boolean remove(long aKey, V aValue) {
+        Table lTable = mTable;
+        int lIdx = lTable.indexOf(aKey);
+        if (lIdx >= 0 && lTable.mValues.compareAndSet(lIdx, aValue, REMOVED)) {
+            mSize--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copies the live mappings into a new table which is sized for the
+     * current number of mappings, dropping the tombstones.
+     */
+    private Table rebuild() {
+        Table lOld = mTable;
+        // double the capacity only if the table is filled by live mappings
+        Table lNew = new Table(capacityFor(Math.max(mSize + 1, lOld.mKeys.length / 4)));
+        for (int lIdx = 0; lIdx < lOld.mKeys.length; lIdx++) {
+            Object lValue = lOld.mValues.get(lIdx);
+            if (lValue != null && lValue != REMOVED) {
+                lNew.add(lOld.mKeys[lIdx], lValue);
+            }
+        }
+        mUsed = mSize;
+        mTable = lNew;
+        return lNew;
+    }
+
+    /**
+     *
+     * @return the number of mappings
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if the map does not contain any mapping
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Removes all mappings.
+     */
+    public synchronized void clear() {
+        mTable = new Table(MIN_CAPACITY);
+        mUsed = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Returns an iterator over the values of the map. The iterator is weakly
+     * consistent, it does not fail on concurrent modifications and may or
+     * may not reflect them. It does not support removal.
+     *
+     * @return
+     */
+    public Iterator<V> values() {
+        final Table lTable = mTable;
+        return new Iterator<V>() {
+
+            private int mIdx = 0;
+            private Object mNext = null;
+
+            @Override
+            public boolean hasNext() {
+                while (null == mNext && mIdx < lTable.mKeys.length) {
+                    Object lValue = lTable.mValues.get(mIdx++);
+                    if (lValue != null && lValue != REMOVED) {
+                        mNext = lValue;
+                    }
+                }
+                return null != mNext;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public V next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Object lValue = mNext;
+                mNext = null;
+                return (V) lValue;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Iterator is read-only");
+            }
+        };
+    }
+
+    /**
+     * Keys and values of the map. The key of a slot is written before its
+     * value is set for the first time and is never changed afterwards, hence
+     * a reader which sees a value also sees its key.
+     */
+    private static class Table {
+
+        final long[] mKeys;
+        final AtomicReferenceArray<Object> mValues;
+        final int mMask;
+
+        Table(int aCapacity) {
+            mKeys = new long[aCapacity];
+            mValues = new AtomicReferenceArray<Object>(aCapacity);
+            mMask = aCapacity - 1;
+        }
+
+        int indexOf(long aKey) {
+            int lIdx = hash(aKey) & mMask;
+            while (mValues.get(lIdx) != null) {
+                if (mKeys[lIdx] == aKey) {
+                    return lIdx;
+                }
+                lIdx = (lIdx + 1) & mMask;
+            }
+            return -1;
+        }
+
+        void add(long aKey, Object aValue) {
+            int lIdx = hash(aKey) & mMask;
+            while (mValues.get(lIdx) != null) {
+                lIdx = (lIdx + 1) & mMask;
+            }
+            mKeys[lIdx] = aKey;
+            mValues.set(lIdx, aValue);
+        }
+    }
+}